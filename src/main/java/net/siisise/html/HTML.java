@@ -1,12 +1,25 @@
 package net.siisise.html;
 
+import java.io.IOException;
+
 /**
  * HTMLのエスケープなど.
  * どこに置くかは未定.
+ * エスケープの要らない部分はまとめて追加する.
  */
 public class HTML {
 
     public static String encode(char ch) {
+        String ent = entity(ch, true);
+        return ent == null ? String.valueOf(ch) : ent;
+    }
+
+    /**
+     * @param ch 文字
+     * @param text 本文のとき空白も &amp;nbsp; にする
+     * @return 実体参照 または そのままでいいとき null
+     */
+    static String entity(char ch, boolean text) {
         switch(ch) {
             case '&':
                 return "&amp;";
@@ -19,19 +32,119 @@ public class HTML {
             case '\'':
                 return "&#39;"; // single quote
             case ' ':
-                return "&nbsp;";
+                return text ? "&nbsp;" : null;
             default:
-                return String.valueOf(ch);
+                return null;
         }
     }
 
+    /**
+     * 次にエスケープする文字の位置.
+     * @return 位置 または なければ src の長さ
+     */
+    private static int next(CharSequence src, int offset, boolean text) {
+        int len = src.length();
+        for (int i = offset; i < len; i++) {
+            char ch = src.charAt(i);
+            if (ch <= '>' && entity(ch, text) != null) {
+                return i;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * 本文用. 空白は &amp;nbsp; になる.
+     * @param src 文字列
+     * @return エスケープしたもの, 不要なときは src そのまま
+     */
     public static String esc(String src) {
-        StringBuilder sb = new StringBuilder();
-        char[] chs = src.toCharArray();
-        for ( char ch : chs ) {
-            String dec = encode(ch);
-            sb.append(dec);
+        return esc(src, true);
+    }
+
+    /**
+     * 属性値用. 空白はそのまま.
+     * @param src 文字列
+     * @return エスケープしたもの, 不要なときは src そのまま
+     */
+    public static String escAttr(String src) {
+        return esc(src, false);
+    }
+
+    private static String esc(String src, boolean text) {
+        int i = next(src, 0, text);
+        if (i == src.length()) {
+            return src;
         }
+        StringBuilder sb = new StringBuilder(src.length() + 16);
+        esc(src, 0, i, text, sb);
         return sb.toString();
     }
+
+    /**
+     * 本文用.
+     * @param src 文字列
+     * @param out 出力先
+     */
+    public static void esc(CharSequence src, StringBuilder out) {
+        esc(src, 0, next(src, 0, true), true, out);
+    }
+
+    /**
+     * 属性値用.
+     * @param src 文字列
+     * @param out 出力先
+     */
+    public static void escAttr(CharSequence src, StringBuilder out) {
+        esc(src, 0, next(src, 0, false), false, out);
+    }
+
+    /**
+     * 本文用. Writer などにそのまま書く.
+     * @param src 文字列
+     * @param out 出力先
+     * @throws IOException 出力先のエラー
+     */
+    public static void esc(CharSequence src, Appendable out) throws IOException {
+        esc(src, out, true);
+    }
+
+    /**
+     * 属性値用. Writer などにそのまま書く.
+     * @param src 文字列
+     * @param out 出力先
+     * @throws IOException 出力先のエラー
+     */
+    public static void escAttr(CharSequence src, Appendable out) throws IOException {
+        esc(src, out, false);
+    }
+
+    private static void esc(CharSequence src, Appendable out, boolean text) throws IOException {
+        if (out instanceof StringBuilder) {
+            esc(src, 0, next(src, 0, text), text, (StringBuilder) out);
+            return;
+        }
+        int len = src.length();
+        int s = 0;
+        for (int i = next(src, 0, text); i < len; i = next(src, s, text)) {
+            out.append(src, s, i);
+            out.append(entity(src.charAt(i), text));
+            s = i + 1;
+        }
+        out.append(src, s, len);
+    }
+
+    /**
+     * @param i 最初にエスケープする位置
+     */
+    private static void esc(CharSequence src, int s, int i, boolean text, StringBuilder out) {
+        int len = src.length();
+        while (i < len) {
+            out.append(src, s, i);
+            out.append(entity(src.charAt(i), text));
+            s = i + 1;
+            i = next(src, s, text);
+        }
+        out.append(src, s, len);
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.siisise.io.BASE64;
+
+/**
+ * JOSE, OAuth で使う乱数.
+ * CEK, IV, state, nonce, PKCE の code_verifier など.
+ *
+ * getInstanceStrong は Linux で NativePRNGBlocking になり /dev/random で止まることがあるので使わない.
+ * スレッドごとに DRBG (NIST SP 800-90A, 256bit) を1回だけ作り、
+ * 一定の量または時間ごとに reseed する.
+ * DRBG がない環境では new SecureRandom().
+ */
+public final class JOSERandom {
+
+    /**
+     * reseed までの量
+     */
+    static final long RESEED_BYTES = 1L << 20;
+    /**
+     * reseed までの時間
+     */
+    static final long RESEED_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private static final AtomicLong THREADS = new AtomicLong();
+
+    private static final ThreadLocal<JOSERandom> LOCAL = ThreadLocal.withInitial(JOSERandom::new);
+
+    private final SecureRandom random;
+    private long used;
+    private long seeded;
+
+    private JOSERandom() {
+        random = drbg();
+        seeded = System.nanoTime();
+    }
+
+    private static SecureRandom drbg() {
+        byte[] ps = ("JOSERandom-" + THREADS.incrementAndGet() + "-" + Thread.currentThread().getId()).getBytes(StandardCharsets.US_ASCII);
+        try {
+            return SecureRandom.getInstance("DRBG",
+                    DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, ps));
+        } catch (NoSuchAlgorithmException | IllegalArgumentException e) {
+            return new SecureRandom();
+        }
+    }
+
+    private void fill(byte[] dst) {
+        long now = System.nanoTime();
+        if (used >= RESEED_BYTES || now - seeded >= RESEED_NANOS) {
+            try {
+                random.reseed();
+            } catch (UnsupportedOperationException e) {
+                // reseed できないものはそのまま
+            }
+            used = 0;
+            seeded = now;
+        }
+        random.nextBytes(dst);
+        used += dst.length;
+    }
+
+    /**
+     * 乱数で埋める.
+     * @param dst 出力先
+     */
+    public static void nextBytes(byte[] dst) {
+        LOCAL.get().fill(dst);
+    }
+
+    /**
+     * @param length 長さ
+     * @return 乱数
+     */
+    public static byte[] bytes(int length) {
+        byte[] b = new byte[length];
+        nextBytes(b);
+        return b;
+    }
+
+    /**
+     * state, nonce, code_verifier など.
+     * @param length 乱数の長さ
+     * @return BASE64URL
+     */
+    public static String token(int length) {
+        return new BASE64(BASE64.URL, 0).encode(bytes(length));
+    }
+
+    /**
+     * 今のスレッドの SecureRandom.
+     * JCA の init に渡すときなど. 使った量は数えない.
+     * @return スレッドの乱数
+     */
+    public static SecureRandom current() {
+        return LOCAL.get().random;
+    }
+}
@@ -1,8 +1,29 @@
 package net.siisise.json.jose;
 
 import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
 import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPrivateKeySpec;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.spec.SecretKeySpec;
 import net.siisise.io.BASE64;
 import net.siisise.iso.asn1.tag.OBJECTIDENTIFIER;
 import net.siisise.json.JSONObject;
@@ -11,6 +32,7 @@ import net.siisise.security.digest.SHA384;
 import net.siisise.security.digest.SHA512;
 import net.siisise.security.key.RSAMiniPrivateKey;
 import net.siisise.security.key.RSAPublicKey;
+import net.siisise.security.mac.HMAC;
 import net.siisise.security.padding.MGF;
 import net.siisise.security.padding.MGF1;
 import net.siisise.security.sign.RSASSA_PKCS1_v1_5;
@@ -117,6 +139,7 @@ public abstract class JWA7518 {
         void initPublic(JSONObject jwk);
         
         void update(byte[] data);
+        void update(byte[] data, int offset, int length);
         byte[] sign(JSONObject jwk, byte[] data);
         byte[] sign();
 
@@ -175,6 +198,103 @@ public abstract class JWA7518 {
         return new RSAPublicKey(n, e);
     }
     
+    /**
+     * HMAC を SignAlgorithm として使う.
+     * 検証は時間を一定にする.
+     */
+    static final class HS implements SignAlgorithm {
+
+        private HMAC mac;
+        private final String alg;
+
+        /**
+         * @param alg HS256 など
+         */
+        HS(String alg) {
+            this.alg = alg;
+        }
+
+        /**
+         * 鍵の設定済みのもの.
+         * @param mac HMAC
+         */
+        HS(HMAC mac) {
+            this.alg = null;
+            this.mac = mac;
+        }
+
+        private void init(JSONObject jwk) {
+            byte[] k = new BASE64(BASE64.URL, 0).decode((String) jwk.get("k"));
+            mac = new HMAC(new SecretKeySpec(k, "HMAC-SHA-" + alg.substring(2)));
+        }
+
+        @Override
+        public void initPrivate(JSONObject jwk) {
+            init(jwk);
+        }
+
+        @Override
+        public void initPublic(JSONObject jwk) {
+            init(jwk);
+        }
+
+        @Override
+        public void update(byte[] data) {
+            mac.update(data);
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            mac.update(data, offset, length);
+        }
+
+        @Override
+        public byte[] sign() {
+            return mac.sign();
+        }
+
+        @Override
+        public byte[] sign(JSONObject jwk, byte[] data) {
+            initPrivate(jwk);
+            update(data);
+            return sign();
+        }
+
+        @Override
+        public boolean verify(byte[] sign) {
+            return MessageDigest.isEqual(mac.sign(), sign);
+        }
+
+        @Override
+        public boolean verify(JSONObject jwk, byte[] data, byte[] sign) {
+            initPublic(jwk);
+            update(data);
+            return verify(sign);
+        }
+    }
+
+    /**
+     * スレッドごとに作った RSASSA.
+     * digest や MGF を毎回作らない.
+     */
+    private static final ThreadLocal<Map<String, RSASSA>> RSASSAS = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * スレッドごとに使いまわす RSASSA.
+     * 同じスレッドで init から sign/verify まで続けて使うこと.
+     * @param alg アルゴリズム RS256, PS256 など
+     * @return RSASSA
+     */
+    static RSASSA rsassa(String alg) {
+        Map<String, RSASSA> ssas = RSASSAS.get();
+        RSASSA ssa = ssas.get(alg);
+        if (ssa == null) {
+            ssa = toRSASSA(alg);
+            ssas.put(alg, ssa);
+        }
+        return ssa;
+    }
+
     /**
      * RSASSAの選択.
      * @param alg アルゴリズム
@@ -214,11 +334,32 @@ public abstract class JWA7518 {
         public void initPublic(JSONObject jwkPub) {
             ssa.init(jwkToRSAPublic(jwkPub));
         }
+
+        /**
+         * 解析済みのRSA秘密鍵で初期化.
+         * @param key RSA秘密鍵
+         */
+        void init(RSAMiniPrivateKey key) {
+            ssa.init(key);
+        }
+
+        /**
+         * 解析済みのRSA公開鍵で初期化.
+         * @param key RSA公開鍵
+         */
+        void init(RSAPublicKey key) {
+            ssa.init(key);
+        }
         
         @Override
         public void update(byte[] m) {
             ssa.update(m);
         }
+
+        @Override
+        public void update(byte[] m, int offset, int length) {
+            ssa.update(m, offset, length);
+        }
         
         @Override
         public byte[] sign() {
@@ -287,4 +428,410 @@ public abstract class JWA7518 {
         }
     }
 
+    /**
+     * ECDSA の曲線. RFC 7518 3.4
+     * @param alg ES256 など
+     * @return JWK の crv
+     */
+    static String curve(String alg) {
+        switch (alg) {
+            case "ES256":
+                return "P-256";
+            case "ES384":
+                return "P-384";
+            case "ES512":
+                return "P-521";
+            default:
+                throw new UnsupportedOperationException(alg);
+        }
+    }
+
+    /**
+     * 曲線のパラメータ. 1回だけ作る.
+     */
+    private static final Map<String, ECParameterSpec> CURVES = new ConcurrentHashMap<>();
+
+    private static ECParameterSpec ecParameter(String crv) {
+        ECParameterSpec spec = CURVES.get(crv);
+        if (spec == null) {
+            String name;
+            switch (crv) {
+                case "P-256":
+                    name = "secp256r1";
+                    break;
+                case "P-384":
+                    name = "secp384r1";
+                    break;
+                case "P-521":
+                    name = "secp521r1";
+                    break;
+                default:
+                    throw new SecurityException("crv:" + crv);
+            }
+            try {
+                AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+                params.init(new ECGenParameterSpec(name));
+                spec = params.getParameterSpec(ECParameterSpec.class);
+            } catch (GeneralSecurityException e) {
+                throw new SecurityException(e);
+            }
+            CURVES.put(crv, spec);
+        }
+        return spec;
+    }
+
+    /**
+     * RFC 8410 の SubjectPublicKeyInfo / PrivateKeyInfo の前につくもの.
+     * Java 11 で EdECPublicKeySpec を使わずに済ませる.
+     */
+    private static final byte[] ED25519_PUBLIC = {0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00};
+    private static final byte[] ED25519_PRIVATE = {0x30, 0x2e, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x04, 0x22, 0x04, 0x20};
+    private static final byte[] ED448_PUBLIC = {0x30, 0x43, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x71, 0x03, 0x3a, 0x00};
+    private static final byte[] ED448_PRIVATE = {0x30, 0x47, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x71, 0x04, 0x3b, 0x04, 0x39};
+
+    private static byte[] concat(byte[] prefix, byte[] key) {
+        byte[] der = Arrays.copyOf(prefix, prefix.length + key.length);
+        System.arraycopy(key, 0, der, prefix.length, key.length);
+        return der;
+    }
+
+    private static byte[] decodeOKP(JSONObject jwk, String name, int len) {
+        byte[] k = new BASE64(BASE64.URL, 0).decode((String) jwk.get(name));
+        if (k.length != len) {
+            throw new SecurityException(name);
+        }
+        return k;
+    }
+
+    /**
+     * EC, OKP の公開鍵.
+     * RSA は jwkToRSAPublic
+     * @param jwk kty, crv, x, y
+     * @return 公開鍵
+     */
+    static PublicKey jwkToPublic(JSONObject jwk) {
+        String kty = (String) jwk.get("kty");
+        String crv = (String) jwk.get("crv");
+        try {
+            if ("EC".equals(kty)) {
+                ECPoint w = new ECPoint(decodeBigHex((String) jwk.get("x")), decodeBigHex((String) jwk.get("y")));
+                return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(w, ecParameter(crv)));
+            } else if ("OKP".equals(kty) && "Ed25519".equals(crv)) {
+                byte[] der = concat(ED25519_PUBLIC, decodeOKP(jwk, "x", 32));
+                return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(der));
+            } else if ("OKP".equals(kty) && "Ed448".equals(crv)) {
+                byte[] der = concat(ED448_PUBLIC, decodeOKP(jwk, "x", 57));
+                return KeyFactory.getInstance("Ed448").generatePublic(new X509EncodedKeySpec(der));
+            }
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+        throw new SecurityException("kty:" + kty + " crv:" + crv);
+    }
+
+    /**
+     * EC, OKP の秘密鍵.
+     * @param jwk kty, crv, d
+     * @return 秘密鍵
+     */
+    static PrivateKey jwkToPrivate(JSONObject jwk) {
+        String kty = (String) jwk.get("kty");
+        String crv = (String) jwk.get("crv");
+        try {
+            if ("EC".equals(kty)) {
+                return KeyFactory.getInstance("EC").generatePrivate(new ECPrivateKeySpec(decodeBigHex((String) jwk.get("d")), ecParameter(crv)));
+            } else if ("OKP".equals(kty) && "Ed25519".equals(crv)) {
+                byte[] der = concat(ED25519_PRIVATE, decodeOKP(jwk, "d", 32));
+                return KeyFactory.getInstance("Ed25519").generatePrivate(new PKCS8EncodedKeySpec(der));
+            } else if ("OKP".equals(kty) && "Ed448".equals(crv)) {
+                byte[] der = concat(ED448_PRIVATE, decodeOKP(jwk, "d", 57));
+                return KeyFactory.getInstance("Ed448").generatePrivate(new PKCS8EncodedKeySpec(der));
+            }
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+        throw new SecurityException("kty:" + kty + " crv:" + crv);
+    }
+
+    /**
+     * スレッドごとの JCA 署名.
+     */
+    private static final ThreadLocal<Map<String, JCASign>> JCASIGNS = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * スレッドごとに使いまわす ECDSA, EdDSA.
+     * @param alg ES256, ES384, ES512, EdDSA
+     * @return 署名
+     */
+    static JCASign jca(String alg) {
+        Map<String, JCASign> signs = JCASIGNS.get();
+        JCASign sign = signs.get(alg);
+        if (sign == null) {
+            if (alg.startsWith("ES")) {
+                sign = new ECDSA(alg);
+            } else if (alg.equals("EdDSA")) {
+                sign = new EdDSA();
+            } else {
+                throw new UnsupportedOperationException(alg);
+            }
+            signs.put(alg, sign);
+        }
+        return sign;
+    }
+
+    /**
+     * java.security.Signature を使うもの.
+     * 鍵は JWKStore で解析済みのものを使う.
+     */
+    static abstract class JCASign implements SignAlgorithm {
+
+        Signature sig;
+
+        abstract Signature signature(Key key) throws GeneralSecurityException;
+
+        void init(PrivateKey key) {
+            try {
+                sig = signature(key);
+                sig.initSign(key);
+            } catch (GeneralSecurityException e) {
+                throw new SecurityException(e);
+            }
+        }
+
+        void init(PublicKey key) {
+            try {
+                sig = signature(key);
+                sig.initVerify(key);
+            } catch (GeneralSecurityException e) {
+                throw new SecurityException(e);
+            }
+        }
+
+        @Override
+        public void initPrivate(JSONObject jwk) {
+            init(jwkToPrivate(jwk));
+        }
+
+        @Override
+        public void initPublic(JSONObject jwk) {
+            init(jwkToPublic(jwk));
+        }
+
+        @Override
+        public void update(byte[] data) {
+            update(data, 0, data.length);
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            try {
+                sig.update(data, offset, length);
+            } catch (SignatureException e) {
+                throw new SecurityException(e);
+            }
+        }
+
+        @Override
+        public byte[] sign() {
+            try {
+                return sig.sign();
+            } catch (SignatureException e) {
+                throw new SecurityException(e);
+            }
+        }
+
+        @Override
+        public byte[] sign(JSONObject jwk, byte[] data) {
+            initPrivate(jwk);
+            update(data);
+            return sign();
+        }
+
+        @Override
+        public boolean verify(byte[] sign) {
+            try {
+                return sig.verify(sign);
+            } catch (SignatureException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean verify(JSONObject jwk, byte[] data, byte[] sign) {
+            initPublic(jwk);
+            update(data);
+            return verify(sign);
+        }
+    }
+
+    /**
+     * ECDSA. RFC 7518 3.4
+     * JWS の署名は R || S, JCA は DER なので変換する.
+     * 固定基点の表などは JCA の実装 (SunEC) に任せる.
+     */
+    static class ECDSA extends JCASign {
+
+        final String crv;
+        /**
+         * R, S それぞれのバイト数
+         */
+        final int size;
+        private final String jca;
+        private Signature ecdsa;
+
+        ECDSA(String alg) {
+            crv = curve(alg);
+            size = alg.equals("ES512") ? 66 : Integer.parseInt(alg.substring(2)) / 8;
+            jca = "SHA" + alg.substring(2) + "withECDSA";
+        }
+
+        @Override
+        Signature signature(Key key) throws GeneralSecurityException {
+            if (key instanceof ECKey && ((ECKey) key).getParams().getCurve().getField().getFieldSize() != ecParameter(crv).getCurve().getField().getFieldSize()) {
+                throw new SecurityException("crv");
+            }
+            if (ecdsa == null) {
+                ecdsa = Signature.getInstance(jca);
+            }
+            return ecdsa;
+        }
+
+        @Override
+        public byte[] sign() {
+            return derToRS(super.sign(), size);
+        }
+
+        @Override
+        public boolean verify(byte[] sign) {
+            if (sign.length != size * 2) {
+                return false;
+            }
+            return super.verify(rsToDER(sign));
+        }
+    }
+
+    /**
+     * EdDSA. RFC 8037
+     * 署名はそのまま.
+     * JCA の Ed25519, Ed448 は Java 15 から. Java 11 では使えない.
+     */
+    static class EdDSA extends JCASign {
+
+        /**
+         * JCA に Ed25519 がある.
+         */
+        static final boolean AVAILABLE = available();
+
+        private static boolean available() {
+            try {
+                KeyFactory.getInstance("Ed25519");
+                return true;
+            } catch (NoSuchAlgorithmException e) {
+                return false;
+            }
+        }
+
+        private final Map<String, Signature> sigs = new HashMap<>();
+
+        @Override
+        Signature signature(Key key) throws GeneralSecurityException {
+            String name = key.getAlgorithm(); // Ed25519, Ed448, EdDSA
+            Signature s = sigs.get(name);
+            if (s == null) {
+                s = Signature.getInstance(name);
+                sigs.put(name, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * DER の ECDSA-Sig-Value を R || S にする.
+     * @param der SEQUENCE { r INTEGER, s INTEGER }
+     * @param size R, S のバイト数
+     * @return R || S
+     */
+    static byte[] derToRS(byte[] der, int size) {
+        int[] p = {0};
+        if (der[p[0]++] != 0x30) {
+            throw new SecurityException("DER");
+        }
+        length(der, p);
+        byte[] rs = new byte[size * 2];
+        integer(der, p, rs, 0, size);
+        integer(der, p, rs, size, size);
+        return rs;
+    }
+
+    private static int length(byte[] der, int[] p) {
+        int len = der[p[0]++] & 0xff;
+        if (len > 0x80) {
+            int n = len - 0x80;
+            len = 0;
+            for (int i = 0; i < n; i++) {
+                len = (len << 8) | (der[p[0]++] & 0xff);
+            }
+        }
+        return len;
+    }
+
+    private static void integer(byte[] der, int[] p, byte[] rs, int offset, int size) {
+        if (der[p[0]++] != 0x02) {
+            throw new SecurityException("DER");
+        }
+        int len = length(der, p);
+        int s = p[0];
+        p[0] += len;
+        while (len > size && der[s] == 0) { // 符号の0
+            s++;
+            len--;
+        }
+        if (len > size) {
+            throw new SecurityException("DER");
+        }
+        System.arraycopy(der, s, rs, offset + size - len, len);
+    }
+
+    /**
+     * R || S を DER の ECDSA-Sig-Value にする.
+     * @param rs R || S
+     * @return DER
+     */
+    static byte[] rsToDER(byte[] rs) {
+        int size = rs.length / 2;
+        byte[] r = unsigned(rs, 0, size);
+        byte[] s = unsigned(rs, size, size);
+        int len = 2 + r.length + 2 + s.length;
+        byte[] der = new byte[len + (len > 127 ? 3 : 2)];
+        int o = 0;
+        der[o++] = 0x30;
+        if (len > 127) {
+            der[o++] = (byte) 0x81;
+        }
+        der[o++] = (byte) len;
+        der[o++] = 0x02;
+        der[o++] = (byte) r.length;
+        System.arraycopy(r, 0, der, o, r.length);
+        o += r.length;
+        der[o++] = 0x02;
+        der[o++] = (byte) s.length;
+        System.arraycopy(s, 0, der, o, s.length);
+        return der;
+    }
+
+    /**
+     * 先頭の0を除いて、最上位ビットが立っていたら0をつける.
+     */
+    private static byte[] unsigned(byte[] src, int offset, int length) {
+        int s = offset;
+        int end = offset + length;
+        while (s < end - 1 && src[s] == 0) {
+            s++;
+        }
+        boolean pad = (src[s] & 0x80) != 0;
+        byte[] d = new byte[end - s + (pad ? 1 : 0)];
+        System.arraycopy(src, s, d, pad ? 1 : 0, end - s);
+        return d;
+    }
+
 }
@@ -1,14 +1,34 @@
 package net.siisise.json.jose;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.RSAPrivateKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
 import net.siisise.io.BASE64;
+import net.siisise.json.JSON;
+import net.siisise.json.JSONArray;
 import net.siisise.json.JSONObject;
 import net.siisise.json.JSONValue;
-import net.siisise.security.block.RSAES;
-import net.siisise.security.block.RSAES_OAEP;
 import net.siisise.security.key.RSAMiniPrivateKey;
 import net.siisise.security.key.RSAPublicKey;
 
@@ -17,71 +37,691 @@ import net.siisise.security.key.RSAPublicKey;
  * AES-GCM など
  * RFC 7516
  * RFC 7159 RFC 8259 Yhe JavaScript Object Notation (JSON) Data Interchange Format
+ *
+ * alg (鍵の暗号化) RFC 7518 4
+ * RSA-OAEP, RSA-OAEP-256, A128KW, A192KW, A256KW, dir
+ * enc (内容の暗号化) RFC 7518 5
+ * A128GCM, A192GCM, A256GCM, A128CBC-HS256, A192CBC-HS384, A256CBC-HS512
+ *
+ * AES は javax.crypto を使う. AES-NI, GHASH の intrinsic が効く.
  */
 public class JWE7516 {
     private static final Charset UTF8 = StandardCharsets.UTF_8;
-    
-    private JSONObject jweProtectedHeader;
-    private byte[] cek;
-    private byte[] jweEncryptedKey;
-    private byte[] jweInitializationVector;
-    private byte[] jweCiphertext;
-    private byte[] jweAuthenticationTag;
-    private byte[] jweAAD;
-    
-    private SecureRandom srnd;
+
+    private final JSONObject jweProtectedHeader = new JSONObject();
+    private String jweCompactHeader;
+
     RSAMiniPrivateKey key;
     RSAPublicKey pub;
-    
+    /**
+     * JCA の RSA 鍵. 1回だけ作る
+     */
+    private Key jcaPrivate;
+    private Key jcaPublic;
+    /**
+     * A*KW の鍵 または dir の CEK
+     */
+    private byte[] secret;
+
+    public JWE7516() {
+        jweProtectedHeader.put("alg", "RSA-OAEP");
+        jweProtectedHeader.put("enc", "A256GCM");
+    }
+
+    /**
+     * 復号用 RSA秘密鍵.
+     * @param key RSA秘密鍵
+     */
     public void init(RSAMiniPrivateKey key) {
-        try {
-            srnd = SecureRandom.getInstanceStrong();
-        } catch (NoSuchAlgorithmException ex) {
-            throw new SecurityException(ex);
-        }
         this.key = key;
+        jcaPrivate = null;
     }
-    
+
+    /**
+     * 暗号化用 RSA公開鍵.
+     * @param pub RSA公開鍵
+     */
     public void init(RSAPublicKey pub) {
         this.pub = pub;
+        jcaPublic = null;
     }
-    
-    public String compact(byte[] payload) throws NoSuchAlgorithmException {
-        RSAES es = new RSAES_OAEP();
-        jweProtectedHeader.put("alg", "RSA-OAEP");
-        cek = new byte[16];
-        srnd.nextBytes(cek);
-        jweEncryptedKey = es.encrypt(pub, cek);
-        jweInitializationVector = new byte[16];
-        srnd.nextBytes(jweInitializationVector);
-        
+
+    /**
+     * JWK の鍵. RSA は公開鍵と秘密鍵, oct は A*KW の鍵 または dir の CEK.
+     * kid があれば header にも入れる.
+     * @param jwk 鍵
+     */
+    public void init(JWK7517 jwk) {
+        if ("RSA".equals(jwk.getKty())) {
+            jcaPublic = jwk.getJWK().get("e") == null ? null : jwk.publicKey();
+            jcaPrivate = jwk.isPrivate() ? jwk.privateKey() : null;
+        } else if ("oct".equals(jwk.getKty())) {
+            secret = jwk.octets();
+        } else {
+            throw new SecurityException("kty:" + jwk.getKty());
+        }
+        if (jwk.getKid() != null) {
+            setKid(jwk.getKid());
+        }
+    }
+
+    /**
+     * 共通鍵. A*KW の鍵 または dir の CEK
+     * @param key 鍵
+     */
+    public void setKey(byte[] key) {
+        secret = key.clone();
+    }
+
+    /**
+     * 鍵の暗号化.
+     * @param alg RSA-OAEP, RSA-OAEP-256, A128KW, A192KW, A256KW, dir
+     */
+    public void setAlg(String alg) {
+        keyLength(alg);
+        jweProtectedHeader.put("alg", alg);
+        jweCompactHeader = null;
+    }
+
+    /**
+     * 内容の暗号化.
+     * @param enc A128GCM, A192GCM, A256GCM, A128CBC-HS256, A192CBC-HS384, A256CBC-HS512
+     */
+    public void setEnc(String enc) {
+        cekLength(enc);
+        jweProtectedHeader.put("enc", enc);
+        jweCompactHeader = null;
+    }
+
+    public void setKid(String kid) {
+        jweProtectedHeader.put("kid", kid);
+        jweCompactHeader = null;
+    }
+
+    public String getAlg() {
+        return (String) jweProtectedHeader.get("alg");
+    }
+
+    public String getEnc() {
+        return (String) jweProtectedHeader.get("enc");
+    }
+
+    private String compactHeader() {
+        if (jweCompactHeader == null) {
+            jweCompactHeader = new BASE64(BASE64.URL, 0).encode(((String) jweProtectedHeader.rebind(JSONValue.NOBR)).getBytes(UTF8));
+        }
+        return jweCompactHeader;
+    }
+
+    /**
+     * CEK の長さ. RFC 7518 5.1
+     */
+    static int cekLength(String enc) {
+        switch (enc) {
+            case "A128GCM":
+                return 16;
+            case "A192GCM":
+                return 24;
+            case "A256GCM":
+            case "A128CBC-HS256":
+                return 32;
+            case "A192CBC-HS384":
+                return 48;
+            case "A256CBC-HS512":
+                return 64;
+            default:
+                throw new SecurityException("enc:" + enc);
+        }
+    }
+
+    /**
+     * AES Key Wrap の鍵の長さ. 使えない alg は例外.
+     * @return A*KW 以外は 0
+     */
+    static int keyLength(String alg) {
+        switch (alg) {
+            case "A128KW":
+                return 16;
+            case "A192KW":
+                return 24;
+            case "A256KW":
+                return 32;
+            case "RSA-OAEP":
+            case "RSA-OAEP-256":
+            case "dir":
+                return 0;
+            default:
+                throw new SecurityException("alg:" + alg);
+        }
+    }
+
+    static boolean isGCM(String enc) {
+        return enc.endsWith("GCM");
+    }
+
+    /**
+     * 暗号化した結果.
+     */
+    private static final class Encrypted {
+
+        final byte[] encryptedKey;
+        final byte[] iv;
+        byte[] ciphertext;
+        byte[] tag;
+
+        Encrypted(byte[] encryptedKey, byte[] iv) {
+            this.encryptedKey = encryptedKey;
+            this.iv = iv;
+        }
+    }
+
+    /**
+     * CEK を作って暗号化する. dir はそのまま.
+     * @return CEK
+     */
+    private byte[] cek(String alg, String enc) {
+        if (alg.equals("dir")) {
+            if (secret == null || secret.length != cekLength(enc)) {
+                throw new SecurityException("dir key");
+            }
+            return secret;
+        }
+        byte[] cek = new byte[cekLength(enc)];
+        JOSERandom.nextBytes(cek);
+        return cek;
+    }
+
+    private Key rsaKey(boolean encrypt) throws GeneralSecurityException {
+        if (encrypt) {
+            if (jcaPublic == null) {
+                if (pub == null) {
+                    throw new SecurityException("鍵なし");
+                }
+                jcaPublic = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(pub.getModulus(), pub.getPublicExponent()));
+            }
+            return jcaPublic;
+        }
+        if (jcaPrivate == null) {
+            if (key == null) {
+                throw new SecurityException("鍵なし");
+            }
+            jcaPrivate = KeyFactory.getInstance("RSA").generatePrivate(new RSAPrivateKeySpec(key.getModulus(), key.getPrivateExponent()));
+        }
+        return jcaPrivate;
+    }
+
+    private static Cipher rsaCipher(String alg, int mode, Key key) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance("RSA/ECB/OAEPPadding");
+        OAEPParameterSpec spec = alg.equals("RSA-OAEP-256")
+                ? new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT)
+                : new OAEPParameterSpec("SHA-1", "MGF1", MGF1ParameterSpec.SHA1, PSource.PSpecified.DEFAULT);
+        c.init(mode, key, spec);
+        return c;
+    }
+
+    private SecretKey kek(String alg) {
+        if (secret == null || secret.length != keyLength(alg)) {
+            throw new SecurityException("鍵なし");
+        }
+        return new SecretKeySpec(secret, "AES");
+    }
+
+    /**
+     * JWE Encrypted Key
+     */
+    private byte[] wrap(String alg, byte[] cek) {
+        try {
+            if (alg.startsWith("RSA-OAEP")) {
+                return rsaCipher(alg, Cipher.ENCRYPT_MODE, rsaKey(true)).doFinal(cek);
+            } else if (alg.equals("dir")) {
+                return new byte[0];
+            }
+            Cipher c = Cipher.getInstance("AESWrap");
+            c.init(Cipher.WRAP_MODE, kek(alg));
+            return c.wrap(new SecretKeySpec(cek, "AES"));
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    /**
+     * CEK の復号.
+     * RSA で失敗したときは乱数の CEK にして tag で失敗させる. RFC 7516 11.5
+     */
+    private byte[] unwrap(String alg, String enc, byte[] encryptedKey) {
+        int len = cekLength(enc);
+        if (alg.equals("dir")) {
+            if (encryptedKey.length != 0 || secret == null || secret.length != len) {
+                throw new SecurityException("dir key");
+            }
+            return secret;
+        }
+        byte[] cek;
+        try {
+            if (alg.startsWith("RSA-OAEP")) {
+                Key k = rsaKey(false);
+                try {
+                    cek = rsaCipher(alg, Cipher.DECRYPT_MODE, k).doFinal(encryptedKey);
+                } catch (GeneralSecurityException e) {
+                    cek = null;
+                }
+                if (cek == null || cek.length != len) {
+                    cek = new byte[len];
+                    JOSERandom.nextBytes(cek);
+                }
+                return cek;
+            }
+            Cipher c = Cipher.getInstance("AESWrap");
+            c.init(Cipher.UNWRAP_MODE, kek(alg));
+            cek = c.unwrap(encryptedKey, "AES", Cipher.SECRET_KEY).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+        if (cek.length != len) {
+            throw new SecurityException("CEK");
+        }
+        return cek;
+    }
+
+    /**
+     * 内容の暗号化の準備.
+     * CBC-HS は後半がAES鍵, 前半がMAC鍵. RFC 7518 5.2.2.1
+     */
+    private static Cipher contentCipher(String enc, int mode, byte[] cek, byte[] iv) throws GeneralSecurityException {
+        if (isGCM(enc)) {
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            c.init(mode, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(128, iv));
+            return c;
+        }
+        Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        c.init(mode, new SecretKeySpec(cek, cek.length / 2, cek.length / 2, "AES"), new IvParameterSpec(iv));
+        return c;
+    }
+
+    private static Mac contentMac(String enc, byte[] cek, byte[] aad, byte[] iv) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA" + enc.substring(enc.length() - 3));
+        mac.init(new SecretKeySpec(cek, 0, cek.length / 2, mac.getAlgorithm()));
+        mac.update(aad);
+        mac.update(iv);
+        return mac;
+    }
+
+    /**
+     * AL と T_LEN. RFC 7518 5.2.2.1
+     */
+    private static byte[] tag(Mac mac, byte[] aad, int cekLength) {
+        mac.update(ByteBuffer.allocate(8).putLong((long) aad.length * 8).array());
+        return Arrays.copyOf(mac.doFinal(), cekLength / 2);
+    }
+
+    /**
+     * 暗号化.
+     * @param aad Additional Authenticated Data ASCII
+     */
+    private Encrypted encrypt(String alg, String enc, byte[] payload, byte[] aad) {
+        byte[] cek = cek(alg, enc);
+        Encrypted e = new Encrypted(wrap(alg, cek), new byte[isGCM(enc) ? 12 : 16]);
+        JOSERandom.nextBytes(e.iv);
+        try {
+            Cipher c = contentCipher(enc, Cipher.ENCRYPT_MODE, cek, e.iv);
+            if (isGCM(enc)) {
+                c.updateAAD(aad);
+                byte[] out = c.doFinal(payload);
+                e.ciphertext = Arrays.copyOf(out, out.length - 16);
+                e.tag = Arrays.copyOfRange(out, out.length - 16, out.length);
+            } else {
+                e.ciphertext = c.doFinal(payload);
+                Mac mac = contentMac(enc, cek, aad, e.iv);
+                mac.update(e.ciphertext);
+                e.tag = tag(mac, aad, cek.length);
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException(ex);
+        }
+        return e;
+    }
+
+    /**
+     * 復号. 失敗の理由は区別しない.
+     */
+    private static byte[] decrypt(String enc, byte[] cek, byte[] aad, byte[] iv, byte[] ciphertext, byte[] tag) {
+        try {
+            if (isGCM(enc)) {
+                if (iv.length != 12 || tag.length != 16) {
+                    throw new SecurityException("iv, tag");
+                }
+                Cipher c = contentCipher(enc, Cipher.DECRYPT_MODE, cek, iv);
+                c.updateAAD(aad);
+                byte[] out = new byte[c.getOutputSize(ciphertext.length + tag.length)];
+                int n = c.update(ciphertext, 0, ciphertext.length, out, 0);
+                n += c.doFinal(tag, 0, tag.length, out, n);
+                return n == out.length ? out : Arrays.copyOf(out, n);
+            }
+            if (iv.length != 16) {
+                throw new SecurityException("iv");
+            }
+            Mac mac = contentMac(enc, cek, aad, iv);
+            mac.update(ciphertext);
+            if (!MessageDigest.isEqual(tag(mac, aad, cek.length), tag)) { // 先に確かめる
+                throw new SecurityException("tag");
+            }
+            return contentCipher(enc, Cipher.DECRYPT_MODE, cek, iv).doFinal(ciphertext);
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException("decrypt");
+        }
+    }
+
+    /**
+     * JWE Compact Serialization.
+     * BASE64URL(header).BASE64URL(encrypted key).BASE64URL(iv).BASE64URL(ciphertext).BASE64URL(tag)
+     * @param payload 平文
+     * @return JWE
+     */
+    public String compact(byte[] payload) {
+        String h = compactHeader();
+        Encrypted e = encrypt(getAlg(), getEnc(), payload, h.getBytes(StandardCharsets.US_ASCII));
+        BASE64 b64 = new BASE64(BASE64.URL, 0);
         StringBuilder jwe = new StringBuilder();
-        BASE64 b64 = new BASE64(BASE64.URL,0);
-        jwe.append(b64.encode(jweProtectedHeader.toJSON().getBytes(UTF8)));
+        jwe.append(h);
         jwe.append(".");
-        jwe.append(b64.encode(jweEncryptedKey));
+        jwe.append(b64.encode(e.encryptedKey));
         jwe.append(".");
-        jwe.append(b64.encode(jweInitializationVector));
+        jwe.append(b64.encode(e.iv));
         jwe.append(".");
-        jwe.append(b64.encode(jweCiphertext));
+        jwe.append(b64.encode(e.ciphertext));
         jwe.append(".");
-        jwe.append(b64.encode(jweAuthenticationTag));
-        throw new UnsupportedOperationException();
+        jwe.append(b64.encode(e.tag));
+        return jwe.toString();
     }
-    
-    
-    public JSONValue json(byte[] payload) {
+
+    /**
+     * 大きいものを読みながら暗号化して JWE Compact Serialization を書く.
+     * 平文も暗号文もメモリに置かない.
+     * @param payload 平文
+     * @param out JWE の出力先 (ASCII)
+     * @throws IOException 読み書きできない
+     */
+    public void compact(InputStream payload, OutputStream out) throws IOException {
+        String alg = getAlg();
+        String enc = getEnc();
+        String h = compactHeader();
+        byte[] aad = h.getBytes(StandardCharsets.US_ASCII);
+        byte[] cek = cek(alg, enc);
+        byte[] iv = new byte[isGCM(enc) ? 12 : 16];
+        JOSERandom.nextBytes(iv);
+        BASE64 b64 = new BASE64(BASE64.URL, 0);
+        out.write(aad);
+        out.write('.');
+        out.write(b64.encode(wrap(alg, cek)).getBytes(StandardCharsets.US_ASCII));
+        out.write('.');
+        out.write(b64.encode(iv).getBytes(StandardCharsets.US_ASCII));
+        out.write('.');
+        try {
+            Cipher c = contentCipher(enc, Cipher.ENCRYPT_MODE, cek, iv);
+            Mac mac = null;
+            if (isGCM(enc)) {
+                c.updateAAD(aad);
+            } else {
+                mac = contentMac(enc, cek, aad, iv);
+            }
+            byte[] in = new byte[16384];
+            byte[] ct = new byte[in.length + 32];
+            Base64Out ctOut = new Base64Out(out);
+            int len;
+            while ((len = payload.read(in)) >= 0) {
+                int n = c.update(in, 0, len, ct);
+                ctOut.write(ct, 0, n, mac);
+            }
+            byte[] last = c.doFinal();
+            byte[] tag;
+            if (isGCM(enc)) {
+                ctOut.write(last, 0, last.length - 16, null);
+                tag = Arrays.copyOfRange(last, last.length - 16, last.length);
+            } else {
+                ctOut.write(last, 0, last.length, mac);
+                tag = tag(mac, aad, cek.length);
+            }
+            ctOut.close();
+            out.write('.');
+            out.write(b64.encode(tag).getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException(ex);
+        }
+    }
+
+    /**
+     * 暗号文を BASE64URL にしながら書く. 3バイトに満たない端数は次に回す.
+     */
+    private static final class Base64Out {
+
+        private final OutputStream out;
+        private final byte[] carry = new byte[3];
+        private int carryLength;
+        private byte[] enc = new byte[0];
+
+        Base64Out(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] src, int offset, int length, Mac mac) throws IOException {
+            if (mac != null) {
+                mac.update(src, offset, length);
+            }
+            if (carryLength > 0) {
+                int need = Math.min(3 - carryLength, length);
+                System.arraycopy(src, offset, carry, carryLength, need);
+                carryLength += need;
+                offset += need;
+                length -= need;
+                if (carryLength < 3) {
+                    return;
+                }
+                encode(carry, 0, 3);
+                carryLength = 0;
+            }
+            int whole = length / 3 * 3;
+            encode(src, offset, whole);
+            carryLength = length - whole;
+            System.arraycopy(src, offset + whole, carry, 0, carryLength);
+        }
+
+        private void encode(byte[] src, int offset, int length) throws IOException {
+            if (enc.length < length / 3 * 4 + 4) {
+                enc = new byte[length / 3 * 4 + 4];
+            }
+            out.write(enc, 0, JWSCompact.encode(src, offset, length, enc));
+        }
+
+        void close() throws IOException {
+            encode(carry, 0, carryLength);
+            carryLength = 0;
+        }
+    }
+
+    /**
+     * JWE JSON Serialization (flattened).
+     * @param payload 平文
+     * @return JWE
+     */
+    public JSONObject json(byte[] payload) {
+        return json(payload, null);
+    }
+
+    /**
+     * JWE JSON Serialization (flattened).
+     * @param payload 平文
+     * @param aad JWE AAD または null
+     * @return JWE
+     */
+    public JSONObject json(byte[] payload, byte[] aad) {
         JSONObject json = new JSONObject();
         BASE64 b64 = new BASE64(BASE64.URL,0);
-        json.put("protected", b64.encode(jweProtectedHeader.toJSON().getBytes(UTF8)));
-        json.put("unprotected", "");
-        json.put("header", "");
-        json.put("encrypted_key", b64.encode(jweEncryptedKey));
-        json.put("iv", b64.encode(jweInitializationVector));
-        json.put("ciphertext", b64.encode(jweCiphertext));
-        json.put("tag", b64.encode(jweAuthenticationTag));
-        json.put("aad", b64.encode(jweAAD));
-        throw new UnsupportedOperationException();
-    }
-    
+        String h = compactHeader();
+        String a = h;
+        json.put("protected", h);
+        if (aad != null) {
+            String ea = b64.encode(aad);
+            json.put("aad", ea);
+            a += "." + ea;
+        }
+        Encrypted e = encrypt(getAlg(), getEnc(), payload, a.getBytes(StandardCharsets.US_ASCII));
+        if (e.encryptedKey.length > 0) {
+            json.put("encrypted_key", b64.encode(e.encryptedKey));
+        }
+        json.put("iv", b64.encode(e.iv));
+        json.put("ciphertext", b64.encode(e.ciphertext));
+        json.put("tag", b64.encode(e.tag));
+        return json;
+    }
+
+    private static byte[] decode(Object b64) {
+        if (b64 == null) {
+            return new byte[0];
+        }
+        if (!(b64 instanceof String)) {
+            throw new SecurityException("JWE");
+        }
+        byte[] src = ((String) b64).getBytes(StandardCharsets.ISO_8859_1);
+        return JWSCompact.decode(src, 0, src.length);
+    }
+
+    private static JSONObject header(String b64) {
+        JSONValue h;
+        try {
+            h = JSON.parseWrap(decode(b64));
+        } catch (RuntimeException e) {
+            throw new SecurityException("header");
+        }
+        if (!(h instanceof JSONObject)) {
+            throw new SecurityException("header");
+        }
+        return (JSONObject) h;
+    }
+
+    /**
+     * 使う alg, enc か確かめる. alg の取り違えを防ぐ.
+     */
+    private void check(String alg, String enc) {
+        if (alg == null || !alg.equals(getAlg()) || enc == null || !enc.equals(getEnc())) {
+            throw new SecurityException("alg:" + alg + " enc:" + enc);
+        }
+    }
+
+    /**
+     * JWE Compact Serialization の復号.
+     * alg, enc は設定したものだけ受け付ける.
+     * @param jwe JWE
+     * @return 平文
+     * @throws SecurityException 復号できない
+     */
+    public byte[] decrypt(String jwe) {
+        String[] sp = jwe.split("\\.", -1);
+        if (sp.length != 5) {
+            throw new SecurityException("not compact");
+        }
+        JSONObject h = header(sp[0]);
+        unsupported(h);
+        String alg = string(h.get("alg"), "alg");
+        String enc = string(h.get("enc"), "enc");
+        check(alg, enc);
+        byte[] cek = unwrap(alg, enc, decode(sp[1]));
+        return decrypt(enc, cek, sp[0].getBytes(StandardCharsets.US_ASCII), decode(sp[2]), decode(sp[3]), decode(sp[4]));
+    }
+
+    /**
+     * JWE JSON Serialization の復号.
+     * general のときは復号できる recipient を探す.
+     * @param jwe flattened または general
+     * @return 平文
+     * @throws SecurityException 復号できない
+     */
+    public byte[] decrypt(JSONObject jwe) {
+        String p = string(jwe.get("protected"), "protected");
+        JSONObject ph = p == null ? new JSONObject() : header(p);
+        unsupported(ph);
+        JSONValue shared = jwe.getJSON("unprotected");
+        unsupported(shared);
+        String aad = p == null ? "" : p;
+        String a = string(jwe.get("aad"), "aad");
+        if (a != null) {
+            aad += "." + a;
+        }
+        byte[] iv = decode(jwe.get("iv"));
+        byte[] ciphertext = decode(jwe.get("ciphertext"));
+        byte[] tag = decode(jwe.get("tag"));
+        JSONValue recipients = jwe.getJSON("recipients");
+        List<?> list;
+        if (recipients instanceof JSONArray) {
+            list = (JSONArray) recipients;
+        } else {
+            list = Arrays.asList(jwe);
+        }
+        List<JSONObject> rs = new ArrayList<>();
+        for (Object r : list) { // 復号する前に全部見る
+            JSONValue rv = JSON.valueOf(r);
+            if (!(rv instanceof JSONObject)) {
+                throw new SecurityException("recipients");
+            }
+            unsupported(((JSONObject) rv).getJSON("header"));
+            rs.add((JSONObject) rv);
+        }
+        SecurityException last = new SecurityException("recipients");
+        for (JSONObject recipient : rs) {
+            String alg = param("alg", ph, shared, recipient.getJSON("header"));
+            String enc = param("enc", ph, shared, recipient.getJSON("header"));
+            try {
+                check(alg, enc);
+                byte[] cek = unwrap(alg, enc, decode(recipient.get("encrypted_key")));
+                return decrypt(enc, cek, aad.getBytes(StandardCharsets.US_ASCII), iv, ciphertext, tag);
+            } catch (SecurityException e) {
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    /**
+     * zip と crit は扱わないので、どのヘッダにあっても復号しない. RFC 7516 4.1.3, 4.1.13
+     * @param h protected, unprotected, header または null
+     */
+    private static void unsupported(JSONValue h) {
+        if (h == null) {
+            return;
+        }
+        if (!(h instanceof JSONObject)) {
+            throw new SecurityException("header");
+        }
+        JSONObject o = (JSONObject) h;
+        if (o.get("zip") != null || o.get("crit") != null) {
+            throw new SecurityException("zip, crit");
+        }
+    }
+
+    /**
+     * protected, unprotected, header の順で探す.
+     * @throws SecurityException 文字列でない
+     */
+    private static String param(String name, JSONObject ph, JSONValue shared, JSONValue header) {
+        Object v = ph.get(name);
+        if (v == null && shared instanceof JSONObject) {
+            v = ((JSONObject) shared).get(name);
+        }
+        if (v == null && header instanceof JSONObject) {
+            v = ((JSONObject) header).get(name);
+        }
+        return string(v, name);
+    }
+
+    /**
+     * @param v 値 または null
+     * @param name 名
+     * @return 文字列 または null
+     * @throws SecurityException 文字列でない
+     */
+    private static String string(Object v, String name) {
+        if (v != null && !(v instanceof String)) {
+            throw new SecurityException(name);
+        }
+        return (String) v;
+    }
 }
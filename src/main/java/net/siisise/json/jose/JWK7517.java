@@ -1,8 +1,465 @@
 package net.siisise.json.jose;
 
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.KeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPrivateKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import net.siisise.io.BASE64;
+import net.siisise.json.JSON;
+import net.siisise.json.JSONObject;
+import net.siisise.json.JSONValue;
+import net.siisise.security.key.RSAMiniPrivateKey;
+import net.siisise.security.key.RSAPublicKey;
+
 /**
- *
+ * JSON Web Key. RFC 7517
+ * kty ごとの必須のメンバを確認し、鍵は使うときに1回だけ作って持っておく.
+ * RSA, EC (RFC 7518 6), OKP (RFC 8037), oct.
+ * thumbprint は RFC 7638.
+ * 複数のスレッドから使っていい.
  */
 public class JWK7517 {
-    JWS7515 jws = new JWS7515();
+
+    /**
+     * kty ごとの thumbprint に使うメンバ. 辞書順. RFC 7638 3.2, RFC 8037 2
+     */
+    private static final String[] RSA_MEMBERS = {"e", "kty", "n"};
+    private static final String[] EC_MEMBERS = {"crv", "kty", "x", "y"};
+    private static final String[] OKP_MEMBERS = {"crv", "kty", "x"};
+    private static final String[] OCT_MEMBERS = {"k", "kty"};
+    /**
+     * 秘密鍵のメンバ. RFC 7518 6.2.2, 6.3.2, 6.4.1, RFC 8037 2
+     */
+    private static final String[] PRIVATE_MEMBERS = {"d", "p", "q", "dp", "dq", "qi", "oth", "k"};
+
+    private final JSONObject jwk;
+    private final String kty;
+    private final String kid;
+    private final String use;
+    private final String alg;
+    private final List<String> keyOps;
+
+    private volatile String thumbprint;
+    private volatile PublicKey publicKey;
+    private volatile PrivateKey privateKey;
+    private volatile RSAPublicKey rsaPublic;
+    private volatile RSAMiniPrivateKey rsaPrivate;
+
+    /**
+     * 確認はしない.
+     * kty のない古い RSA の鍵 (JWS7515.setRsaKey) にも使う.
+     * @param jwk JWK
+     */
+    JWK7517(JSONObject jwk) {
+        this.jwk = jwk;
+        kty = string(jwk, "kty");
+        kid = string(jwk, "kid");
+        use = string(jwk, "use");
+        alg = string(jwk, "alg");
+        Object ops = jwk.get("key_ops");
+        if (ops == null) {
+            keyOps = null;
+        } else if (ops instanceof List) {
+            List<String> list = new ArrayList<>();
+            for (Object op : (List<?>) ops) {
+                if (!(op instanceof String) || list.contains(op)) { // 4.3 重複は不可
+                    throw new IllegalArgumentException("key_ops");
+                }
+                list.add((String) op);
+            }
+            keyOps = Collections.unmodifiableList(list);
+        } else {
+            throw new IllegalArgumentException("key_ops");
+        }
+    }
+
+    private static String string(JSONObject jwk, String name) {
+        Object v = jwk.get(name);
+        if (v != null && !(v instanceof String)) {
+            throw new IllegalArgumentException(name);
+        }
+        return (String) v;
+    }
+
+    /**
+     * JSON から.
+     * @param json JWK
+     * @return 確認したもの
+     * @throws IllegalArgumentException 必須のメンバがない など
+     */
+    public static JWK7517 parse(String json) {
+        JSONValue o = JSON.parseWrap(json);
+        if (!(o instanceof JSONObject)) {
+            throw new IllegalArgumentException("JWK");
+        }
+        return parse((JSONObject) o);
+    }
+
+    /**
+     * kty ごとに必須のメンバを確認する.
+     * 鍵はまだ作らない.
+     * @param jwk JWK
+     * @return 確認したもの
+     * @throws IllegalArgumentException 必須のメンバがない など
+     */
+    public static JWK7517 parse(JSONObject jwk) {
+        JWK7517 key = new JWK7517(jwk);
+        key.validate();
+        return key;
+    }
+
+    private void validate() {
+        if (kty == null) {
+            throw new IllegalArgumentException("kty");
+        }
+        switch (kty) {
+            case "RSA":
+                b64(jwk, "n", true);
+                b64(jwk, "e", jwk.get("d") == null); // RSAMiniPrivateKey は e なし
+                for (String name : new String[] {"d", "p", "q", "dp", "dq", "qi"}) {
+                    b64(jwk, name, false);
+                }
+                break;
+            case "EC":
+                int len = coordinateLength(string(jwk, "crv"));
+                if (b64(jwk, "x", true) != len || b64(jwk, "y", true) != len) {
+                    throw new IllegalArgumentException("EC point");
+                }
+                b64(jwk, "d", false);
+                break;
+            case "OKP":
+                String crv = string(jwk, "crv");
+                if (crv == null) {
+                    throw new IllegalArgumentException("crv");
+                }
+                b64(jwk, "x", true);
+                b64(jwk, "d", false);
+                break;
+            case "oct":
+                b64(jwk, "k", true);
+                break;
+            default: // 知らない kty は使わない RFC 7517 5
+                throw new IllegalArgumentException("kty:" + kty);
+        }
+    }
+
+    /**
+     * 座標のバイト長. RFC 7518 6.2.1.2
+     */
+    private static int coordinateLength(String crv) {
+        if (crv == null) {
+            throw new IllegalArgumentException("crv");
+        }
+        switch (crv) {
+            case "P-256":
+                return 32;
+            case "P-384":
+                return 48;
+            case "P-521":
+                return 66;
+            default:
+                throw new IllegalArgumentException("crv:" + crv);
+        }
+    }
+
+    /**
+     * BASE64URL (パディングなし) の確認.
+     * @param required 必須
+     * @return デコードしたときの長さ, ないときは -1
+     */
+    private static int b64(JSONObject jwk, String name, boolean required) {
+        String v = string(jwk, name);
+        if (v == null) {
+            if (required) {
+                throw new IllegalArgumentException(name);
+            }
+            return -1;
+        }
+        int len = v.length();
+        if (len % 4 == 1) {
+            throw new IllegalArgumentException(name);
+        }
+        for (int i = 0; i < len; i++) {
+            char c = v.charAt(i);
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_')) {
+                throw new IllegalArgumentException(name);
+            }
+        }
+        return len * 3 / 4;
+    }
+
+    /**
+     * @return RSA, EC, OKP, oct
+     */
+    public String getKty() {
+        return kty;
+    }
+
+    /**
+     * @return kid または null
+     */
+    public String getKid() {
+        return kid;
+    }
+
+    /**
+     * @return sig, enc または null
+     */
+    public String getUse() {
+        return use;
+    }
+
+    /**
+     * @return alg または null
+     */
+    public String getAlg() {
+        return alg;
+    }
+
+    /**
+     * @return key_ops または null
+     */
+    public List<String> getKeyOps() {
+        return keyOps;
+    }
+
+    /**
+     * 元の JSON. 変更しないこと.
+     * @return JWK
+     */
+    public JSONObject getJWK() {
+        return jwk;
+    }
+
+    /**
+     * @return 秘密鍵 (oct は共通鍵) を含む
+     */
+    public boolean isPrivate() {
+        return jwk.get("d") != null || jwk.get("k") != null;
+    }
+
+    /**
+     * use と key_ops が合うか. 指定のないものは何にでも使える.
+     * @param use sig または enc
+     * @param op sign, verify, encrypt, wrapKey など または null
+     * @return 使える
+     */
+    public boolean allows(String use, String op) {
+        return (this.use == null || use == null || this.use.equals(use))
+                && (keyOps == null || op == null || keyOps.contains(op));
+    }
+
+    /**
+     * RFC 7638 JWK Thumbprint. SHA-256 の BASE64URL.
+     * kid のない鍵の識別にも使える. 1回だけ計算する.
+     * @return thumbprint
+     */
+    public String thumbprint() {
+        String t = thumbprint;
+        if (t == null) {
+            try {
+                t = new BASE64(BASE64.URL, 0).encode(thumbprint(MessageDigest.getInstance("SHA-256")));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            thumbprint = t;
+        }
+        return t;
+    }
+
+    /**
+     * RFC 7638 JWK Thumbprint.
+     * @param md ハッシュ関数
+     * @return hash
+     */
+    public byte[] thumbprint(MessageDigest md) {
+        return md.digest(thumbprintInput().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 必須のメンバだけを辞書順、空白なしで. RFC 7638 3.3
+     * 値は BASE64URL か crv なので escape はいらない.
+     */
+    String thumbprintInput() {
+        String[] members;
+        if (kty == null) {
+            throw new IllegalStateException("kty");
+        }
+        switch (kty) {
+            case "RSA":
+                members = RSA_MEMBERS;
+                break;
+            case "EC":
+                members = EC_MEMBERS;
+                break;
+            case "OKP":
+                members = OKP_MEMBERS;
+                break;
+            case "oct":
+                members = OCT_MEMBERS;
+                break;
+            default:
+                throw new IllegalStateException("kty:" + kty);
+        }
+        StringBuilder sb = new StringBuilder(256);
+        sb.append('{');
+        for (String name : members) {
+            String v = string(jwk, name);
+            if (v == null) {
+                throw new IllegalStateException(name);
+            }
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append('"').append(name).append("\":\"").append(v).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * 秘密鍵のメンバを除いたもの. jwks_uri で公開する用.
+     * @return 公開鍵の JWK
+     */
+    public JSONObject toPublicJWK() {
+        if ("oct".equals(kty)) {
+            throw new IllegalStateException("oct");
+        }
+        JSONObject pub = new JSONObject();
+        for (Object name : jwk.keySet()) {
+            pub.put(name, jwk.get(name));
+        }
+        for (String name : PRIVATE_MEMBERS) {
+            pub.remove(name);
+        }
+        return pub;
+    }
+
+    /**
+     * JCA の公開鍵. RSA, EC, OKP (Ed25519, Ed448)
+     * @return 公開鍵
+     */
+    public PublicKey publicKey() {
+        PublicKey key = publicKey;
+        if (key == null) {
+            if ("RSA".equals(kty)) {
+                key = (PublicKey) rsa(new RSAPublicKeySpec(bigInteger("n"), bigInteger("e")), true);
+            } else {
+                key = JWA7518.jwkToPublic(jwk);
+            }
+            publicKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * JCA の秘密鍵. RSA は CRT のメンバがあれば使う.
+     * @return 秘密鍵
+     */
+    public PrivateKey privateKey() {
+        PrivateKey key = privateKey;
+        if (key == null) {
+            if (jwk.get("d") == null) {
+                throw new SecurityException("not private key");
+            }
+            if ("RSA".equals(kty)) {
+                KeySpec spec;
+                if (jwk.get("p") != null && jwk.get("q") != null && jwk.get("dp") != null
+                        && jwk.get("dq") != null && jwk.get("qi") != null && jwk.get("e") != null) {
+                    spec = new RSAPrivateCrtKeySpec(bigInteger("n"), bigInteger("e"), bigInteger("d"),
+                            bigInteger("p"), bigInteger("q"), bigInteger("dp"), bigInteger("dq"), bigInteger("qi"));
+                } else {
+                    spec = new RSAPrivateKeySpec(bigInteger("n"), bigInteger("d"));
+                }
+                key = (PrivateKey) rsa(spec, false);
+            } else {
+                key = JWA7518.jwkToPrivate(jwk);
+            }
+            privateKey = key;
+        }
+        return key;
+    }
+
+    private static java.security.Key rsa(KeySpec spec, boolean pub) {
+        try {
+            KeyFactory kf = KeyFactory.getInstance("RSA");
+            return pub ? kf.generatePublic(spec) : kf.generatePrivate(spec);
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    private BigInteger bigInteger(String name) {
+        String v = string(jwk, name);
+        if (v == null) {
+            throw new SecurityException(name);
+        }
+        return new BigInteger(1, new BASE64(BASE64.URL, 0).decode(v));
+    }
+
+    /**
+     * oct の鍵.
+     * @param algorithm JCA のアルゴリズム名 HmacSHA256, AES など
+     * @return 共通鍵
+     */
+    public SecretKey secretKey(String algorithm) {
+        return new SecretKeySpec(octets(), algorithm);
+    }
+
+    /**
+     * oct の鍵.
+     * @return k
+     */
+    public byte[] octets() {
+        if (!"oct".equals(kty)) {
+            throw new SecurityException("kty:" + kty);
+        }
+        return new BASE64(BASE64.URL, 0).decode(string(jwk, "k"));
+    }
+
+    /**
+     * RSASSA 用 n と e.
+     * @return 公開鍵
+     */
+    public RSAPublicKey rsaPublic() {
+        RSAPublicKey key = rsaPublic;
+        if (key == null) {
+            key = JWA7518.jwkToRSAPublic(jwk);
+            rsaPublic = key;
+        }
+        return key;
+    }
+
+    /**
+     * RSASSA 用 n と d.
+     * @return 秘密鍵
+     */
+    public RSAMiniPrivateKey rsaPrivate() {
+        RSAMiniPrivateKey key = rsaPrivate;
+        if (key == null) {
+            if (jwk.get("d") == null) {
+                throw new SecurityException("not private key");
+            }
+            key = JWA7518.jwkToRSAPrivate(jwk);
+            rsaPrivate = key;
+        }
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return kty + (kid == null ? "" : " " + kid);
+    }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+/**
+ * kid と alg で鍵を引くもの.
+ * JWKStore のほか、jwks_uri を読み直すものなど.
+ * 複数のスレッドから読んでいい.
+ */
+public interface JWKSource {
+
+    /**
+     * 検証に使う鍵を選ぶ.
+     * @param kid JWS header の kid または null
+     * @param alg JWS header の alg
+     * @return 鍵 または null
+     */
+    JWKStore.Key select(String kid, String alg);
+}
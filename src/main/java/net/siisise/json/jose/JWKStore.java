@@ -0,0 +1,340 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import net.siisise.json.JSONArray;
+import net.siisise.json.JSONObject;
+import net.siisise.security.key.RSAMiniPrivateKey;
+import net.siisise.security.key.RSAPublicKey;
+
+/**
+ * JWK Set の索引. RFC 7517 5
+ * kid と alg (と use) で引けるようにしておき、鍵は JWK7517 で1回だけ解析する.
+ * 複数のスレッドから読んでいい. JWS7515 などで共有する.
+ */
+public class JWKStore implements JWKSource {
+
+    /**
+     * 鍵1つ. 解析した鍵は JWK7517 が持っておく.
+     */
+    public static final class Key {
+
+        final String kid;
+        final String alg;
+        final String kty;
+        final JSONObject jwk;
+        final JWK7517 key;
+
+        Key(String kid, String alg, JWK7517 key) {
+            this.kid = kid;
+            this.alg = alg;
+            this.kty = key.getKty();
+            this.jwk = key.getJWK();
+            this.key = key;
+        }
+
+        public String getKid() {
+            return kid;
+        }
+
+        /**
+         * @return alg または 指定なし null
+         */
+        public String getAlg() {
+            return alg;
+        }
+
+        public JSONObject getJWK() {
+            return jwk;
+        }
+
+        /**
+         * @return 型のある JWK
+         */
+        public JWK7517 getKey() {
+            return key;
+        }
+
+        /**
+         * @return n と e から作った公開鍵
+         */
+        public RSAPublicKey rsaPublic() {
+            return key.rsaPublic();
+        }
+
+        /**
+         * @return n と d から作った秘密鍵
+         */
+        public RSAMiniPrivateKey rsaPrivate() {
+            return key.rsaPrivate();
+        }
+
+        /**
+         * EC, OKP の公開鍵.
+         * @return x, y から作った公開鍵
+         */
+        public PublicKey publicKey() {
+            return key.publicKey();
+        }
+
+        /**
+         * EC, OKP の秘密鍵.
+         * @return d から作った秘密鍵
+         */
+        public PrivateKey privateKey() {
+            return key.privateKey();
+        }
+
+        /**
+         * alg の指定がある鍵は同じ alg でのみ使う.
+         * kty があるときは alg と合うものだけ.
+         * use があるときは alg の用途と合うものだけ.
+         */
+        boolean accepts(String alg) {
+            return (this.alg == null || this.alg.equals(alg)) && (kty == null || kty.equals(kty(alg)))
+                    && key.allows(use(alg), null);
+        }
+    }
+
+    /**
+     * alg で使う kty. RFC 7518, RFC 8037
+     * JWS の alg と JWE の鍵管理の alg. 名前は完全一致で見る (RSA-OAEP も RS で始まる)
+     * @param alg alg
+     * @return kty または 不明 null
+     */
+    static String kty(String alg) {
+        if (alg == null) {
+            return null;
+        }
+        switch (alg) {
+            case "RS256":
+            case "RS384":
+            case "RS512":
+            case "PS256":
+            case "PS384":
+            case "PS512":
+            case "RSA1_5":
+            case "RSA-OAEP":
+            case "RSA-OAEP-256":
+                return "RSA";
+            case "ES256":
+            case "ES384":
+            case "ES512":
+            case "ECDH-ES":
+            case "ECDH-ES+A128KW":
+            case "ECDH-ES+A192KW":
+            case "ECDH-ES+A256KW":
+                return "EC";
+            case "EdDSA":
+                return "OKP";
+            case "HS256":
+            case "HS384":
+            case "HS512":
+            case "A128KW":
+            case "A192KW":
+            case "A256KW":
+            case "A128GCMKW":
+            case "A192GCMKW":
+            case "A256GCMKW":
+            case "dir":
+                return "oct";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * alg の用途. RFC 7517 4.2
+     * @param alg alg
+     * @return JWS は sig, JWE は enc, 不明 null
+     */
+    static String use(String alg) {
+        String kty = kty(alg);
+        if (kty == null) {
+            return null;
+        } else if (alg.startsWith("RSA") || alg.startsWith("ECDH") || alg.endsWith("KW") || alg.equals("dir")) {
+            return "enc";
+        }
+        return "sig";
+    }
+
+    private final Map<String, Key> kids = new ConcurrentHashMap<>();
+    /**
+     * kid のないものも含む順番どおり
+     */
+    private final List<Key> keys = new CopyOnWriteArrayList<>();
+    /**
+     * kid なしで引いたときの alg ごとの結果. 追加で消す
+     */
+    private final Map<String, Key> algs = new ConcurrentHashMap<>();
+
+    public JWKStore() {
+    }
+
+    /**
+     * @param jwks JWK の列
+     */
+    public JWKStore(List<?> jwks) {
+        for (Object jwk : jwks) {
+            if (!(jwk instanceof JSONObject)) {
+                continue;
+            }
+            try {
+                add(JWK7517.parse((JSONObject) jwk));
+            } catch (IllegalArgumentException e) { // 知らない kty などは無視する RFC 7517 5
+            }
+        }
+    }
+
+    /**
+     * JWK Set から.
+     * @param jwks "keys" を含む JWK Set
+     * @return 索引
+     */
+    public static JWKStore of(Map<String, ?> jwks) {
+        Object keys = jwks.get("keys");
+        if (!(keys instanceof List)) {
+            throw new IllegalArgumentException("keys");
+        }
+        return new JWKStore((List<?>) keys);
+    }
+
+    /**
+     * kid と alg は JWK のものを使う.
+     * @param jwk JWK
+     * @throws IllegalArgumentException JWK ではない
+     */
+    public void add(JSONObject jwk) {
+        add(JWK7517.parse(jwk));
+    }
+
+    /**
+     * kid と alg は JWK のものを使う.
+     * @param jwk 確認済みの JWK
+     */
+    public void add(JWK7517 jwk) {
+        add(jwk.getKid(), jwk.getAlg(), jwk);
+    }
+
+    /**
+     * 鍵の追加. 同じ kid は置き換える.
+     * kty のない RSA の鍵も受け付ける.
+     * @param kid kid または null
+     * @param alg alg または null
+     * @param jwk JWK
+     */
+    public void add(String kid, String alg, JSONObject jwk) {
+        add(kid, alg, new JWK7517(jwk));
+    }
+
+    private void add(String kid, String alg, JWK7517 jwk) {
+        Key key = new Key(kid, alg, jwk);
+        if (kid != null) {
+            Key old = kids.put(kid, key);
+            if (old != null) {
+                keys.remove(old);
+            }
+        }
+        keys.add(key);
+        algs.clear();
+    }
+
+    /**
+     * @param kid kid
+     * @return 鍵 または null
+     */
+    public Key get(String kid) {
+        return kids.get(kid);
+    }
+
+    /**
+     * 検証や署名に使う鍵を選ぶ.
+     * kid がないときは alg の合う最初の鍵.
+     * @param kid JWS header の kid または null
+     * @param alg JWS header の alg
+     * @return 鍵 または null
+     */
+    @Override
+    public Key select(String kid, String alg) {
+        if (kid != null) {
+            Key key = kids.get(kid);
+            return key != null && key.accepts(alg) ? key : null;
+        }
+        if (alg == null) {
+            return null;
+        }
+        Key key = algs.get(alg);
+        if (key == null) {
+            for (Key k : keys) {
+                if (k.accepts(alg)) {
+                    algs.put(alg, k);
+                    return k;
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * RFC 7638 thumbprint で探す. kid のない鍵に.
+     * @param thumbprint SHA-256 の BASE64URL
+     * @return 鍵 または null
+     */
+    public Key thumbprint(String thumbprint) {
+        for (Key key : keys) {
+            if (key.kty != null && thumbprint.equals(key.key.thumbprint())) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * JWK Set. RFC 7517 5
+     * @param includePrivate 秘密鍵も含める
+     * @return keys
+     */
+    public JSONObject toJWKSet(boolean includePrivate) {
+        JSONArray list = new JSONArray();
+        for (Key key : keys) {
+            if (includePrivate) {
+                list.add(key.jwk);
+            } else if (!"oct".equals(key.kty)) {
+                list.add(key.key.toPublicJWK());
+            }
+        }
+        JSONObject set = new JSONObject();
+        set.put("keys", list);
+        return set;
+    }
+
+    /**
+     * @return 最初の鍵 または null
+     */
+    Key first() {
+        return keys.isEmpty() ? null : keys.get(0);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
@@ -1,6 +1,11 @@
 package net.siisise.json.jose;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
@@ -25,7 +30,7 @@ import net.siisise.security.key.RSAPublicKey;
  *
  * JWAとJWEも参照.
  * 
- * まだ Compact Headerのみ対応.
+ * JSON Serialization の general 形式と検証は JWSJSON.
  *
  * https://tools.ietf.org/html/rfc7515
  */
@@ -58,8 +63,15 @@ public class JWS7515 {
      * HMAC鍵.
      */
     private SecretKey skey;
+    /**
+     * skey の HMAC. sign のあとは初期状態に戻るので使いまわす.
+     */
+    private HMAC hmac;
 
-    private JSONArray rsakeyList;
+    /**
+     * RSA, EC, OKP 鍵.
+     */
+    private JWKStore rsakeys;
     
     public JWS7515() {
         protectedHeader.put("alg", "none");
@@ -82,6 +94,7 @@ public class JWS7515 {
      */
     public void setKey(SecretKey ks) throws NoSuchAlgorithmException {
         skey = ks;
+        hmac = null;
         if ( skey == null ) {
             protectedHeader.put("alg", "none");
         } else {
@@ -122,15 +135,26 @@ public class JWS7515 {
      * @param key 鍵
      */
     public void setRsaKey(String kid, String alg, JSONObject key) {
-        if ( rsakeyList == null ) {
-            rsakeyList = new JSONArray();
+        setJwk(kid, alg, key);
+    }
+
+    /**
+     * RSA, EC, OKP の鍵 (署名用/検証用).
+     * 秘密鍵は d を含むもの. OKP (EdDSA) は Java 15 以降.
+     * @param kid 鍵ID
+     * @param alg RS256, ES256, EdDSA など
+     * @param key JWK
+     */
+    public void setJwk(String kid, String alg, JSONObject key) {
+        if ( rsakeys == null ) {
+            rsakeys = new JWKStore();
         }
         if ( key == null ) {
             setAlg("none");
         } else {
             setAlg(alg);
             setKid(kid);
-            rsakeyList.putJSON(kid, key);
+            rsakeys.add(kid, alg, key);
         }
         jwsCompactHeader = null;
     }
@@ -147,6 +171,41 @@ public class JWS7515 {
         protectedHeader.put("alg", alg);
     }
     
+    /**
+     * JWS Unprotected Header. JSON Serialization のみ.
+     * @param name 名前
+     * @param value 値 または 消すとき null
+     */
+    public void setHeader(String name, Object value) {
+        if ( value == null ) {
+            header.remove(name);
+        } else {
+            header.put(name, value);
+        }
+    }
+
+    /**
+     * RFC 7797 payload を BASE64URL にしないとき false.
+     * crit に b64 を入れる.
+     * @param b64 BASE64URL にする
+     */
+    public void setB64(boolean b64) {
+        if ( b64 ) {
+            protectedHeader.remove("b64");
+            protectedHeader.remove("crit");
+        } else {
+            protectedHeader.put("b64", false);
+            JSONArray crit = new JSONArray();
+            crit.add("b64");
+            protectedHeader.put("crit", crit);
+        }
+        jwsCompactHeader = null;
+    }
+
+    private boolean b64() {
+        return !Boolean.FALSE.equals(protectedHeader.get("b64"));
+    }
+
     public String getKid() {
         return (String) protectedHeader.get("kid");
     }
@@ -160,12 +219,21 @@ public class JWS7515 {
      * @param keys jwks
      */
     public void setRsaPublic(JSONArray keys) {
-        rsakeyList = keys;
-        JSONObject key = (JSONObject)keys.get(0);
-        String alg = (String)key.get("alg"); // とりあえず
-//        String kid = (String)key.get("kid");
-        setAlg(alg);
-//        protectedHeader.put("kid", kid);
+        setKeys(new JWKStore(keys));
+    }
+
+    /**
+     * 解析済みの鍵 (検証用).
+     * 複数の JWS7515 で共有できる.
+     * @param keys jwks
+     */
+    public void setKeys(JWKStore keys) {
+        rsakeys = keys;
+        JWKStore.Key key = keys.first();
+        if ( key != null ) {
+            setAlg(key.getAlg()); // とりあえず
+        }
+        jwsCompactHeader = null;
     }
 
     /**
@@ -227,6 +295,9 @@ public class JWS7515 {
      * @return JWS Compact Serialization (JOSE Header.JWS Payload.JWS Signature
      */
     public String compact(byte[] payload) {
+        if ( !b64() && hasDot(payload) ) {
+            throw new IllegalArgumentException("b64:false payload has '.'"); // RFC 7797 5.2
+        }
         StringBuilder sb = new StringBuilder();
         JSONObject json = json(payload);
 
@@ -241,8 +312,18 @@ public class JWS7515 {
         return sb.toString();
     }
     
+    private static boolean hasDot(byte[] payload) {
+        for ( byte b : payload ) {
+            if ( b == '.' ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private JSONObject rsaPrivateToJwk(RSAMiniPrivateKey key) {
         JSONObject jwk = new JSONObject();
+        jwk.put("kty", "RSA");
         String n = encodeBigHex(key.getModulus());
         String d = encodeBigHex( key.getPrivateExponent() );
         jwk.put("n", n);
@@ -252,6 +333,7 @@ public class JWS7515 {
 
     private JSONObject rsaPublicToJwk(RSAPublicKey key) {
         JSONObject jwk = new JSONObject();
+        jwk.put("kty", "RSA");
         String n = encodeBigHex(key.getModulus());
         String e = encodeBigHex( key.getPublicExponent());
         jwk.put("n", n);
@@ -260,46 +342,63 @@ public class JWS7515 {
     }
 
     /**
-     * RSASSA_PKCS1_v1_5 sign
-     * RSASSA-PSS
-     * @param data
-     * @return 
+     * 鍵を設定した署名/検証.
+     * @param alg alg
+     * @param kid kid または null
+     * @param sign 署名用
+     * @return 初期化済み
      */
-    private byte[] signRSASSA(byte[] data) {
-        String alg = getAlg(); //(String) protectedHeader.get("alg");
-        String kid = getKid();
-        JWA7518.RSASSA ssa = JWA7518.toRSASSA(alg);
-        JSONObject jwk = selectKey(kid); // 秘密鍵を指しておいて
-        ssa.initPrivate(jwk);
-        ssa.update(data);
-        return ssa.sign();
+    private JWA7518.SignAlgorithm signer(String alg, String kid, boolean sign) {
+        if ( alg.startsWith("HS") ) {
+            if ( skey == null ) {
+                throw new SecurityException("鍵なし");
+            }
+            return new JWA7518.HS(hmac());
+        } else if ( alg.startsWith("RS") || alg.startsWith("PS")) {
+            // RSASSA_PKCS1_v1_5, RSASSA-PSS
+            JWA7518.RSASSA ssa = JWA7518.rsassa(alg);
+            JWKStore.Key key = selectKey(kid, alg);
+            if ( sign ) {
+                ssa.init(key.rsaPrivate());
+            } else {
+                ssa.init(key.rsaPublic());
+            }
+            return ssa;
+        } else if ( alg.startsWith("ES") || "EdDSA".equals(alg)) {
+            JWA7518.JCASign sig = JWA7518.jca(alg);
+            JWKStore.Key key = selectKey(kid, alg);
+            if ( sign ) {
+                sig.init(key.privateKey());
+            } else {
+                sig.init(key.publicKey());
+            }
+            return sig;
+        }
+        throw new SecurityException("alg:" + alg);
     }
 
-    private byte[] signHMAC(byte[] data) {
-        HMAC hmac = new HMAC(skey);
-        hmac.update(data);
-        return hmac.sign();
+    private HMAC hmac() {
+        if ( hmac == null ) {
+            hmac = new HMAC(skey);
+        }
+        return hmac;
     }
-    
+
     byte[] sign(String alg, byte[] s) {
-        if ( skey != null && "HS256".equals(alg) || "HS384".equals(alg) || "HS512".equals(alg)) {
-            return signHMAC(s);
-        } else if ( alg.startsWith("RS") || alg.startsWith("PS")) {
-            return signRSASSA(s);
-        } else if (!"none".equals(alg)) {
-            throw new SecurityException("alg:" + alg);
+        if ( "none".equals(alg) ) {
+            return null;
         }
-        return null;
+        JWA7518.SignAlgorithm sig = signer(alg, getKid(), true);
+        sig.update(s);
+        return sig.sign();
     }
 
-    void validateHS(String[] sp) {
-        BASE64 b64 = new BASE64(BASE64.URL, 0);
-            // HS256 HS384 HS512の検証
-        HMAC hmac = new HMAC(skey);
-        hmac.update((sp[0] + "." + sp[1]).getBytes(UTF8));
+    void validateHS(JWSCompact jws) {
+        // HS256 HS384 HS512の検証
+        HMAC hmac = hmac();
 
         // 違うJSONな場合もあるのでheaderは比較しない方がいい
-        if (!hmac.verify(b64.decode(sp[2]))) {
+        if (!jws.verify(hmac)) {
             throw new SecurityException();
         }
     }
@@ -307,23 +406,32 @@ public class JWS7515 {
     /**
      * RSASSA-PKCS1-v1_5 using SHA-XXX または
      * RSASSA-PSS using SHA-XXX and MGF1 with SHA-XXX 検証.
-     * @param sp
-     * @param jwsHeader alg, kid
+     * @param jws 分解済み header の alg, kid を使う
      */
-    void validateRSASSA(String[] sp, JSONObject jwsHeader) {
-        String alg = (String)jwsHeader.get("alg");
-        BASE64 b64 = new BASE64(BASE64.URL, 0);
-        byte[] m = (sp[0] + "." + sp[1]).getBytes(UTF8);
-        byte[] s = b64.decode(sp[2]);
-        JWA7518.RSASSA ssa = JWA7518.toRSASSA(alg);
-        JSONObject jwk = selectKey((String)jwsHeader.get("kid"));
-        ssa.initPublic(jwk);
-        ssa.update(m);
-        if (!ssa.verify(s)) {
+    void validateRSASSA(JWSCompact jws) {
+        String alg = jws.alg();
+        JWA7518.RSASSA ssa = JWA7518.rsassa(alg);
+        JWKStore.Key key = selectKey((String)jws.header().get("kid"), alg);
+        ssa.init(key.rsaPublic());
+        if (!jws.verify(ssa)) {
             throw new SecurityException();
         }
     }
     
+    /**
+     * ECDSA using P-XXX and SHA-XXX または EdDSA 検証.
+     * @param jws 分解済み header の alg, kid を使う
+     */
+    void validateJCA(JWSCompact jws) {
+        String alg = jws.alg();
+        JWA7518.JCASign sig = JWA7518.jca(alg);
+        JWKStore.Key key = selectKey((String)jws.header().get("kid"), alg);
+        sig.init(key.publicKey());
+        if (!jws.verify(sig)) {
+            throw new SecurityException();
+        }
+    }
+
     /**
      * 
      * @param n
@@ -358,7 +466,7 @@ public class JWS7515 {
             jwso.put("header", JSON.copy(header));
         }
         if (payload != null) {
-            jwso.put("payload", b64.encode(payload));
+            jwso.put("payload", b64() ? b64.encode(payload) : new String(payload, UTF8));
         }
         String alg = (String) protectedHeader.get("alg");
         String[] sp = new String[2];
@@ -391,40 +499,145 @@ public class JWS7515 {
      * @return payload
      */
     public byte[] validateCompact(String jws) {
-        String[] sp = jws.split("\\.");
-        if (sp.length != 3) {
-            throw new SecurityException();
-        }
-        BASE64 b64 = new BASE64(BASE64.URL, 0);
-        JSONObject jwsHeader = (JSONObject)JSON.parseWrap(b64.decode(sp[0]));
-        if (jwsHeader == null) {
-            throw new SecurityException("header parse exception");
+        return validate(jws).payload();
+    }
+
+    /**
+     * 分解して検証する.
+     * @param jws 全体
+     * @return 検証済み
+     */
+    private JWSCompact validate(String jws) {
+        JWSCompact compact = JWSCompact.parse(jws);
+        String alg = checkHeader(compact);
+        if ( alg.startsWith("HS")) {
+            validateHS(compact);
+        } else if ( alg.startsWith("RS") || alg.startsWith("PS")) {
+            validateRSASSA(compact);
+        } else if ( alg.startsWith("ES") || alg.equals("EdDSA")) {
+            validateJCA(compact);
+        } else if ( alg.equals("none") ) {
+            if ( !compact.unsigned() ) {
+                throw new SecurityException();
+            }    
+        } else {
+            throw new SecurityException("unknown alg:" + alg);
         }
+        return compact;
+    }
+
+    /**
+     * typ と alg が設定どおりか.
+     * @param compact 分解したもの
+     * @return alg
+     */
+    private String checkHeader(JWSCompact compact) {
+        JSONObject jwsHeader = compact.header();
         String typ = (String) jwsHeader.get("typ");
         String alg = (String) jwsHeader.get("alg"); // noneとかRSをHSに変える脆弱性があるので要注意
         
         if ( protectedHeader.isEmpty() ) { // HMACはkeyが未設定だといろいろできない
             throw new SecurityException("keyが未設定な exception");
         }
-        if (typ == null || !protectedHeader.get("typ").equals(typ)) {
+        Object ptyp = protectedHeader.get("typ");
+        if (ptyp == null ? typ != null : !ptyp.equals(typ)) { // typ を指定しないときは typ なし
             throw new SecurityException("JWS header typ exception　:" + typ);
         }
         // algが一致することを確認
         if (alg == null || !alg.equals(protectedHeader.get("alg"))) {
             throw new SecurityException(typ + " header alg exception");
         }
-        if ( alg.startsWith("HS")) {
-            validateHS(sp);
-        } else if ( alg.startsWith("RS") || alg.startsWith("PS")) {
-            validateRSASSA(sp, jwsHeader);
-        } else if ( alg.equals("none") ) {
-            if ( !sp[2].isEmpty() ) {
-                throw new SecurityException();
-            }    
-        } else {
-            throw new SecurityException("unknown alg:" + alg);
+        compact.b64(); // crit の確認
+        return alg;
+    }
+
+    /**
+     * payload を含まない JWS. RFC 7515 Appendix F
+     * payload は読みながら署名するので大きくてもメモリに置かない.
+     * b64:false (RFC 7797) のときは BASE64URL にしない.
+     * @param payload 署名したいデータ
+     * @return header..signature
+     * @throws IOException 読めない
+     */
+    public String detached(InputStream payload) throws IOException {
+        return detached(Channels.newChannel(payload));
+    }
+
+    /**
+     * payload を含まない JWS. RFC 7515 Appendix F
+     * @param payload 署名したいデータ
+     * @return header..signature
+     * @throws IOException 読めない
+     */
+    public String detached(ReadableByteChannel payload) throws IOException {
+        String alg = getAlg();
+        if ( "none".equals(alg) ) {
+            throw new SecurityException("alg:none");
+        }
+        String h = compactHeader();
+        JWA7518.SignAlgorithm sig = signer(alg, getKid(), true);
+        sig.update((h + ".").getBytes(StandardCharsets.US_ASCII));
+        stream(sig, payload, b64());
+        return h + ".." + new BASE64(BASE64.URL, 0).encode(sig.sign());
+    }
+
+    /**
+     * detached の検証.
+     * @param jws header..signature
+     * @param payload 別に送られた payload
+     * @throws IOException 読めない
+     * @throws SecurityException 検証できない
+     */
+    public void validateDetached(String jws, InputStream payload) throws IOException {
+        validateDetached(jws, Channels.newChannel(payload));
+    }
+
+    /**
+     * detached の検証.
+     * @param jws header..signature
+     * @param payload 別に送られた payload
+     * @throws IOException 読めない
+     * @throws SecurityException 検証できない
+     */
+    public void validateDetached(String jws, ReadableByteChannel payload) throws IOException {
+        JWSCompact compact = JWSCompact.parse(jws);
+        if ( !compact.detached() ) {
+            throw new SecurityException("not detached");
+        }
+        String alg = checkHeader(compact);
+        if ( alg.equals("none") ) {
+            throw new SecurityException("alg:none");
+        }
+        JWA7518.SignAlgorithm sig = signer(alg, (String) compact.header().get("kid"), false);
+        sig.update(compact.src, 0, compact.dot2); // header と '.'
+        stream(sig, payload, compact.b64());
+        if ( !sig.verify(compact.signature()) ) {
+            throw new SecurityException();
+        }
+    }
+
+    /**
+     * 読みながら署名/検証に渡す.
+     * BASE64URL は3バイトずつなので端数は次に回す.
+     */
+    private static void stream(JWA7518.SignAlgorithm sig, ReadableByteChannel in, boolean b64) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8190); // 3の倍数
+        byte[] enc = b64 ? new byte[8190 / 3 * 4 + 4] : null;
+        while ( in.read(buf) >= 0 ) {
+            if ( !b64 ) {
+                sig.update(buf.array(), 0, buf.position());
+                buf.clear();
+                continue;
+            }
+            int len = buf.position() / 3 * 3;
+            sig.update(enc, 0, JWSCompact.encode(buf.array(), 0, len, enc));
+            buf.flip();
+            buf.position(len);
+            buf.compact();
+        }
+        if ( b64 && buf.position() > 0 ) {
+            sig.update(enc, 0, JWSCompact.encode(buf.array(), 0, buf.position(), enc));
         }
-        return b64.decode(sp[1]);
     }
 
     /**
@@ -433,13 +646,7 @@ public class JWS7515 {
      * @return 
      */
     public JSONValue header(String jws) {
-        validateCompact(jws);
-        String[] sp = jws.split("\\.");
-        if (sp.length != 3) {
-            throw new SecurityException("形式不明");
-        }
-        BASE64 b64 = new BASE64(BASE64.URL, 0);
-        return JSON.parseWrap(b64.decode(sp[0]));
+        return validate(jws).header();
     }
 
     public byte[] payload(String jws) {
@@ -463,13 +670,11 @@ public class JWS7515 {
         return o;
     }
 
-    private JSONObject selectKey(String kid) {
-        for ( Object k : rsakeyList ) {
-            JSONObject key = (JSONObject)k;
-            if ( kid.equals(key.get("kid"))) {
-                return key;
-            }
+    private JWKStore.Key selectKey(String kid, String alg) {
+        JWKStore.Key key = rsakeys == null ? null : rsakeys.select(kid, alg);
+        if ( key == null ) {
+            throw new SecurityException("鍵なし");
         }
-        throw new SecurityException("鍵なし");
+        return key;
     }
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import net.siisise.json.JSON;
+import net.siisise.json.JSONObject;
+import net.siisise.json.JSONValue;
+import net.siisise.security.mac.HMAC;
+
+/**
+ * JWS Compact Serialization の分解.
+ * '.' の位置だけ覚えて、署名対象は元のバイト列のまま MAC や署名に渡す.
+ * RFC 7797 の b64:false と payload のない detached 形式も扱う.
+ * header は1回だけ解析する.
+ */
+final class JWSCompact {
+
+    /**
+     * BASE64URL のデコード表. 使えない文字は -1
+     */
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < chars.length(); i++) {
+            DECODE[chars.charAt(i)] = (byte) i;
+        }
+    }
+
+    /**
+     * 署名などを一時的にデコードする場所.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[512]);
+
+    /**
+     * UTF-8. payload が b64:false のとき以外は ASCII
+     */
+    final byte[] src;
+    /**
+     * 1つめと2つめの '.'
+     */
+    final int dot1;
+    final int dot2;
+    private final JSONObject header;
+
+    private JWSCompact(byte[] src, int dot1, int dot2, JSONObject header) {
+        this.src = src;
+        this.dot1 = dot1;
+        this.dot2 = dot2;
+        this.header = header;
+    }
+
+    /**
+     * 分解して header だけ解析する.
+     * @param jws JWS Compact Serialization
+     * @return 分解したもの
+     * @throws SecurityException 形式が違う
+     */
+    static JWSCompact parse(String jws) {
+        byte[] src = jws.getBytes(StandardCharsets.UTF_8); // b64:false の payload 以外は ASCII
+        int d1 = indexOf(src, 0);
+        int d2 = d1 < 0 ? -1 : indexOf(src, d1 + 1);
+        if (d1 < 0 || d2 < 0 || indexOf(src, d2 + 1) >= 0) {
+            throw new SecurityException("not compact");
+        }
+        byte[] h = decode(src, 0, d1);
+        JSONValue header;
+        try {
+            header = JSON.parseWrap(h);
+        } catch (RuntimeException e) {
+            throw new SecurityException("header parse exception", e);
+        }
+        if (!(header instanceof JSONObject)) {
+            throw new SecurityException("header parse exception");
+        }
+        return new JWSCompact(src, d1, d2, (JSONObject) header);
+    }
+
+    private static int indexOf(byte[] src, int from) {
+        for (int i = from; i < src.length; i++) {
+            if (src[i] == '.') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    JSONObject header() {
+        return header;
+    }
+
+    /**
+     * RFC 7797 b64.
+     * crit に b64 がないものは使えない.
+     * @return payload が BASE64URL
+     * @throws SecurityException crit がない
+     */
+    boolean b64() {
+        return b64(header);
+    }
+
+    static boolean b64(JSONObject header) {
+        Object crit = header.get("crit");
+        if (crit != null) { // 知らない拡張は使えない RFC 7515 4.1.11
+            if (!(crit instanceof List) || ((List<?>) crit).isEmpty()) {
+                throw new SecurityException("crit");
+            }
+            for (Object c : (List<?>) crit) {
+                if (!"b64".equals(c)) {
+                    throw new SecurityException("crit:" + c);
+                }
+            }
+        }
+        Object b64 = header.get("b64");
+        if (b64 == null) {
+            return true;
+        }
+        if (crit == null || !(b64 instanceof Boolean)) {
+            throw new SecurityException("b64");
+        }
+        return (Boolean) b64;
+    }
+
+    /**
+     * payload がない detached 形式. RFC 7515 Appendix F
+     */
+    boolean detached() {
+        return dot2 == dot1 + 1;
+    }
+
+    String alg() {
+        Object alg = header.get("alg");
+        return alg instanceof String ? (String) alg : null;
+    }
+
+    /**
+     * @return デコードした payload, b64:false のときはそのまま
+     */
+    byte[] payload() {
+        if (!b64()) {
+            return Arrays.copyOfRange(src, dot1 + 1, dot2);
+        }
+        return decode(src, dot1 + 1, dot2 - dot1 - 1);
+    }
+
+    /**
+     * @return 署名が空
+     */
+    boolean unsigned() {
+        return dot2 + 1 == src.length;
+    }
+
+    /**
+     * @return デコードした署名
+     */
+    byte[] signature() {
+        return decode(src, dot2 + 1, src.length - dot2 - 1);
+    }
+
+    /**
+     * HMAC の検証. 署名は一時領域にデコードする.
+     * @param mac 初期化済みの HMAC
+     * @return 一致
+     */
+    boolean verify(HMAC mac) {
+        mac.update(src, 0, dot2);
+        byte[] m = mac.sign();
+        int len = decodedLength(src.length - dot2 - 1);
+        if (len != m.length) {
+            return false;
+        }
+        byte[] s = scratch(len);
+        if (decode(src, dot2 + 1, src.length - dot2 - 1, s, 0) != len) {
+            return false;
+        }
+        int diff = 0; // 時間を一定に
+        for (int i = 0; i < len; i++) {
+            diff |= m[i] ^ s[i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * RSASSA などの検証.
+     * @param ssa 初期化済み
+     * @return 一致
+     */
+    boolean verify(JWA7518.RSASSA ssa) {
+        ssa.update(src, 0, dot2);
+        return ssa.verify(signature());
+    }
+
+    /**
+     * ECDSA, EdDSA の検証.
+     * @param sig 初期化済み
+     * @return 一致
+     */
+    boolean verify(JWA7518.JCASign sig) {
+        sig.update(src, 0, dot2);
+        return sig.verify(signature());
+    }
+
+    private static byte[] scratch(int len) {
+        byte[] s = SCRATCH.get();
+        if (s.length < len) {
+            s = new byte[len];
+            SCRATCH.set(s);
+        }
+        return s;
+    }
+
+    private static final byte[] ENCODE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * BASE64URL (padding なし) のエンコード.
+     * 続けて使うときは3の倍数ずつ.
+     * @param dst 出力先 length / 3 * 4 + 3 以上
+     * @return 出力した長さ
+     */
+    static int encode(byte[] src, int offset, int length, byte[] dst) {
+        int o = 0;
+        int end = offset + length;
+        int i = offset;
+        for (; i + 3 <= end; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[o++] = ENCODE[bits >> 18];
+            dst[o++] = ENCODE[(bits >> 12) & 0x3f];
+            dst[o++] = ENCODE[(bits >> 6) & 0x3f];
+            dst[o++] = ENCODE[bits & 0x3f];
+        }
+        if (end - i == 2) {
+            int bits = (src[i] & 0xff) << 8 | (src[i + 1] & 0xff);
+            dst[o++] = ENCODE[bits >> 10];
+            dst[o++] = ENCODE[(bits >> 4) & 0x3f];
+            dst[o++] = ENCODE[(bits << 2) & 0x3f];
+        } else if (end - i == 1) {
+            int bits = src[i] & 0xff;
+            dst[o++] = ENCODE[bits >> 2];
+            dst[o++] = ENCODE[(bits << 4) & 0x3f];
+        }
+        return o;
+    }
+
+    static int decodedLength(int len) {
+        return len / 4 * 3 + (len % 4 == 0 ? 0 : len % 4 - 1);
+    }
+
+    /**
+     * BASE64URL (padding なし) のデコード.
+     * @throws SecurityException 使えない文字
+     */
+    static byte[] decode(byte[] src, int offset, int length) {
+        byte[] dst = new byte[decodedLength(length)];
+        decode(src, offset, length, dst, 0);
+        return dst;
+    }
+
+    /**
+     * BASE64URL (padding なし) のデコード.
+     * @param dst 出力先 decodedLength 以上
+     * @return 出力した長さ
+     * @throws SecurityException 使えない文字
+     */
+    static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (length % 4 == 1) {
+            throw new SecurityException("BASE64URL length");
+        }
+        int o = dstOffset;
+        int bits = 0;
+        int n = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int c = src[i] & 0xff;
+            int d = c < 128 ? DECODE[c] : -1;
+            if (d < 0) {
+                throw new SecurityException("BASE64URL");
+            }
+            bits = (bits << 6) | d;
+            if (++n == 4) {
+                dst[o++] = (byte) (bits >> 16);
+                dst[o++] = (byte) (bits >> 8);
+                dst[o++] = (byte) bits;
+                bits = 0;
+                n = 0;
+            }
+        }
+        if (n == 3) {
+            dst[o++] = (byte) (bits >> 10);
+            dst[o++] = (byte) (bits >> 2);
+        } else if (n == 2) {
+            dst[o++] = (byte) (bits >> 4);
+        }
+        return o - dstOffset;
+    }
+}
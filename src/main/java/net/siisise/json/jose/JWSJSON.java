@@ -0,0 +1,446 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import net.siisise.json.JSON;
+import net.siisise.json.JSONArray;
+import net.siisise.json.JSONObject;
+import net.siisise.json.JSONValue;
+
+/**
+ * JWS JSON Serialization. RFC 7515 7.2
+ * general (signatures が複数) と flattened の両方を読み書きする.
+ * 署名が複数のときは順に検証する. Executor を渡すとそこで並列に検証する.
+ * RFC 7797 の b64:false も扱う.
+ */
+public final class JWSJSON {
+
+    /**
+     * 署名1つ分.
+     */
+    public static final class Signature {
+
+        /**
+         * BASE64URL のまま. ないときは空文字列
+         */
+        final String protectedB64;
+        final JSONObject protectedHeader;
+        /**
+         * unprotected header または null
+         */
+        final JSONObject header;
+        final String signatureB64;
+
+        Signature(String protectedB64, JSONObject header, String signatureB64) {
+            this.protectedB64 = protectedB64 == null ? "" : protectedB64;
+            if (protectedB64 == null || protectedB64.isEmpty()) {
+                protectedHeader = new JSONObject();
+            } else {
+                JSONValue h = JSON.parseWrap(decode(protectedB64));
+                if (!(h instanceof JSONObject)) {
+                    throw new SecurityException("protected");
+                }
+                protectedHeader = (JSONObject) h;
+            }
+            this.header = header;
+            if (header != null) {
+                if (header.containsKey("crit") || header.containsKey("b64")) { // RFC 7515 4.1.11, RFC 7797 3 protected のみ
+                    throw new SecurityException("unprotected crit");
+                }
+                for (Object name : header.keySet()) { // 7.2.1 重複は不可
+                    if (protectedHeader.containsKey(name)) {
+                        throw new SecurityException("duplicate header:" + name);
+                    }
+                }
+            }
+            if (signatureB64 == null) {
+                throw new SecurityException("signature");
+            }
+            this.signatureB64 = signatureB64;
+            alg(); // 型だけ先に見る
+            kid();
+        }
+
+        /**
+         * protected を優先してヘッダの値.
+         * @param name 名前
+         * @return 値 または null
+         */
+        public Object get(String name) {
+            Object v = protectedHeader.get(name);
+            return v == null && header != null ? header.get(name) : v;
+        }
+
+        /**
+         * @return alg または null
+         * @throws SecurityException 文字列でない
+         */
+        public String alg() {
+            return string("alg");
+        }
+
+        /**
+         * @return kid または null
+         * @throws SecurityException 文字列でない
+         */
+        public String kid() {
+            return string("kid");
+        }
+
+        private String string(String name) {
+            Object v = get(name);
+            if (v != null && !(v instanceof String)) {
+                throw new SecurityException(name);
+            }
+            return (String) v;
+        }
+
+        public JSONObject getProtectedHeader() {
+            return protectedHeader;
+        }
+
+        /**
+         * @return unprotected header または null
+         */
+        public JSONObject getHeader() {
+            return header;
+        }
+
+        byte[] signature() {
+            return decode(signatureB64);
+        }
+
+        JSONObject toJSON(JSONObject o) {
+            if (!protectedB64.isEmpty()) {
+                o.put("protected", protectedB64);
+            }
+            if (header != null) {
+                o.put("header", header);
+            }
+            o.put("signature", signatureB64);
+            return o;
+        }
+    }
+
+    /**
+     * BASE64URL, b64:false のときはそのまま
+     */
+    private final String payloadB64;
+    private final List<Signature> signatures;
+    /**
+     * RFC 7797 すべての署名で同じ
+     */
+    private final boolean b64;
+
+    private JWSJSON(String payloadB64, List<Signature> signatures) {
+        this.payloadB64 = payloadB64;
+        this.signatures = Collections.unmodifiableList(signatures);
+        b64 = JWSCompact.b64(signatures.get(0).protectedHeader);
+        for (Signature sig : signatures) {
+            if (JWSCompact.b64(sig.protectedHeader) != b64) {
+                throw new SecurityException("b64");
+            }
+        }
+    }
+
+    private static byte[] decode(String b64) {
+        byte[] src = b64.getBytes(StandardCharsets.ISO_8859_1);
+        return JWSCompact.decode(src, 0, src.length);
+    }
+
+    /**
+     * 文字列から.
+     * @param json general または flattened
+     * @return 分解したもの
+     */
+    public static JWSJSON parse(String json) {
+        JSONValue o = JSON.parseWrap(json);
+        if (!(o instanceof JSONObject)) {
+            throw new SecurityException("JWS JSON");
+        }
+        return parse((JSONObject) o);
+    }
+
+    /**
+     * general と flattened のどちらでも.
+     * @param json JWS JSON Serialization
+     * @return 分解したもの
+     */
+    public static JWSJSON parse(JSONObject json) {
+        String payload = string(json, "payload");
+        if (payload == null) {
+            throw new SecurityException("payload");
+        }
+        List<Signature> sigs = new ArrayList<>();
+        if (json.containsKey("signatures")) {
+            if (json.containsKey("signature") || json.containsKey("protected") || json.containsKey("header")) { // 7.2.2 混ぜない
+                throw new SecurityException("general and flattened");
+            }
+            JSONValue list = json.getJSON("signatures");
+            if (!(list instanceof JSONArray)) {
+                throw new SecurityException("signatures");
+            }
+            for (Object s : (JSONArray) list) {
+                JSONValue so = JSON.valueOf(s);
+                if (!(so instanceof JSONObject)) {
+                    throw new SecurityException("signatures");
+                }
+                sigs.add(signature((JSONObject) so));
+            }
+            if (sigs.isEmpty()) {
+                throw new SecurityException("signatures");
+            }
+        } else {
+            sigs.add(signature(json));
+        }
+        return new JWSJSON(payload, sigs);
+    }
+
+    private static Signature signature(JSONObject o) {
+        JSONValue header = o.getJSON("header");
+        if (header != null && !(header instanceof JSONObject)) {
+            throw new SecurityException("header");
+        }
+        return new Signature(string(o, "protected"), (JSONObject) header, string(o, "signature"));
+    }
+
+    /**
+     * 文字列の値.
+     * @param o JSON
+     * @param name 名
+     * @return 値 または null
+     * @throws SecurityException 文字列でない
+     */
+    private static String string(JSONObject o, String name) {
+        Object v = o.get(name);
+        if (v != null && !(v instanceof String)) {
+            throw new SecurityException(name);
+        }
+        return (String) v;
+    }
+
+    /**
+     * 署名して作る.
+     * それぞれの JWS7515 の鍵と header を使う.
+     * @param payload 署名したいデータ
+     * @param signers 署名するもの 1つ以上
+     * @return 署名済み
+     */
+    public static JWSJSON sign(byte[] payload, List<JWS7515> signers) {
+        if (signers.isEmpty()) {
+            throw new IllegalArgumentException("signers");
+        }
+        String p = null;
+        List<Signature> sigs = new ArrayList<>();
+        for (JWS7515 signer : signers) {
+            JSONObject o = signer.json(payload);
+            String sp = (String) o.get("payload");
+            if (p != null && !p.equals(sp)) {
+                throw new IllegalArgumentException("b64");
+            }
+            p = sp;
+            sigs.add(signature(o));
+        }
+        return new JWSJSON(p, sigs);
+    }
+
+    public List<Signature> getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * 検証前のもの.
+     * @return payload
+     */
+    public byte[] payload() {
+        return b64 ? decode(payloadB64) : payloadB64.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 署名の対象. ASCII(BASE64URL(protected) || '.' || BASE64URL(payload))
+     * b64:false のときは payload をそのまま.
+     */
+    byte[] signingInput(Signature sig) {
+        return (sig.protectedB64 + "." + payloadB64).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 1つの署名の検証.
+     * @param verifier 鍵と alg
+     * @param index 署名の位置
+     * @return 一致
+     */
+    public boolean verify(JWTVerifier verifier, int index) {
+        Signature sig = signatures.get(index);
+        try {
+            return verifier.verify(sig.protectedHeader, sig.alg(), sig.kid(), signingInput(sig), sig.signature());
+        } catch (SecurityException e) { // 鍵なし, alg 違いなど
+            return false;
+        }
+    }
+
+    /**
+     * どれか1つが正しければ payload を返す.
+     * 見つかったら残りの検証はしない.
+     * @param verifier 鍵と alg
+     * @return payload
+     * @throws SecurityException 正しい署名がない
+     */
+    public byte[] validate(JWTVerifier verifier) {
+        if (verifyAny(verifier) < 0) {
+            throw new SecurityException("signature");
+        }
+        return payload();
+    }
+
+    /**
+     * 正しい署名を1つ探す. 前から順に.
+     * @param verifier 鍵と alg
+     * @return 署名の位置 または なし -1
+     */
+    public int verifyAny(JWTVerifier verifier) {
+        for (int n = 0; n < signatures.size(); n++) {
+            if (verify(verifier, n)) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 正しい署名を1つ探す. 複数のときは executor で並列.
+     * 見つかったら残りは cancel する.
+     * @param verifier 鍵と alg
+     * @param executor 検証するところ
+     * @return 署名の位置 または なし -1
+     * @throws SecurityException 割り込まれた
+     */
+    public int verifyAny(JWTVerifier verifier, Executor executor) {
+        int size = signatures.size();
+        if (size == 1) {
+            return verifyAny(verifier);
+        }
+        CompletionService<Integer> cs = new ExecutorCompletionService<>(executor);
+        List<Future<Integer>> fs = new ArrayList<>(size);
+        try {
+            for (int n = 0; n < size; n++) {
+                int i = n;
+                fs.add(cs.submit(() -> verify(verifier, i) ? i : -1));
+            }
+            for (int n = 0; n < size; n++) {
+                int i = cs.take().get();
+                if (i >= 0) {
+                    return i;
+                }
+            }
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityException(e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } finally {
+            for (Future<Integer> f : fs) {
+                f.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * すべての署名を順に検証する.
+     * @param verifier 鍵と alg
+     * @return それぞれの結果
+     */
+    public boolean[] verifyAll(JWTVerifier verifier) {
+        boolean[] r = new boolean[signatures.size()];
+        for (int n = 0; n < r.length; n++) {
+            r[n] = verify(verifier, n);
+        }
+        return r;
+    }
+
+    /**
+     * すべての署名を executor で並列に検証する.
+     * @param verifier 鍵と alg
+     * @param executor 検証するところ
+     * @return それぞれの結果
+     */
+    public boolean[] verifyAll(JWTVerifier verifier, Executor executor) {
+        boolean[] r = new boolean[signatures.size()];
+        if (r.length == 1) {
+            return verifyAll(verifier);
+        }
+        CompletableFuture<?>[] fs = new CompletableFuture<?>[r.length];
+        for (int n = 0; n < r.length; n++) {
+            int i = n;
+            fs[n] = CompletableFuture.runAsync(() -> r[i] = verify(verifier, i), executor);
+        }
+        try {
+            CompletableFuture.allOf(fs).join(); // join のあとは r が見える
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+        return r;
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    /**
+     * general JSON Serialization.
+     * @return payload と signatures
+     */
+    public JSONObject toGeneral() {
+        JSONObject o = new JSONObject();
+        o.put("payload", payloadB64);
+        JSONArray list = new JSONArray();
+        for (Signature sig : signatures) {
+            list.add(sig.toJSON(new JSONObject()));
+        }
+        o.put("signatures", list);
+        return o;
+    }
+
+    /**
+     * flattened JSON Serialization. 署名は1つだけ.
+     * @return payload, protected, header, signature
+     */
+    public JSONObject toFlattened() {
+        if (signatures.size() != 1) {
+            throw new IllegalStateException("signatures:" + signatures.size());
+        }
+        JSONObject o = new JSONObject();
+        o.put("payload", payloadB64);
+        return signatures.get(0).toJSON(o);
+    }
+}
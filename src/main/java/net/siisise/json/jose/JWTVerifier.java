@@ -0,0 +1,249 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import net.siisise.json.JSON;
+import net.siisise.json.JSONObject;
+import net.siisise.json.JSONValue;
+import net.siisise.security.mac.HMAC;
+
+/**
+ * JWS Compact Serialization の JWT 検証.
+ * JSON Serialization は JWSJSON から使う.
+ * 作ったあとは変更しないので複数のスレッドから同時に使える.
+ * 状態を持つ HMAC, RSASSA, ECDSA, EdDSA はスレッドごとに作って使いまわす.
+ * EdDSA は Java 15 以降の JCA を使う.
+ *
+ * alg は指定したものだけ受け付ける. none は受け付けない.
+ */
+public final class JWTVerifier {
+
+    private static final Set<String> HS = new HashSet<>(Arrays.asList("HS256", "HS384", "HS512"));
+    private static final Set<String> RSA = new HashSet<>(Arrays.asList("RS256", "RS384", "RS512", "PS256", "PS384", "PS512"));
+    private static final Set<String> JCA = new HashSet<>(Arrays.asList("ES256", "ES384", "ES512", "EdDSA"));
+
+    private final String typ;
+    private final Set<String> algs;
+    private final JWKSource keys;
+    private final SecretKey hkey;
+    /**
+     * HMAC鍵で使う alg
+     */
+    private final String hmacAlg;
+    /**
+     * HMAC は鍵ごとなので verifier ごと
+     */
+    private final ThreadLocal<HMAC> hmac;
+
+    /**
+     * @param typ typ の指定 JWT など または 確認しないとき null
+     * @param algs 受け付ける alg
+     * @param keys RSA, EC, OKP 鍵 または null
+     * @param hmacKey HMAC鍵 または null, algs の HS は1つだけ使う
+     */
+    public JWTVerifier(String typ, Collection<String> algs, JWKSource keys, byte[] hmacKey) {
+        this.typ = typ;
+        Set<String> as = new HashSet<>(algs);
+        as.remove("none");
+        this.algs = Collections.unmodifiableSet(as);
+        this.keys = keys;
+        if (hmacKey != null) {
+            hmacAlg = as.contains("HS512") ? "HS512" : as.contains("HS384") ? "HS384" : "HS256";
+            hkey = new SecretKeySpec(hmacKey.clone(), "HMAC-SHA-" + hmacAlg.substring(2));
+            hmac = ThreadLocal.withInitial(() -> new HMAC(hkey));
+        } else {
+            hmacAlg = null;
+            hkey = null;
+            hmac = null;
+        }
+    }
+
+    /**
+     * HMAC の JWT 検証.
+     * @param alg HS256 など
+     * @param key HMAC鍵
+     * @return verifier
+     */
+    public static JWTVerifier hmac(String alg, byte[] key) {
+        if (!HS.contains(alg)) {
+            throw new IllegalArgumentException(alg);
+        }
+        return new JWTVerifier("JWT", Collections.singleton(alg), null, key);
+    }
+
+    /**
+     * RSA の JWT 検証. OpenID Connect の ID Token など.
+     * @param keys jwks
+     * @param algs 受け付ける alg, 空のときは RS256
+     * @return verifier
+     */
+    public static JWTVerifier rsa(JWKSource keys, Collection<String> algs) {
+        Set<String> as = new HashSet<>(algs);
+        as.retainAll(RSA);
+        if (as.isEmpty()) {
+            as.add("RS256");
+        }
+        return new JWTVerifier(null, as, keys, null);
+    }
+
+    /**
+     * 公開鍵の JWT 検証. RSA, ECDSA, EdDSA
+     * EdDSA は Java 15 以降. JCA にないときは algs から外す.
+     * @param keys jwks
+     * @param algs 受け付ける alg, 空のときは RS256
+     * @return verifier
+     */
+    public static JWTVerifier of(JWKSource keys, Collection<String> algs) {
+        Set<String> as = new HashSet<>();
+        for (String alg : algs) {
+            if ("EdDSA".equals(alg) && !JWA7518.EdDSA.AVAILABLE) {
+                continue;
+            }
+            if (RSA.contains(alg) || JCA.contains(alg)) {
+                as.add(alg);
+            }
+        }
+        if (as.isEmpty()) {
+            as.add("RS256");
+        }
+        return new JWTVerifier(null, as, keys, null);
+    }
+
+    public Set<String> getAlgs() {
+        return algs;
+    }
+
+    /**
+     * 署名を検証して payload を返す.
+     * @param jws JWS Compact Serialization
+     * @return payload
+     * @throws SecurityException 検証できないとき
+     */
+    public byte[] validate(String jws) {
+        JWSCompact compact = JWSCompact.parse(jws);
+        JSONObject header = compact.header();
+        String alg = compact.alg();
+        if (alg == null || !algs.contains(alg)) { // none や HS/RS の取り違え
+            throw new SecurityException("alg:" + alg);
+        }
+        String t = string(header, "typ");
+        if (typ != null && !typ.equals(t)) {
+            throw new SecurityException("typ:" + t);
+        }
+        if (!verify(alg, string(header, "kid"), compact)) {
+            throw new SecurityException("signature");
+        }
+        return compact.payload();
+    }
+
+    /**
+     * header の文字列の値.
+     * @param header header
+     * @param name 名
+     * @return 値 または null
+     * @throws SecurityException 文字列でない
+     */
+    static String string(JSONObject header, String name) {
+        Object v = header.get(name);
+        if (v != null && !(v instanceof String)) {
+            throw new SecurityException(name);
+        }
+        return (String) v;
+    }
+
+    /**
+     * 署名を検証して payload を JSON で返す.
+     * @param jws JWS Compact Serialization
+     * @return payload
+     * @throws SecurityException 検証できないとき
+     */
+    public JSONValue validateJSON(String jws) {
+        return JSON.parseWrap(validate(jws));
+    }
+
+    /**
+     * JSON Serialization などの署名1つの検証.
+     * @param header protected header
+     * @param alg alg
+     * @param kid kid または null
+     * @param input 署名の対象
+     * @param signature 署名
+     * @return 一致
+     * @throws SecurityException 受け付けない alg, typ, 鍵なし
+     */
+    boolean verify(JSONObject header, String alg, String kid, byte[] input, byte[] signature) {
+        if (alg == null || !algs.contains(alg)) {
+            throw new SecurityException("alg:" + alg);
+        }
+        String t = string(header, "typ");
+        if (typ != null && !typ.equals(t)) {
+            throw new SecurityException("typ:" + t);
+        }
+        if (HS.contains(alg)) {
+            if (!alg.equals(hmacAlg)) {
+                throw new SecurityException("鍵なし");
+            }
+            HMAC mac = hmac.get();
+            mac.update(input);
+            return MessageDigest.isEqual(mac.sign(), signature);
+        }
+        JWKStore.Key key = key(kid, alg);
+        if (JCA.contains(alg)) {
+            JWA7518.JCASign sig = JWA7518.jca(alg);
+            sig.init(key.publicKey());
+            sig.update(input);
+            return sig.verify(signature);
+        }
+        JWA7518.RSASSA ssa = JWA7518.rsassa(alg);
+        ssa.init(key.rsaPublic());
+        ssa.update(input);
+        return ssa.verify(signature);
+    }
+
+    private JWKStore.Key key(String kid, String alg) {
+        JWKStore.Key key = keys == null ? null : keys.select(kid, alg);
+        if (key == null) {
+            throw new SecurityException("鍵なし");
+        }
+        return key;
+    }
+
+    private boolean verify(String alg, String kid, JWSCompact compact) {
+        if (HS.contains(alg)) {
+            if (!alg.equals(hmacAlg)) {
+                throw new SecurityException("鍵なし");
+            }
+            return compact.verify(hmac.get());
+        }
+        JWKStore.Key key = key(kid, alg);
+        if (JCA.contains(alg)) {
+            JWA7518.JCASign sig = JWA7518.jca(alg);
+            sig.init(key.publicKey());
+            return compact.verify(sig);
+        }
+        JWA7518.RSASSA ssa = JWA7518.rsassa(alg);
+        ssa.init(key.rsaPublic());
+        return compact.verify(ssa);
+    }
+}
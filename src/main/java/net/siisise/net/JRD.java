@@ -1,6 +1,8 @@
 package net.siisise.net;
 
 import java.net.URI;
+import java.util.List;
+import java.util.Map;
 import net.siisise.json.JSON;
 import net.siisise.json.JSONArray;
 import net.siisise.json.JSONObject;
@@ -46,10 +48,54 @@ public class JRD implements RD<String> {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    /**
+     * template は RFC 6570 として正しいか確認する.
+     */
     @Override
     public void link(String rel, String type, URI href, String template) {
-        
-        throw new UnsupportedOperationException("Not supported yet.");
+        JSONArray links = (JSONArray) jrd.get("links");
+        if ( links == null ) {
+            links = new JSONArray();
+            jrd.put("links", links);
+        }
+        JSONObject link = new JSONObject();
+        if ( rel != null ) {
+            link.put("rel", rel);
+        }
+        if ( type != null ) {
+            link.put("type", type);
+        }
+        if ( href != null ) {
+            link.put("href", href.toString());
+        }
+        if ( template != null ) {
+            URITemplate.compile(template);
+            link.put("template", template);
+        }
+        links.add(link);
+    }
+
+    /**
+     * 受け取った JRD から rel の template を探す.
+     * RFC 6415 lrdd など.
+     * @param jrd 解析済みの JRD
+     * @param rel link relation
+     * @return 展開できるもの または null
+     */
+    public static URITemplate template(Map<String, ?> jrd, String rel) {
+        Object links = jrd.get("links");
+        if ( links instanceof List ) {
+            for ( Object o : (List<?>) links ) {
+                if ( o instanceof Map ) {
+                    Map<?, ?> link = (Map<?, ?>) o;
+                    Object template = link.get("template");
+                    if ( rel.equals(String.valueOf(link.get("rel"))) && template != null ) {
+                        return URITemplate.compile(template.toString());
+                    }
+                }
+            }
+        }
+        return null;
     }
 
     @Override
@@ -16,18 +16,102 @@
 package net.siisise.net;
 
 import java.nio.charset.StandardCharsets;
-import net.siisise.block.ReadableBlock;
-import net.siisise.io.Packet;
-import net.siisise.io.PacketA;
+import java.util.Arrays;
 
 /**
  * RFC ABNF系とあとで混ぜる?
+ * percent-encoding は component ごとの文字表 (ASCII 128bit) で1回なめるだけ.
+ * ABNF で1文字ずつ判定するものは test に参照実装として残す.
  */
 public class URI3986 {
-    
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * ASCII 128文字分の表.
+     * RFC 3986 Section 2.2, 2.3, 3.x
+     */
+    public static final class CharSet {
+
+        private final long lo;
+        private final long hi;
+
+        private CharSet(long lo, long hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        static CharSet of(String chars) {
+            long lo = 0;
+            long hi = 0;
+            for (int i = 0; i < chars.length(); i++) {
+                char c = chars.charAt(i);
+                if (c < 64) {
+                    lo |= 1L << c;
+                } else {
+                    hi |= 1L << (c - 64);
+                }
+            }
+            return new CharSet(lo, hi);
+        }
+
+        CharSet or(CharSet s) {
+            return new CharSet(lo | s.lo, hi | s.hi);
+        }
+
+        CharSet minus(String chars) {
+            CharSet s = of(chars);
+            return new CharSet(lo & ~s.lo, hi & ~s.hi);
+        }
+
+        /**
+         * @param c 文字 または UTF-8 のバイト
+         * @return 含まれる
+         */
+        public boolean contains(int c) {
+            return c < 64 ? c >= 0 && (lo & (1L << c)) != 0 : c < 128 && (hi & (1L << (c - 64))) != 0;
+        }
+    }
+
+    static final CharSet ALPHA_DIGIT = CharSet.of("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789");
+    /**
+     * unreserved = ALPHA / DIGIT / "-" / "." / "_" / "~"
+     */
+    public static final CharSet UNRESERVED = ALPHA_DIGIT.or(CharSet.of("-._~"));
+    /**
+     * sub-delims = "!" / "$" / "&" / "'" / "(" / ")" / "*" / "+" / "," / ";" / "="
+     */
+    public static final CharSet SUB_DELIMS = CharSet.of("!$&'()*+,;=");
+    /**
+     * segment = *pchar
+     * pchar = unreserved / pct-encoded / sub-delims / ":" / "@"
+     */
+    public static final CharSet PCHAR = UNRESERVED.or(SUB_DELIMS).or(CharSet.of(":@"));
+    /**
+     * path-abempty など. segment を "/" でつないだもの
+     */
+    public static final CharSet PATH = PCHAR.or(CharSet.of("/"));
+    /**
+     * query = *( pchar / "/" / "?" )
+     */
+    public static final CharSet QUERY = PATH.or(CharSet.of("?"));
+    /**
+     * fragment = *( pchar / "/" / "?" )
+     */
+    public static final CharSet FRAGMENT = QUERY;
+    /**
+     * userinfo = *( unreserved / pct-encoded / sub-delims / ":" )
+     */
+    public static final CharSet USERINFO = UNRESERVED.or(SUB_DELIMS).or(CharSet.of(":"));
+    /**
+     * query の name=value の片方.
+     * query から区切りになる "&amp;", "=", "+" (formでは空白) を除いたもの
+     */
+    public static final CharSet QUERY_PARAM = QUERY.minus("&=+");
 
     /**
      * RFC 3986 Section 2.x のpercentEncode.
+     * unreserved 以外をすべて符号化する.
      * 
      * https://developer.mozilla.org/ja/docs/Glossary/percent-encoding
      * queryでは使わないっぽい
@@ -36,49 +120,192 @@ public class URI3986 {
      * @return URLに適した文字列
      */
     public static String urlPercentEncode(String src) {
-        byte[] ar = src.getBytes(StandardCharsets.UTF_8);
-        ReadableBlock srcBlock = ReadableBlock.wrap(ar);
-        Packet rb = new PacketA();
-        
-        while ( srcBlock.length() > 0 ) {
-            ReadableBlock ur = net.siisise.abnf.rfc.URI3986.unreserved.is(srcBlock); // utf-8 バイト単位で読めるかな?
-            if (ur != null) {
-                rb.write(ur);
+        return percentEncode(src, UNRESERVED);
+    }
+
+    /**
+     * path の segment 1つ. "/" も符号化する.
+     * @param src ふつうの文字列
+     * @return segment
+     */
+    public static String encodePathSegment(String src) {
+        return percentEncode(src, PCHAR);
+    }
+
+    /**
+     * path. "/" はそのまま.
+     * @param src ふつうの文字列
+     * @return path
+     */
+    public static String encodePath(String src) {
+        return percentEncode(src, PATH);
+    }
+
+    /**
+     * query 全体.
+     * @param src ふつうの文字列
+     * @return query
+     */
+    public static String encodeQuery(String src) {
+        return percentEncode(src, QUERY);
+    }
+
+    /**
+     * query の name または value.
+     * @param src ふつうの文字列
+     * @return "&amp;" "=" "+" も符号化したもの
+     */
+    public static String encodeQueryParam(String src) {
+        return percentEncode(src, QUERY_PARAM);
+    }
+
+    public static String encodeFragment(String src) {
+        return percentEncode(src, FRAGMENT);
+    }
+
+    public static String encodeUserinfo(String src) {
+        return percentEncode(src, USERINFO);
+    }
+
+    /**
+     * 表にないものを UTF-8 で percent-encoding する.
+     * 符号化の必要がないときは src をそのまま返す.
+     * @param src ふつうの文字列
+     * @param safe そのまま使える文字
+     * @return 符号化したもの
+     */
+    public static String percentEncode(String src, CharSet safe) {
+        int len = src.length();
+        int i = 0;
+        while (i < len && safe.contains(src.charAt(i))) {
+            i++;
+        }
+        if (i == len) {
+            return src;
+        }
+        StringBuilder sb = new StringBuilder(len + (len - i) * 2 + 16);
+        sb.append(src, 0, i);
+        percentEncode(src, i, safe, sb);
+        return sb.toString();
+    }
+
+    /**
+     * 表にないものを UTF-8 で percent-encoding して追加する.
+     * @param src ふつうの文字列
+     * @param safe そのまま使える文字
+     * @param out 出力先
+     */
+    public static void percentEncode(CharSequence src, CharSet safe, StringBuilder out) {
+        percentEncode(src, 0, safe, out);
+    }
+
+    private static void percentEncode(CharSequence src, int i, CharSet safe, StringBuilder out) {
+        int len = src.length();
+        for (; i < len; i++) {
+            char c = src.charAt(i);
+            if (safe.contains(c)) {
+                out.append(c);
+            } else if (c < 0x80) {
+                hex(out, c);
+            } else if (c < 0x800) {
+                hex(out, 0xc0 | (c >> 6));
+                hex(out, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(src.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, src.charAt(++i));
+                hex(out, 0xf0 | (cp >> 18));
+                hex(out, 0x80 | ((cp >> 12) & 0x3f));
+                hex(out, 0x80 | ((cp >> 6) & 0x3f));
+                hex(out, 0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) { // getBytes と同じ
+                hex(out, '?');
             } else {
-                rb.write('%');
-                int c = (byte)srcBlock.read();
-                String b = "0" + Integer.toHexString(c).toUpperCase();
-                rb.write(b.substring(b.length()-2).getBytes(StandardCharsets.UTF_8));
+                hex(out, 0xe0 | (c >> 12));
+                hex(out, 0x80 | ((c >> 6) & 0x3f));
+                hex(out, 0x80 | (c & 0x3f));
             }
         }
-        return new String(rb.toByteArray(), StandardCharsets.UTF_8);
     }
 
     /**
-     * 
-     * @param encd
-     * @return 
+     * UTF-8 などのバイト列を percent-encoding する.
+     * @param src バイト列
+     * @param offset 位置
+     * @param length 長さ
+     * @param safe そのまま使える文字
+     * @return 符号化したもの
      */
-    public static String urlPercentDecode(String encd) {
-        Packet src = new PacketA(encd.getBytes(StandardCharsets.UTF_8));
-        Packet dec = new PacketA();
-        while (src.size() > 0) {
-            byte c = (byte) src.read();
-            if (c == '%' && src.length() >= 2) {
-                byte[] o = new byte[2];
-                src.read(o);
-                if (isHex(o[0]) && isHex(o[1])) {
-                    c = Byte.parseByte(new String(o, StandardCharsets.UTF_8), 16);
-                } else {
-                    src.backWrite(o);
-                }
+    public static String percentEncode(byte[] src, int offset, int length, CharSet safe) {
+        StringBuilder sb = new StringBuilder(length + 16);
+        for (int i = offset; i < offset + length; i++) {
+            int c = src[i] & 0xff;
+            if (safe.contains(c)) {
+                sb.append((char) c);
+            } else {
+                hex(sb, c);
             }
-            dec.write(new byte[]{c});
         }
-        return new String(dec.toByteArray(), StandardCharsets.UTF_8);
+        return sb.toString();
+    }
+
+    private static void hex(StringBuilder sb, int b) {
+        sb.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
     }
 
-    private static boolean isHex(byte c) {
-        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    private static int unhex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * percent-encoding のデコード.
+     * %XX 以外の文字はそのまま.
+     * @param encd 符号化された文字列
+     * @return ふつうの文字列
+     */
+    public static String urlPercentDecode(String encd) {
+        int len = encd.length();
+        int i = encd.indexOf('%');
+        if (i < 0) {
+            return encd;
+        }
+        byte[] dec = new byte[len + 16];
+        int n = 0;
+        for (i = 0; i < len; i++) {
+            if (dec.length - n < 4) {
+                dec = Arrays.copyOf(dec, dec.length * 2);
+            }
+            char c = encd.charAt(i);
+            if (c == '%' && i + 2 < len) {
+                int h = unhex(encd.charAt(i + 1));
+                int l = unhex(encd.charAt(i + 2));
+                if (h >= 0 && l >= 0) {
+                    dec[n++] = (byte) ((h << 4) | l);
+                    i += 2;
+                    continue;
+                }
+                dec[n++] = '%';
+            } else if (c < 0x80) {
+                dec[n++] = (byte) c;
+            } else { // 符号化されていない文字
+                int e = i + 1;
+                if (Character.isHighSurrogate(c) && e < len && Character.isLowSurrogate(encd.charAt(e))) {
+                    e++;
+                }
+                byte[] u = encd.substring(i, e).getBytes(StandardCharsets.UTF_8);
+                if (dec.length - n < u.length) {
+                    dec = Arrays.copyOf(dec, dec.length * 2);
+                }
+                System.arraycopy(u, 0, dec, n, u.length);
+                n += u.length;
+                i = e - 1;
+            }
+        }
+        return new String(dec, 0, n, StandardCharsets.UTF_8);
     }
 }
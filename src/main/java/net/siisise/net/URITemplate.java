@@ -0,0 +1,381 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RFC 6570 URI Template.
+ * Level 4 まで.
+ * 1回 compile しておけば展開は表を引くだけ.
+ * WebFinger の lrdd template など.
+ */
+public final class URITemplate {
+
+    /**
+     * reserved と unreserved.
+     * RFC 6570 1.5
+     */
+    static final URI3986.CharSet RESERVED = URI3986.UNRESERVED.or(URI3986.SUB_DELIMS).or(URI3986.CharSet.of(":/?#[]@"));
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    /**
+     * RFC 6570 Appendix A の表.
+     */
+    enum Operator {
+        SIMPLE('\0', "", ',', false, "", false),
+        RESERVED('+', "", ',', false, "", true),
+        FRAGMENT('#', "#", ',', false, "", true),
+        LABEL('.', ".", '.', false, "", false),
+        PATH('/', "/", '/', false, "", false),
+        PARAM(';', ";", ';', true, "", false),
+        QUERY('?', "?", '&', true, "=", false),
+        CONTINUATION('&', "&", '&', true, "=", false);
+
+        final char code;
+        final String first;
+        final char sep;
+        final boolean named;
+        final String ifemp;
+        final boolean allowReserved;
+
+        Operator(char code, String first, char sep, boolean named, String ifemp, boolean allowReserved) {
+            this.code = code;
+            this.first = first;
+            this.sep = sep;
+            this.named = named;
+            this.ifemp = ifemp;
+            this.allowReserved = allowReserved;
+        }
+
+        static Operator of(char ch) {
+            for (Operator op : values()) {
+                if (op.code == ch) {
+                    return op;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * varspec.
+     */
+    static final class Var {
+
+        final String name;
+        /**
+         * prefix の長さ または 0
+         */
+        final int prefix;
+        final boolean explode;
+
+        Var(String name, int prefix, boolean explode) {
+            this.name = name;
+            this.prefix = prefix;
+            this.explode = explode;
+        }
+    }
+
+    /**
+     * expression 1つ.
+     */
+    static final class Expression {
+
+        final Operator op;
+        final Var[] vars;
+
+        Expression(Operator op, Var[] vars) {
+            this.op = op;
+            this.vars = vars;
+        }
+    }
+
+    private final String template;
+    /**
+     * 符号化済みの literal (String) と Expression の列
+     */
+    private final Object[] program;
+
+    private URITemplate(String template, Object[] program) {
+        this.template = template;
+        this.program = program;
+    }
+
+    /**
+     * 解析する.
+     * @param template URI Template
+     * @return 展開できるもの
+     * @throws IllegalArgumentException 書式の誤り
+     */
+    public static URITemplate compile(String template) {
+        List<Object> program = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int len = template.length();
+        int i = 0;
+        while (i < len) {
+            int s = template.indexOf('{', i);
+            int e = s < 0 ? len : s;
+            int r = template.indexOf('}', i);
+            if (r >= 0 && r < e) {
+                throw new IllegalArgumentException("unmatched '}' at " + r);
+            }
+            encodeReserved(template, i, e, literal);
+            if (s < 0) {
+                break;
+            }
+            e = template.indexOf('}', s);
+            if (e < 0) {
+                throw new IllegalArgumentException("unclosed expression at " + s);
+            }
+            if (literal.length() > 0) {
+                program.add(literal.toString());
+                literal.setLength(0);
+            }
+            program.add(expression(template.substring(s + 1, e)));
+            i = e + 1;
+        }
+        if (literal.length() > 0) {
+            program.add(literal.toString());
+        }
+        return new URITemplate(template, program.toArray());
+    }
+
+    private static Expression expression(String ex) {
+        if (ex.isEmpty()) {
+            throw new IllegalArgumentException("empty expression");
+        }
+        Operator op = Operator.of(ex.charAt(0));
+        int i = 0;
+        if (op != null) {
+            i++;
+        } else if ("=,!@|".indexOf(ex.charAt(0)) >= 0) {
+            throw new IllegalArgumentException("reserved operator " + ex.charAt(0));
+        } else {
+            op = Operator.SIMPLE;
+        }
+        List<Var> vars = new ArrayList<>();
+        while (i <= ex.length()) {
+            int e = ex.indexOf(',', i);
+            if (e < 0) {
+                e = ex.length();
+            }
+            vars.add(var(ex.substring(i, e)));
+            i = e + 1;
+        }
+        return new Expression(op, vars.toArray(new Var[0]));
+    }
+
+    private static Var var(String spec) {
+        int prefix = 0;
+        boolean explode = false;
+        int e = spec.length();
+        int c = spec.indexOf(':');
+        if (c >= 0) {
+            if (c + 1 == spec.length() || spec.length() - c - 1 > 4) {
+                throw new IllegalArgumentException("bad prefix " + spec);
+            }
+            for (int i = c + 1; i < spec.length(); i++) {
+                char ch = spec.charAt(i);
+                if (ch < '0' || ch > '9' || (i == c + 1 && ch == '0')) {
+                    throw new IllegalArgumentException("bad prefix " + spec);
+                }
+                prefix = prefix * 10 + ch - '0';
+            }
+            e = c;
+        } else if (spec.endsWith("*")) {
+            explode = true;
+            e--;
+        }
+        if (e == 0) {
+            throw new IllegalArgumentException("empty varname");
+        }
+        for (int i = 0; i < e; i++) {
+            char ch = spec.charAt(i);
+            if (!(URI3986.ALPHA_DIGIT.contains(ch) || ch == '_' || ch == '%' || (ch == '.' && i > 0))) {
+                throw new IllegalArgumentException("bad varname " + spec);
+            }
+        }
+        return new Var(spec.substring(0, e), prefix, explode);
+    }
+
+    /**
+     * 展開する.
+     * @param vars 変数. 値は文字列, 数値, List, Map など. null は未定義.
+     * @return URI
+     */
+    public String expand(Map<String, ?> vars) {
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        expand(vars, sb);
+        String uri = sb.toString();
+        if (sb.capacity() > 8192) {
+            BUFFER.remove();
+        }
+        return uri;
+    }
+
+    /**
+     * 展開して追加する.
+     * @param vars 変数
+     * @param out 出力先
+     */
+    public void expand(Map<String, ?> vars, StringBuilder out) {
+        for (Object p : program) {
+            if (p instanceof String) {
+                out.append((String) p);
+            } else {
+                expand((Expression) p, vars, out);
+            }
+        }
+    }
+
+    private static void expand(Expression ex, Map<String, ?> vars, StringBuilder out) {
+        Operator op = ex.op;
+        boolean first = true;
+        for (Var v : ex.vars) {
+            Object value = vars.get(v.name);
+            if (value == null) {
+                continue;
+            }
+            if (value instanceof Object[]) {
+                value = Arrays.asList((Object[]) value);
+            }
+            if (value instanceof Collection && ((Collection<?>) value).isEmpty()
+                    || value instanceof Map && ((Map<?, ?>) value).isEmpty()) {
+                continue;
+            }
+            if (first) {
+                out.append(op.first);
+                first = false;
+            } else {
+                out.append(op.sep);
+            }
+            if (value instanceof Collection) {
+                list(op, v, (Collection<?>) value, out);
+            } else if (value instanceof Map) {
+                map(op, v, (Map<?, ?>) value, out);
+            } else {
+                String s = value.toString();
+                if (op.named) {
+                    named(op, v.name, s, out);
+                }
+                if (v.prefix > 0 && s.codePointCount(0, s.length()) > v.prefix) {
+                    s = s.substring(0, s.offsetByCodePoints(0, v.prefix));
+                }
+                encode(op, s, out);
+            }
+        }
+    }
+
+    /**
+     * name= または name のみ
+     */
+    private static void named(Operator op, String name, String value, StringBuilder out) {
+        out.append(name);
+        out.append(value.isEmpty() ? op.ifemp : "=");
+    }
+
+    private static void list(Operator op, Var v, Collection<?> list, StringBuilder out) {
+        char sep = v.explode ? op.sep : ',';
+        if (op.named && !v.explode) {
+            out.append(v.name).append('=');
+        }
+        boolean first = true;
+        for (Object item : list) {
+            if (!first) {
+                out.append(sep);
+            }
+            first = false;
+            String s = String.valueOf(item);
+            if (op.named && v.explode) {
+                named(op, v.name, s, out);
+            }
+            encode(op, s, out);
+        }
+    }
+
+    private static void map(Operator op, Var v, Map<?, ?> map, StringBuilder out) {
+        char sep = v.explode ? op.sep : ',';
+        if (op.named && !v.explode) {
+            out.append(v.name).append('=');
+        }
+        boolean first = true;
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            if (!first) {
+                out.append(sep);
+            }
+            first = false;
+            String value = String.valueOf(e.getValue());
+            encode(op, String.valueOf(e.getKey()), out);
+            if (!v.explode) {
+                out.append(',');
+            } else if (op.named && value.isEmpty()) {
+                out.append(op.ifemp);
+                continue;
+            } else {
+                out.append('=');
+            }
+            encode(op, value, out);
+        }
+    }
+
+    private static void encode(Operator op, String s, StringBuilder out) {
+        if (op.allowReserved) {
+            encodeReserved(s, 0, s.length(), out);
+        } else {
+            URI3986.percentEncode(s, URI3986.UNRESERVED, out);
+        }
+    }
+
+    /**
+     * reserved と pct-encoded はそのまま.
+     */
+    private static void encodeReserved(String s, int offset, int end, StringBuilder out) {
+        int i = offset;
+        while (i < end) {
+            int p = s.indexOf('%', i);
+            if (p < 0 || p >= end) {
+                p = end;
+            }
+            URI3986.percentEncode(s.subSequence(i, p), RESERVED, out);
+            if (p == end) {
+                break;
+            }
+            if (p + 2 < end && hex(s.charAt(p + 1)) && hex(s.charAt(p + 2))) {
+                out.append(s, p, p + 3);
+                i = p + 3;
+            } else {
+                out.append("%25");
+                i = p + 1;
+            }
+        }
+    }
+
+    private static boolean hex(char ch) {
+        return (ch >= '0' && ch <= '9') || (ch >= 'A' && ch <= 'F') || (ch >= 'a' && ch <= 'f');
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
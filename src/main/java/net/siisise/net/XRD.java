@@ -113,6 +113,7 @@ public class XRD implements RD<Document> {
             link.setAttribute("href", href.toString());
         }
         if ( template != null ) {
+            URITemplate.compile(template);
             link.setAttribute("template", template);
         }
         root.appendChild(link);
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * アクセスログ.
+ * Common Log Format に route と処理時間 (ミリ秒) をつけたもの.
+ *
+ * I/Oスレッドはリングバッファに入れるだけで、書くのは別スレッド.
+ * lock しないので I/Oスレッドは待たない. あふれたものは捨てて数える.
+ */
+public class AccessLog implements HttpMetrics, Closeable {
+
+    static final DateTimeFormatter CLF_DATE = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneOffset.UTC);
+
+    private final Writer out;
+    private final AtomicReferenceArray<RequestStats> ring;
+    /**
+     * slot ごとの順番. 書き込み側と読み出し側の受け渡し
+     */
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * 読み出し側のみ
+     */
+    private long head;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    /**
+     * 4096件のバッファ.
+     * @param out 出力先
+     */
+    public AccessLog(Writer out) {
+        this(out, 4096);
+    }
+
+    /**
+     * @param out 出力先
+     * @param capacity バッファの件数 2のべき乗に切り上げる
+     */
+    public AccessLog(Writer out, int capacity) {
+        this.out = out;
+        int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ring = new AtomicReferenceArray<>(n);
+        sequence = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            sequence.set(i, i);
+        }
+        mask = n - 1;
+        thread = new Thread(this::drain, "HttpServer-accesslog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * ログに入れる.
+     * いっぱいのときは捨てる.
+     * @param stats 1リクエスト分
+     */
+    @Override
+    public void completed(RequestStats stats) {
+        if (!offer(stats)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * 複数の書き込み側から. 待たない.
+     */
+    boolean offer(RequestStats e) {
+        while (running) {
+            long t = tail.get();
+            int i = (int) (t & mask);
+            long d = sequence.get(i) - t;
+            if (d == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    ring.set(i, e);
+                    sequence.set(i, t + 1);
+                    return true;
+                }
+            } else if (d < 0) { // 1周前のものが残っている
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 読み出し側のみ.
+     */
+    private RequestStats poll() {
+        int i = (int) (head & mask);
+        if (sequence.get(i) != head + 1) {
+            return null;
+        }
+        RequestStats e = ring.get(i);
+        ring.set(i, null);
+        sequence.set(i, head + mask + 1);
+        head++;
+        return e;
+    }
+
+    /**
+     * @return あふれて捨てた数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            boolean last = !running;
+            RequestStats e;
+            while ((e = poll()) != null) {
+                format(sb, e);
+                if (sb.length() > 8192) {
+                    write(sb);
+                }
+            }
+            if (sb.length() > 0) {
+                write(sb);
+                try {
+                    out.flush();
+                } catch (IOException ex) {
+                    // 出せないときは捨てる
+                }
+            }
+            if (last) {
+                return;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(20));
+        }
+    }
+
+    private void write(StringBuilder sb) {
+        try {
+            out.append(sb);
+        } catch (IOException ex) {
+            // 出せないときは捨てる
+        }
+        sb.setLength(0);
+    }
+
+    /**
+     * host - - [date] "method target HTTP/1.1" status bytes route ms
+     */
+    static void format(StringBuilder sb, RequestStats e) {
+        sb.append(e.address == null ? "-" : e.address.getHostAddress());
+        sb.append(" - - [");
+        CLF_DATE.formatTo(Instant.ofEpochMilli(e.time), sb);
+        sb.append("] \"");
+        if (e.method != null) {
+            sb.append(e.method).append(' ').append(e.target).append(" HTTP/1.1");
+        }
+        sb.append("\" ").append(e.status).append(' ').append(e.bytesOut);
+        sb.append(' ').append(e.route == null ? "-" : e.route.isEmpty() ? "*" : e.route);
+        sb.append(' ').append(e.total < 0 ? "-" : Long.toString(TimeUnit.NANOSECONDS.toMillis(e.total)));
+        sb.append('\n');
+    }
+
+    /**
+     * 残りを書いて止める.
+     * 出力先は閉じない.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-Sent Events.
+ * HTML Living Standard 9.2 text/event-stream
+ *
+ * 何も送らない間は heartbeat のコメントを送って、途中の proxy に切られないようにする.
+ * heartbeat は全接続で1つのスレッドを使う.
+ */
+public class EventStream implements Closeable {
+
+    public static final String TYPE = "text/event-stream; charset=utf-8";
+
+    private static final ScheduledExecutorService HEARTBEAT;
+
+    static {
+        ScheduledThreadPoolExecutor ex = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "HttpServer-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        ex.setRemoveOnCancelPolicy(true);
+        HEARTBEAT = ex;
+    }
+
+    private final HttpStream stream;
+    private final ScheduledFuture<?> heartbeat;
+    private volatile boolean sent;
+
+    /**
+     * 15秒ごとの heartbeat.
+     */
+    public EventStream() {
+        this(15000);
+    }
+
+    /**
+     * @param heartbeatMillis heartbeat の間隔 0で送らない
+     */
+    public EventStream(long heartbeatMillis) {
+        stream = new HttpStream(TYPE);
+        if (heartbeatMillis > 0) {
+            heartbeat = HEARTBEAT.scheduleAtFixedRate(this::beat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+            stream.onClose(() -> heartbeat.cancel(false));
+        } else {
+            heartbeat = null;
+        }
+    }
+
+    /**
+     * handler の戻り値にするもの.
+     * cache しない.
+     * @return 応答
+     */
+    public HttpResponse response() {
+        return stream.response()
+                .header("Cache-Control", "no-cache")
+                .header("X-Accel-Buffering", "no");
+    }
+
+    /**
+     * 下の stream.
+     * 溜まり具合, 切れたときなど.
+     * @return stream
+     */
+    public HttpStream stream() {
+        return stream;
+    }
+
+    /**
+     * message イベント.
+     * @param data 改行を含んでもいい
+     * @return まだ書ける
+     */
+    public boolean send(String data) {
+        return send(null, null, data);
+    }
+
+    public boolean send(String event, String data) {
+        return send(null, event, data);
+    }
+
+    /**
+     * イベントを1つ送る.
+     * @param id 再接続時の Last-Event-ID または null
+     * @param event イベント名 または null
+     * @param data 改行を含んでもいい
+     * @return まだ書ける
+     */
+    public boolean send(String id, String event, String data) {
+        StringBuilder sb = new StringBuilder();
+        if (id != null) {
+            field(sb, "id", oneLine(id));
+        }
+        if (event != null) {
+            field(sb, "event", oneLine(event));
+        }
+        int s = 0;
+        int len = data.length();
+        for (int i = 0; i < len; i++) {
+            char c = data.charAt(i);
+            if (c == '\r' || c == '\n') {
+                field(sb, "data", data.substring(s, i));
+                if (c == '\r' && i + 1 < len && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                s = i + 1;
+            }
+        }
+        field(sb, "data", data.substring(s));
+        sb.append('\n');
+        return write(sb);
+    }
+
+    /**
+     * 再接続までの時間.
+     * @param millis ミリ秒
+     * @return まだ書ける
+     */
+    public boolean retry(long millis) {
+        return write(new StringBuilder("retry: ").append(millis).append("\n\n"));
+    }
+
+    /**
+     * コメント. 受け側では無視される.
+     * @param text 1行
+     * @return まだ書ける
+     */
+    public boolean comment(String text) {
+        return write(new StringBuilder(":").append(oneLine(text)).append("\n\n"));
+    }
+
+    private boolean write(CharSequence s) {
+        sent = true;
+        return stream.write(s.toString());
+    }
+
+    private static void field(StringBuilder sb, String name, String value) {
+        sb.append(name).append(": ").append(value).append('\n');
+    }
+
+    private static String oneLine(String s) {
+        if (s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("line break");
+        }
+        return s;
+    }
+
+    /**
+     * 前回から何も送っていなければ空のコメント.
+     * 溜まっているときは送らない.
+     */
+    private void beat() {
+        if (!sent && stream.isWritable() && stream.queued() == 0) {
+            stream.write(":\n\n");
+        }
+        sent = false;
+    }
+
+    public boolean isOpen() {
+        return stream.isOpen();
+    }
+
+    public void onClose(Runnable run) {
+        stream.onClose(run);
+    }
+
+    /**
+     * 終わり. 送りきってから閉じる.
+     */
+    @Override
+    public void close() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        stream.close();
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * HttpServer の応答の圧縮.
+ * RFC 9110 Section 8.4.1 Content-Coding gzip, deflate
+ * Accept-Encoding で選ぶ.
+ * 小さいもの、圧縮済みの形式は圧縮しない.
+ *
+ * 圧縮率と CPU はだいたい level で決まる. 1 は速いが大きめ, 9 は遅い.
+ *
+ * I/Oスレッドではファイルを読まず、大きく圧縮しない.
+ * ファイルは executor で圧縮して HttpStream で I/Oスレッドに渡す.
+ * HttpStream などのストリームはメモリ上にあるので I/Oスレッドで少しずつ圧縮する.
+ */
+class HttpCompression {
+
+    static final int GZIP = 1;
+    static final int DEFLATE = 2;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int POOL = 64;
+    /**
+     * I/Oスレッドで1回の next で圧縮する入力の目安
+     */
+    private static final int STEP = 65536;
+    /**
+     * executor で1回に圧縮する出力の数. ほかの仕事も進むように分ける
+     */
+    private static final int PUMP = 16;
+
+    private final int level;
+    private final int minSize;
+
+    /**
+     * 使い回す Deflater. 返すときに reset する.
+     */
+    private final Queue<Deflater> gzipPool = new ConcurrentLinkedQueue<>();
+    private final Queue<Deflater> deflatePool = new ConcurrentLinkedQueue<>();
+    /**
+     * 置き換えられた. 返されたものは end する
+     */
+    private volatile boolean closed;
+
+    /**
+     * @param level 圧縮レベル 1-9
+     * @param minSize これより小さいものは圧縮しない
+     */
+    HttpCompression(int level, int minSize) {
+        this.level = level;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Accept-Encoding から選ぶ.
+     * q が同じなら gzip を優先する.
+     * @param accept Accept-Encoding
+     * @return GZIP, DEFLATE または 0 (identity)
+     */
+    static int negotiate(String accept) {
+        if (accept == null) {
+            return 0;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String coding : accept.split(",")) {
+            String[] p = coding.split(";");
+            String name = p[0].trim().toLowerCase(Locale.ROOT);
+            float q = 1;
+            for (int i = 1; i < p.length; i++) {
+                String param = p[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzip = q;
+            } else if (name.equals("deflate")) {
+                deflate = q;
+            } else if (name.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        } else if (deflate > 0) {
+            return DEFLATE;
+        }
+        return 0;
+    }
+
+    /**
+     * 圧縮して意味のありそうな形式.
+     * @param type Content-Type
+     * @return テキストっぽい
+     */
+    static boolean compressible(String type) {
+        if (type == null) {
+            return false;
+        }
+        String t = type.toLowerCase(Locale.ROOT);
+        int sc = t.indexOf(';');
+        if (sc >= 0) {
+            t = t.substring(0, sc).trim();
+        }
+        return t.startsWith("text/") || t.endsWith("/json") || t.endsWith("+json")
+                || t.endsWith("/xml") || t.endsWith("+xml") || t.endsWith("/javascript")
+                || t.equals("image/svg+xml") || t.equals("application/x-www-form-urlencoded");
+    }
+
+    /**
+     * 圧縮するかどうかを決めてヘッダだけ変える.
+     * body はまだ圧縮しないので、304 になるときは圧縮しないで済む.
+     * ETag も変えるので条件付きリクエストの前に呼ぶ.
+     * HEAD も GET と同じヘッダにする.
+     * @param res 応答
+     * @param accept Accept-Encoding
+     * @return GZIP, DEFLATE または 0 (圧縮しない)
+     */
+    int prepare(HttpResponse res, String accept) {
+        if (res.status != 200 || res.headers.containsKey("Content-Encoding")
+                || !compressible(res.headers.get("Content-Type"))) {
+            return 0;
+        }
+        res.headers.merge("Vary", "Accept-Encoding", (a, b) -> a + ", " + b);
+        int coding = negotiate(accept);
+        if (coding == 0 || (res.length >= 0 && res.length < minSize)
+                || (res.body == null && res.file == null && res.source == null)) {
+            return 0;
+        }
+        String name = coding == GZIP ? "gzip" : "deflate";
+        res.header("Content-Encoding", name);
+        String etag = res.headers.get("ETag");
+        if (etag != null && etag.endsWith("\"")) { // 表現が変わるので ETag も変える
+            res.etag(etag.substring(0, etag.length() - 1) + "-" + name + "\"");
+        }
+        res.ranges = false;
+        return coding;
+    }
+
+    /**
+     * body を圧縮する.
+     * メモリ上のものはここで圧縮して Content-Length をつける.
+     * ファイルは executor で、ストリームは送りながら chunked で.
+     * @param res prepare した応答
+     * @param coding prepare の戻り値
+     * @param executor ファイルを読んで圧縮するところ
+     * @throws IOException
+     */
+    void encode(HttpResponse res, int coding, Executor executor) throws IOException {
+        if (coding == 0) {
+            return;
+        }
+        if (res.body != null) {
+            res.body = new ByteBuffer[] {compress(res.body, coding)};
+            res.length = res.body[0].remaining();
+        } else if (res.file != null) {
+            HttpResponse.Source file = new HttpResponse.FileSource(res.file, res.offset, res.length);
+            res.file = null;
+            HttpStream stream = new HttpStream(null);
+            Pump pump = new Pump(new DeflateSource(file, coding, borrow(coding), true), stream, executor);
+            res.source = pump;
+            res.stream = stream;
+            res.length = -1;
+        } else {
+            res.source = new DeflateSource(res.source, coding, borrow(coding), true);
+            res.length = -1;
+        }
+    }
+
+    /**
+     * 1回で圧縮する.
+     */
+    private ByteBuffer compress(ByteBuffer[] body, int coding) throws IOException {
+        Deflater deflater = borrow(coding);
+        try {
+            return compress(body, coding, deflater);
+        } finally {
+            giveBack(coding, deflater); // 失敗したときも reset する
+        }
+    }
+
+    private ByteBuffer compress(ByteBuffer[] body, int coding, Deflater deflater) throws IOException {
+        ByteBuffer[] src = new ByteBuffer[body.length];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = body[i].duplicate();
+        }
+        DeflateSource ds2 = new DeflateSource(new HttpResponse.Source() {
+            int i;
+
+            @Override
+            public ByteBuffer next() {
+                return i < src.length ? src[i++] : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, coding, deflater, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer b;
+        while ((b = ds2.next()) != null) {
+            out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private Queue<Deflater> pool(int coding) {
+        return coding == GZIP ? gzipPool : deflatePool;
+    }
+
+    private Deflater borrow(int coding) {
+        Deflater d = pool(coding).poll();
+        return d == null ? new Deflater(level, coding == GZIP) : d;
+    }
+
+    private void giveBack(int coding, Deflater d) {
+        d.reset();
+        Queue<Deflater> p = pool(coding);
+        if (!closed && p.size() < POOL) {
+            p.add(d);
+        } else {
+            d.end();
+        }
+        if (closed) { // close と入れ違い
+            clear();
+        }
+    }
+
+    private void clear() {
+        Deflater d;
+        while ((d = gzipPool.poll()) != null) {
+            d.end();
+        }
+        while ((d = deflatePool.poll()) != null) {
+            d.end();
+        }
+    }
+
+    /**
+     * 使わなくなった.
+     * 使い回しの Deflater を end する. 送信中のものは終わったときに end する.
+     */
+    void close() {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * ファイルの圧縮.
+     * executor でファイルを読んで圧縮し、HttpStream に入れる.
+     * 溜まりすぎたら止めて、I/Oスレッドが送って減ったら続きを頼む.
+     * I/Oスレッドは HttpStream から読むだけ. 最初に読まれたときに始める (HEAD では読まれない).
+     */
+    static class Pump implements HttpResponse.Source, Runnable {
+
+        private final DeflateSource src;
+        private final HttpStream stream;
+        private final HttpResponse.Source out;
+        private final Executor executor;
+        private boolean started;
+        /**
+         * this で同期する
+         */
+        private boolean done;
+
+        Pump(DeflateSource src, HttpStream stream, Executor executor) {
+            this.src = src;
+            this.stream = stream;
+            this.executor = executor;
+            out = stream.source();
+            stream.onWritable(this::schedule);
+            stream.onClose(this::schedule); // 切れたら閉じる
+        }
+
+        /**
+         * I/Oスレッド
+         */
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (!started) {
+                started = true;
+                schedule();
+            }
+            return out.next();
+        }
+
+        /**
+         * I/Oスレッド. 切れた, HEAD.
+         */
+        @Override
+        public void close() {
+            out.close();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) { // 止めたあと
+                stop(false);
+            }
+        }
+
+        /**
+         * executor で圧縮する.
+         */
+        @Override
+        public synchronized void run() {
+            if (done) {
+                return;
+            }
+            if (!stream.isOpen()) { // 切れた
+                stop(false);
+                return;
+            }
+            try {
+                for (int i = 0; i < PUMP && stream.isWritable(); i++) {
+                    ByteBuffer b = src.next();
+                    if (b == null) {
+                        stop(true);
+                        return;
+                    }
+                    stream.write(b);
+                }
+            } catch (IOException | RuntimeException e) {
+                stop(false);
+                return;
+            }
+            if (stream.isWritable()) { // 続きはほかの仕事のあと
+                schedule();
+            } // いっぱいのときは onWritable で続ける
+        }
+
+        private synchronized void stop(boolean end) {
+            if (done) {
+                return;
+            }
+            done = true;
+            src.close();
+            if (end) {
+                stream.close();
+            } else {
+                stream.abort();
+            }
+        }
+    }
+
+    /**
+     * 少しずつ圧縮する.
+     * gzip はヘッダと CRC32 をつける. deflate は zlib 形式.
+     * 入力が今ないときは SYNC_FLUSH でそこまでを送る.
+     */
+    class DeflateSource implements HttpResponse.Source {
+
+        private final HttpResponse.Source src;
+        private final int coding;
+        private final Deflater deflater;
+        private final boolean pooled;
+        private final CRC32 crc = new CRC32();
+        private final ByteBuffer out = ByteBuffer.allocate(16384);
+        private boolean header;
+        private boolean ended;
+        private boolean flushing;
+        private boolean dirty;
+        private boolean done;
+        private boolean closed;
+
+        DeflateSource(HttpResponse.Source src, int coding, Deflater deflater, boolean pooled) {
+            this.src = src;
+            this.coding = coding;
+            this.deflater = deflater;
+            this.pooled = pooled;
+            header = coding == GZIP;
+        }
+
+        /**
+         * 次の圧縮したもの.
+         * 入力を STEP ほど圧縮して出力があればそこで返す.
+         */
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (done) {
+                return null;
+            }
+            int fed = 0;
+            out.clear();
+            if (header) {
+                out.put(GZIP_HEADER);
+                header = false;
+            }
+            while (out.hasRemaining()) {
+                if (flushing) {
+                    deflater.deflate(out, Deflater.SYNC_FLUSH);
+                    if (out.hasRemaining()) {
+                        flushing = false;
+                        dirty = false;
+                        break;
+                    }
+                    continue;
+                }
+                if (deflater.finished()) {
+                    if (coding == GZIP) {
+                        if (out.remaining() < 8) {
+                            break;
+                        }
+                        int c = (int) crc.getValue();
+                        int size = deflater.getTotalIn();
+                        out.put((byte) c).put((byte) (c >> 8)).put((byte) (c >> 16)).put((byte) (c >> 24));
+                        out.put((byte) size).put((byte) (size >> 8)).put((byte) (size >> 16)).put((byte) (size >> 24));
+                    }
+                    done = true;
+                    break;
+                }
+                if (ended || !deflater.needsInput()) {
+                    deflater.deflate(out, Deflater.NO_FLUSH);
+                    continue;
+                }
+                if (fed >= STEP && out.position() > 0) { // 残りは次の呼び出しで
+                    break;
+                }
+                ByteBuffer b = src.next();
+                if (b == null) {
+                    ended = true;
+                    deflater.finish();
+                } else if (!b.hasRemaining()) { // 今はない
+                    if (dirty) {
+                        flushing = true;
+                        continue;
+                    }
+                    break;
+                } else {
+                    crc.update(b.duplicate());
+                    fed += b.remaining();
+                    deflater.setInput(b);
+                    dirty = true;
+                }
+            }
+            out.flip();
+            if (done && !out.hasRemaining()) {
+                close();
+                return null;
+            }
+            return out;
+        }
+
+        @Override
+        public void close() {
+            done = true;
+            if (closed) {
+                return;
+            }
+            closed = true;
+            src.close();
+            if (pooled) {
+                giveBack(coding, deflater);
+            }
+        }
+    }
+}
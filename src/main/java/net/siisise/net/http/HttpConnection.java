@@ -0,0 +1,258 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+
+/**
+ * HttpServer の接続1つ分.
+ * 読み書きは I/Oスレッドから、応答の設定は worker から.
+ */
+class HttpConnection {
+
+    static final int MAX_HEAD = 65536;
+    static final int MAX_LINE = 8192;
+
+    /**
+     * ヘッダが大きすぎる.
+     * 閉じる前に状態コードで返す.
+     */
+    static class LimitException extends IOException {
+
+        final int status;
+        final String reason;
+
+        LimitException(int status, String reason) {
+            super(reason);
+            this.status = status;
+            this.reason = reason;
+        }
+    }
+
+    final HttpServer server;
+    final SocketChannel ch;
+    /**
+     * https のときだけ.
+     */
+    final TlsChannel tls;
+    /**
+     * 平文の読み書き先. SocketChannel または TlsChannel
+     */
+    private final ByteChannel reader;
+    private final GatheringByteChannel writer;
+    SelectionKey key;
+    /**
+     * 相手. 接続数の制限用
+     */
+    final InetAddress address;
+    /**
+     * ヘッダ読み込み, 送信の期限.
+     */
+    final TimerWheel.Timer<HttpConnection> timer = new TimerWheel.Timer<>(this);
+
+    private ByteBuffer in = ByteBuffer.allocate(4096);
+    private int scanned;
+    /**
+     * 読んでいる行の始まり.
+     */
+    private int lineStart;
+    private boolean closed;
+
+    // 計測用 System.nanoTime()
+    final long accepted = System.nanoTime();
+    final long acceptedTime = System.currentTimeMillis();
+    long headRead;
+    long parsed;
+    long handlerStart;
+    long handlerEnd;
+    long firstWrite;
+    int bytesIn;
+    String method;
+    String target;
+    String route;
+    /**
+     * リクエストヘッダ. 小文字の名前と値
+     */
+    Map<String, String> headers;
+
+    private volatile HttpResponse response;
+
+    HttpConnection(HttpServer server, SocketChannel ch, TlsChannel tls, InetAddress address) {
+        this.server = server;
+        this.ch = ch;
+        this.tls = tls;
+        this.address = address;
+        if (tls == null) {
+            reader = ch;
+            writer = ch;
+        } else {
+            reader = tls;
+            writer = tls;
+        }
+    }
+
+
+    /**
+     * 応答待ちか.
+     * @return 応答が決まった
+     */
+    boolean responded() {
+        return response != null;
+    }
+
+    /**
+     * 読めるだけ読んで、ヘッダの終わり CRLF CRLF を探す.
+     * @param maxHead ヘッダ全体の最大
+     * @param maxLine 1行の最大
+     * @return ヘッダのバイト列 (CRLF CRLF まで) または まだのとき null
+     * @throws IOException 切れた
+     * @throws LimitException 大きすぎる
+     */
+    byte[] readHead(int maxHead, int maxLine) throws IOException {
+        int n;
+        do {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= maxHead) {
+                    throw new LimitException(431, "Request Header Fields Too Large");
+                }
+                ByteBuffer b = ByteBuffer.allocate(Math.min(in.capacity() * 2, maxHead));
+                in.flip();
+                b.put(in);
+                in = b;
+            }
+            n = reader.read(in);
+            if (n < 0) {
+                throw new java.io.EOFException();
+            }
+        } while (n > 0 && !in.hasRemaining());
+        byte[] a = in.array();
+        int end = Math.min(in.position(), maxHead); // 最初のバッファは maxHead より大きいことがある
+        for (int i = scanned; i < end; i++) {
+            if (a[i] == '\n') {
+                if (i >= 3 && a[i - 1] == '\r' && a[i - 2] == '\n' && a[i - 3] == '\r') {
+                    byte[] head = new byte[i + 1];
+                    System.arraycopy(a, 0, head, 0, head.length);
+                    return head;
+                }
+                lineStart = i + 1;
+            } else if (i - lineStart >= maxLine) {
+                throw lineStart == 0 ? new LimitException(414, "URI Too Long")
+                        : new LimitException(431, "Request Header Fields Too Large");
+            }
+        }
+        if (end >= maxHead) {
+            throw new LimitException(431, "Request Header Fields Too Large");
+        }
+        scanned = end;
+        return null;
+    }
+
+    /**
+     * 応答を設定して I/Oスレッドに書き込みを頼む.
+     * どのスレッドからでも.
+     * @param res 応答
+     * @param head HEAD メソッド
+     */
+    void respond(HttpResponse res, boolean head) {
+        if (handlerStart != 0) {
+            handlerEnd = System.nanoTime();
+        }
+        try {
+            res.begin(head);
+        } catch (IOException | IllegalArgumentException e) { // 開けないファイル, 送れないヘッダ
+            res.release();
+            res = HttpResponse.error(500, "Internal Server Error");
+            try {
+                res.begin(head);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        response = res;
+        server.ready(this);
+        res.attach(() -> server.ready(this));
+    }
+
+    /**
+     * 応答中に届いたものは読み捨てる.
+     * stream の途中で相手が切ったことを知るため.
+     * @return false 切れた
+     * @throws IOException
+     */
+    boolean discard() throws IOException {
+        int n;
+        do {
+            in.clear();
+            n = reader.read(in);
+        } while (n > 0);
+        return n == 0;
+    }
+
+    /**
+     * stream に送るものがなく、書き込み待ちにしなくていい.
+     * @return 待ち
+     */
+    boolean idle() {
+        HttpResponse res = response;
+        return res != null && res.idle() && (tls == null || !tls.pending());
+    }
+
+    /**
+     * 書けるだけ書く.
+     * @return 全部書いた
+     * @throws IOException
+     */
+    boolean write() throws IOException {
+        HttpResponse res = response;
+        if (firstWrite == 0) {
+            firstWrite = System.nanoTime();
+        }
+        if (res != null && !res.send(writer)) {
+            if (tls != null) {
+                tls.flush();
+            }
+            return false;
+        }
+        return tls == null || tls.flush();
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        HttpResponse res = response;
+        server.closed(this, res);
+        if (res != null) {
+            res.release();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // 閉じるだけ
+        }
+    }
+}
@@ -15,11 +15,11 @@
  */
 package net.siisise.net.http;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
-import net.siisise.io.Packet;
-import net.siisise.io.PacketA;
 
 /**
  * とりあえずHTTP 系.
@@ -27,6 +27,36 @@ import net.siisise.io.PacketA;
  */
 public class HttpEncode {
 
+    /**
+     * application/x-www-form-urlencoded でそのまま使える文字.
+     * ASCII の範囲のみ
+     */
+    private static final boolean[] FORM_SAFE = new boolean[128];
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /**
+     * 16進の値. 16進でないものは -1
+     */
+    private static final byte[] UNHEX = new byte[128];
+
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            FORM_SAFE[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            FORM_SAFE[c] = true;
+            FORM_SAFE[c - 'a' + 'A'] = true;
+        }
+        FORM_SAFE['*'] = true;
+        FORM_SAFE['-'] = true;
+        FORM_SAFE['.'] = true;
+        FORM_SAFE['_'] = true;
+        Arrays.fill(UNHEX, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            UNHEX[Character.forDigit(i, 16)] = (byte) i;
+            UNHEX[Character.toUpperCase(Character.forDigit(i, 16))] = (byte) i;
+        }
+    }
+
     /**
      * percent-encoding.
      * application/x-www-form-urlencoded 専用
@@ -43,30 +73,144 @@ public class HttpEncode {
      * @return URI用ASCIIっぽい文字列
      */
     public static String formPercentEncode(String src) {
-        int[] cps = src.codePoints().toArray();
-        StringBuilder sb = new StringBuilder();
-        for (int cp : cps) {
-            if ((cp >= '0' && cp <= '9')
-                    || (cp >= 'a' && cp <= 'z')
-                    || (cp >= 'A' && cp <= 'Z')
-                    || cp == '*' || cp == '-' || cp == '.' || cp == '_') {
-                sb.appendCodePoint(cp);
-            } else if (cp == ' ') {
+        int len = src.length();
+        int i = 0;
+        while (i < len && isFormSafe(src.charAt(i))) {
+            i++;
+        }
+        if (i == len) { // そのまま
+            return src;
+        }
+        StringBuilder sb = new StringBuilder(len + (len - i) * 2 + 16);
+        sb.append(src, 0, i);
+        encode(src, i, sb);
+        return sb.toString();
+    }
+
+    /**
+     * percent-encoding して追加する.
+     * @param src Unicode 文字列
+     * @param out 出力先
+     * @throws IOException 出力先の例外
+     */
+    public static void formPercentEncode(CharSequence src, Appendable out) throws IOException {
+        if (out instanceof StringBuilder) {
+            encode(src, 0, (StringBuilder) out);
+            return;
+        }
+        int len = src.length();
+        for (int i = 0; i < len; i++) {
+            char c = src.charAt(i);
+            if (isFormSafe(c)) {
+                out.append(c);
+            } else if (c == ' ') {
+                out.append('+');
+            } else {
+                int cp = c;
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(src.charAt(i + 1))) {
+                    cp = Character.toCodePoint(c, src.charAt(++i));
+                }
+                int u = utf8(cp);
+                for (int s = top(u); s >= 0; s -= 8) {
+                    int b = (u >>> s) & 0xff;
+                    out.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
+                }
+            }
+        }
+    }
+
+    /**
+     * percent-encoding して追加する.
+     * @param src Unicode 文字列
+     * @param out 出力先
+     */
+    public static void formPercentEncode(CharSequence src, StringBuilder out) {
+        encode(src, 0, out);
+    }
+
+    /**
+     * percent-encoding して ASCII で書く.
+     * @param src Unicode 文字列
+     * @param out 出力先 足りないときは BufferOverflowException
+     */
+    public static void formPercentEncode(CharSequence src, ByteBuffer out) {
+        int len = src.length();
+        for (int i = 0; i < len; i++) {
+            char c = src.charAt(i);
+            if (isFormSafe(c)) {
+                out.put((byte) c);
+            } else if (c == ' ') {
+                out.put((byte) '+');
+            } else {
+                int cp = c;
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(src.charAt(i + 1))) {
+                    cp = Character.toCodePoint(c, src.charAt(++i));
+                }
+                int u = utf8(cp);
+                for (int s = top(u); s >= 0; s -= 8) {
+                    int b = (u >>> s) & 0xff;
+                    out.put((byte) '%').put((byte) HEX[b >> 4]).put((byte) HEX[b & 0xf]);
+                }
+            }
+        }
+    }
+
+    private static boolean isFormSafe(char c) {
+        return c < 128 && FORM_SAFE[c];
+    }
+
+    private static void encode(CharSequence src, int i, StringBuilder sb) {
+        int len = src.length();
+        for (; i < len; i++) {
+            char c = src.charAt(i);
+            if (isFormSafe(c)) {
+                sb.append(c);
+            } else if (c == ' ') {
                 sb.append('+');
             } else {
-                byte[] bs = String.valueOf(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8);
-                for (byte b : bs) {
-                    String bc = "0" + Integer.toHexString(b & 0xff);
-                    sb.append('%');
-                    sb.append(bc.substring(bc.length() - 2));
+                int cp = c;
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(src.charAt(i + 1))) {
+                    cp = Character.toCodePoint(c, src.charAt(++i));
+                }
+                int u = utf8(cp);
+                for (int s = top(u); s >= 0; s -= 8) {
+                    int b = (u >>> s) & 0xff;
+                    sb.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
                 }
             }
         }
-        return sb.toString();
     }
 
-    private static boolean isHex(byte c) {
-        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    /**
+     * 1文字分の UTF-8.
+     * 対になっていないサロゲートは getBytes と同じく '?'
+     * @param cp コードポイント
+     * @return 上位バイトから詰めたもの
+     */
+    private static int utf8(int cp) {
+        if (cp < 0x80) {
+            return cp;
+        } else if (cp < 0x800) {
+            return ((0xc0 | (cp >> 6)) << 8) | (0x80 | (cp & 0x3f));
+        } else if (cp >= 0xd800 && cp <= 0xdfff) {
+            return '?';
+        } else if (cp < 0x10000) {
+            return ((0xe0 | (cp >> 12)) << 16) | ((0x80 | ((cp >> 6) & 0x3f)) << 8) | (0x80 | (cp & 0x3f));
+        }
+        return ((0xf0 | (cp >> 18)) << 24) | ((0x80 | ((cp >> 12) & 0x3f)) << 16)
+                | ((0x80 | ((cp >> 6) & 0x3f)) << 8) | (0x80 | (cp & 0x3f));
+    }
+
+    /**
+     * @param u utf8 の戻り
+     * @return 先頭バイトのシフト量
+     */
+    private static int top(int u) {
+        return (u >>> 24) != 0 ? 24 : (u >>> 16) != 0 ? 16 : (u >>> 8) != 0 ? 8 : 0;
+    }
+
+    private static int unhex(int c) {
+        return c < 128 ? UNHEX[c] : -1;
     }
 
     /**
@@ -75,42 +219,112 @@ public class HttpEncode {
      * @return Unicode文字列
      */
     public static String formPercentDecode(String encd) {
-        Packet src = new PacketA(encd.getBytes(StandardCharsets.UTF_8));
-        Packet dec = new PacketA();
-        while (src.size() > 0) {
-            byte c = (byte) src.read();
-            if (c == '%' && src.length() >= 2) {
-                byte[] o = new byte[2];
-                src.read(o);
-                if (isHex(o[0]) && isHex(o[1])) {
-                    c = Byte.parseByte(new String(o, StandardCharsets.UTF_8), 16);
-                } else {
-                    src.backWrite(o);
+        int len = encd.length();
+        int i = 0;
+        char c;
+        while (i < len && (c = encd.charAt(i)) != '%' && c != '+' && !Character.isSurrogate(c)) {
+            i++;
+        }
+        if (i == len) { // そのまま
+            return encd;
+        }
+        byte[] dec = new byte[len + 16];
+        int n = 0;
+        for (i = 0; i < len; i++) {
+            if (dec.length - n < 4) {
+                dec = Arrays.copyOf(dec, dec.length * 2);
+            }
+            c = encd.charAt(i);
+            if (c == '%' && i + 2 < len) {
+                int h = unhex(encd.charAt(i + 1));
+                int l = unhex(encd.charAt(i + 2));
+                if (h >= 0 && l >= 0) {
+                    dec[n++] = (byte) ((h << 4) | l);
+                    i += 2;
+                    continue;
+                }
+                dec[n++] = '%';
+            } else if (c == '+') {
+                dec[n++] = ' ';
+            } else if (c < 0x80) {
+                dec[n++] = (byte) c;
+            } else {
+                int cp = c;
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(encd.charAt(i + 1))) {
+                    cp = Character.toCodePoint(c, encd.charAt(++i));
+                }
+                int u = utf8(cp);
+                for (int s = top(u); s >= 0; s -= 8) {
+                    dec[n++] = (byte) (u >>> s);
+                }
+            }
+        }
+        return new String(dec, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * パーセントエンコードのデコード.
+     * body などバイト列のまま読む.
+     * @param src エスケープ済みのもの position から limit まで読む
+     * @return Unicode文字列
+     */
+    public static String formPercentDecode(ByteBuffer src) {
+        byte[] dec = new byte[src.remaining()];
+        int n = 0;
+        while (src.hasRemaining()) {
+            byte c = src.get();
+            if (c == '%' && src.remaining() >= 2) {
+                int p = src.position();
+                int h = unhex(src.get(p) & 0xff);
+                int l = unhex(src.get(p + 1) & 0xff);
+                if (h >= 0 && l >= 0) {
+                    c = (byte) ((h << 4) | l);
+                    src.position(p + 2);
                 }
             } else if (c == '+') {
                 c = ' ';
             }
-            dec.write(new byte[]{c});
+            dec[n++] = c;
         }
-        return new String(dec.toByteArray(), StandardCharsets.UTF_8);
+        return new String(dec, 0, n, StandardCharsets.UTF_8);
     }
 
     /**
-     * queryのデコード、仮置き場
-     * @param query 
-     * @return map か jsonにする予定
+     * パーセントエンコードのデコード.
+     * 受信したバイト列の一部をそのまま読む.
+     * @param src エスケープ済みのもの
+     * @param offset 始まり
+     * @param length 長さ
+     * @return Unicode文字列
      */
-    public static Map<String,String> decodeQuery(String query) {
-        Map<String,String> paramsmap = new HashMap<>();
-        if ( query != null ) {
-            String[] params = query.split("&");
-            for ( String param : params ) {
-                String[] kv = param.split("=");
-                if ( kv.length >= 2) {
-                    paramsmap.put(formPercentDecode(kv[0]), formPercentDecode(kv[1]));
+    public static String formPercentDecode(byte[] src, int offset, int length) {
+        byte[] dec = new byte[length];
+        int n = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte c = src[i];
+            if (c == '%' && i + 2 < end) {
+                int h = unhex(src[i + 1] & 0xff);
+                int l = unhex(src[i + 2] & 0xff);
+                if (h >= 0 && l >= 0) {
+                    c = (byte) ((h << 4) | l);
+                    i += 2;
                 }
+            } else if (c == '+') {
+                c = ' ';
             }
+            dec[n++] = c;
         }
-        return paramsmap;
+        return new String(dec, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * queryのデコード.
+     * 同じ名前が複数あるときは最初の値. すべて必要なときは QueryString を使う.
+     * @param query '?' のあと または null
+     * @return 名前と値
+     */
+    public static Map<String,String> decodeQuery(String query) {
+        return QueryString.parse(query).toMap();
     }
 }
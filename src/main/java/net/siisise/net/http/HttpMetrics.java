@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+/**
+ * HttpServer の計測の出し先.
+ * Micrometer など好きなものにつなぐ.
+ * I/Oスレッドから呼ぶので、待たずにすぐ戻ること.
+ */
+public interface HttpMetrics {
+
+    /**
+     * 何もしない.
+     */
+    HttpMetrics NONE = new HttpMetrics() {
+    };
+
+    /**
+     * 接続数が変わった.
+     * @param active 今の接続数
+     */
+    default void connections(int active) {
+    }
+
+    /**
+     * 制限を超えたので接続を断った.
+     * @param perAddress IPアドレスごとの制限
+     */
+    default void refused(boolean perAddress) {
+    }
+
+    /**
+     * 期限切れで切った.
+     */
+    default void timeout() {
+    }
+
+    /**
+     * 1リクエスト終わった.
+     * @param stats 時間, 大きさなど
+     */
+    default void completed(RequestStats stats) {
+    }
+}
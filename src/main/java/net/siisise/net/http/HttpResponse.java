@@ -0,0 +1,757 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import net.siisise.json.JSONValue;
+
+/**
+ * HttpServer の応答.
+ * ヘッダとbody (ByteBuffer列 または ファイル) を持つ.
+ * ファイルは FileChannel.transferTo、メモリ上のものは gathering write で送るのでヒープに読み込まない.
+ *
+ * RFC 9110 Section 13 条件付きリクエスト (ETag, Last-Modified, 304)
+ * RFC 9110 Section 14 Range (単一範囲のみ)
+ *
+ * 送信中の状態を持つので1回だけ送れる. 定数にして使い回さないこと.
+ * handler が同じものを2回返すと IllegalStateException になる (500 で返す).
+ * 同じものを何度も返すときは ByteBuffer などを持っておいて毎回作る.
+ */
+public class HttpResponse {
+
+    static final String SERVER = "Siisise Callback";
+    static final String JSON_TYPE = "application/json; charset=utf-8";
+    static final String OCTET_TYPE = "application/octet-stream";
+
+    /**
+     * IMF-fixdate.
+     * RFC_1123_DATE_TIME は日付が1桁になるので使わない
+     */
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    int status;
+    String reason;
+    final Map<String, String> headers = new LinkedHashMap<>();
+
+    /**
+     * メモリ上のbody. 共有されていてもいいように duplicate して使う.
+     */
+    ByteBuffer[] body;
+    /**
+     * ファイルのbody.
+     */
+    Path file;
+    long offset;
+    /**
+     * body の長さ. -1 は不明
+     */
+    long length = -1;
+    boolean ranges;
+    /**
+     * 長さのわからない body. chunked で送る.
+     */
+    Source source;
+    /**
+     * handler から少しずつ書くとき.
+     */
+    HttpStream stream;
+
+    // 送信中
+    private ByteBuffer[] out;
+    private FileChannel fc;
+    private long filePos;
+    private long fileEnd;
+    private ByteBuffer sourceBuf;
+    private boolean sourceEnd;
+    private boolean idle;
+    private long sent;
+    /**
+     * ResponseWriter から借りたもの. 送り終わったら返す.
+     */
+    private ByteBuffer pooledHead;
+    private ByteBuffer pooledBody;
+    /**
+     * handler から受け取った. 2回は送れない
+     */
+    private boolean used;
+
+    /**
+     * 少しずつ作る body.
+     * 圧縮やストリーム用.
+     */
+    interface Source {
+
+        /**
+         * 次に送るもの.
+         * 返したバッファは次の呼び出しまで使わないこと.
+         * @return 送るもの, 空のときは今はない, null で終わり
+         * @throws IOException
+         */
+        ByteBuffer next() throws IOException;
+
+        /**
+         * 終わったとき, 切れたとき.
+         */
+        void close();
+    }
+
+    /**
+     * Transfer-Encoding: chunked の枠をつける.
+     */
+    static class ChunkedSource implements Source {
+
+        private static final byte[] LAST = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        private final Source src;
+        private final ByteBuffer size = ByteBuffer.allocate(12);
+        private final ByteBuffer crlf = ByteBuffer.allocate(2);
+        private ByteBuffer data;
+        private int state;
+
+        ChunkedSource(Source src) {
+            this.src = src;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            switch (state) {
+                case 1: // data
+                    state = 2;
+                    return data;
+                case 2: // CRLF
+                    state = 0;
+                    crlf.clear();
+                    crlf.put((byte) '\r').put((byte) '\n').flip();
+                    return crlf;
+                case 3: // 終わり
+                    return null;
+                default:
+                    break;
+            }
+            data = src.next();
+            if (data == null) {
+                state = 3;
+                return ByteBuffer.wrap(LAST);
+            } else if (!data.hasRemaining()) {
+                return data;
+            }
+            size.clear();
+            size.put(Integer.toHexString(data.remaining()).getBytes(StandardCharsets.ISO_8859_1));
+            size.put((byte) '\r').put((byte) '\n').flip();
+            state = 1;
+            return size;
+        }
+
+        @Override
+        public void close() {
+            src.close();
+        }
+    }
+
+    /**
+     * ファイルの範囲を順に読む.
+     */
+    static class FileSource implements Source {
+
+        private final FileChannel fc;
+        private final ByteBuffer buf = ByteBuffer.allocate(32768);
+        private long pos;
+        private final long end;
+
+        FileSource(Path file, long offset, long length) throws IOException {
+            fc = FileChannel.open(file, StandardOpenOption.READ);
+            pos = offset;
+            end = offset + length;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (pos >= end) {
+                return null;
+            }
+            buf.clear();
+            if (end - pos < buf.capacity()) {
+                buf.limit((int) (end - pos));
+            }
+            int n = fc.read(buf, pos);
+            if (n <= 0) {
+                return null; // 途中で縮んだ
+            }
+            pos += n;
+            buf.flip();
+            return buf;
+        }
+
+        @Override
+        public void close() {
+            try {
+                fc.close();
+            } catch (IOException e) {
+                // 閉じるだけ
+            }
+        }
+    }
+
+    public HttpResponse(int status, String reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    /**
+     * 200 OK で ByteBuffer を返す.
+     * position から limit まで. バッファの位置は変更しないので使い回し可.
+     * @param data body
+     * @param contentType Content-Type
+     * @return 応答
+     */
+    public static HttpResponse buffer(ByteBuffer data, String contentType) {
+        HttpResponse res = new HttpResponse(200, "OK");
+        res.body = new ByteBuffer[] {data.duplicate()};
+        res.length = data.remaining();
+        res.ranges = true;
+        res.header("Content-Type", contentType == null ? OCTET_TYPE : contentType);
+        return res;
+    }
+
+    /**
+     * 200 OK でバイト列.
+     * @param data body
+     * @param contentType Content-Type
+     * @return 応答
+     */
+    public static HttpResponse bytes(byte[] data, String contentType) {
+        return buffer(ByteBuffer.wrap(data), contentType);
+    }
+
+    /**
+     * 200 OK で JSON.
+     * body は使い回しのバッファに書き、送り終わったら返す.
+     * 1回だけ送れる. 毎回作ること.
+     * @param json JSON
+     * @return 応答
+     */
+    public static HttpResponse json(JSONValue json) {
+        return written(new ResponseWriter().json(json), JSON_TYPE);
+    }
+
+    static HttpResponse text(String text, String contentType) {
+        return written(new ResponseWriter().utf8(text), contentType);
+    }
+
+    /**
+     * 使い回しのバッファに直接書いたもの.
+     */
+    private static HttpResponse written(ResponseWriter w, String contentType) {
+        ByteBuffer b = w.finish();
+        HttpResponse res = buffer(b, contentType);
+        res.ranges = false;
+        res.pooledBody = b;
+        return res;
+    }
+
+    /**
+     * 200 OK でファイル.
+     * Last-Modified と ETag (サイズと更新日時から) をつける.
+     * @param path ファイル
+     * @return 応答
+     * @throws IOException ファイルが読めない
+     */
+    public static HttpResponse file(Path path) throws IOException {
+        HttpResponse res = new HttpResponse(200, "OK");
+        res.file = path;
+        res.length = Files.size(path);
+        res.ranges = true;
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        String type = Files.probeContentType(path);
+        res.header("Content-Type", type == null ? OCTET_TYPE : type);
+        res.lastModified(modified);
+        res.etag("\"" + Long.toHexString(res.length) + "-" + Long.toHexString(modified) + "\"");
+        return res;
+    }
+
+    /**
+     * handler の戻り値を応答にする.
+     * JSONValue, String は JSON として扱う (いままでどおり)
+     * @param result handler の戻り
+     * @return 応答
+     * @throws IOException ファイルが読めない
+     */
+    static HttpResponse valueOf(Object result) throws IOException {
+        if (result instanceof HttpResponse) {
+            return ((HttpResponse) result).use();
+        } else if (result instanceof JSONValue) {
+            return json((JSONValue) result);
+        } else if (result instanceof Map || result instanceof List) {
+            return written(new ResponseWriter().json(result), JSON_TYPE);
+        } else if (result instanceof Path) {
+            return file((Path) result);
+        } else if (result instanceof File) {
+            return file(((File) result).toPath());
+        } else if (result instanceof ByteBuffer) {
+            return buffer((ByteBuffer) result, null);
+        } else if (result instanceof byte[]) {
+            return bytes((byte[]) result, null);
+        } else if (result instanceof HttpStream) {
+            return ((HttpStream) result).response();
+        } else if (result instanceof EventStream) {
+            return ((EventStream) result).response();
+        } else if (result == null) {
+            return error(404, "Not Found");
+        }
+        return text(result.toString(), JSON_TYPE);
+    }
+
+    /**
+     * 送る前に1回だけ.
+     * 使い回しのバッファは送り終わったら返しているので2回目は送らない.
+     * @return this
+     * @throws IllegalStateException 2回目
+     */
+    synchronized HttpResponse use() {
+        if (used) {
+            throw new IllegalStateException("HttpResponse is single-use");
+        }
+        used = true;
+        return this;
+    }
+
+    /**
+     * ヘッダ.
+     * @param name 名前 token
+     * @param value 値 ISO-8859-1 の範囲, CR LF は不可
+     * @return this
+     * @throws IllegalArgumentException 送れない名前, 値
+     */
+    public HttpResponse header(String name, String value) {
+        ResponseWriter.checkField(name, value);
+        headers.put(name, value);
+        return this;
+    }
+
+    public HttpResponse contentType(String type) {
+        return header("Content-Type", type);
+    }
+
+    /**
+     * ETag.
+     * @param etag 引用符つき "xxx" または W/"xxx"
+     * @return this
+     */
+    public HttpResponse etag(String etag) {
+        return header("ETag", etag);
+    }
+
+    public HttpResponse lastModified(long millis) {
+        return header("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(millis)));
+    }
+
+    public int status() {
+        return status;
+    }
+
+    /**
+     * 本文なしのエラーなど.
+     * @param status 状態コード
+     * @param reason 理由
+     * @return 応答
+     */
+    static HttpResponse error(int status, String reason) {
+        HttpResponse res = new HttpResponse(status, reason);
+        res.length = 0;
+        return res;
+    }
+
+    /**
+     * HTTP-date の読み取り.
+     * @param date IMF-fixdate など
+     * @return 秒単位の時刻 または 読めないとき -1
+     */
+    static long parseDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 弱い比較でどれかに一致する.
+     * opaque-tag には ',' も入るので '"' で区切って読む. RFC 9110 8.8.3
+     * 読めないところから先は一致しないものとする.
+     * @param list If-None-Match の値
+     * @param etag ETag
+     * @return 一致
+     */
+    static boolean matchWeak(String list, String etag) {
+        if (list.trim().equals("*")) {
+            return true;
+        }
+        String tag = opaque(etag);
+        int i = 0;
+        while (i < list.length()) {
+            char c = list.charAt(i);
+            if (c == ' ' || c == '\t' || c == ',') {
+                i++;
+                continue;
+            }
+            if (list.startsWith("W/", i)) {
+                i += 2;
+            }
+            int end = list.indexOf('"', i + 1);
+            if (i >= list.length() || list.charAt(i) != '"' || end < 0) {
+                return false;
+            }
+            if (list.substring(i, end + 1).equals(tag)) {
+                return true;
+            }
+            i = end + 1;
+        }
+        return false;
+    }
+
+    private static String opaque(String etag) {
+        String t = etag.trim();
+        return t.startsWith("W/") ? t.substring(2) : t;
+    }
+
+    /**
+     * 条件付きリクエストと Range の処理.
+     * 200 のときだけ 304, 206, 416 に変える.
+     * @param method リクエストメソッド
+     * @param req リクエストヘッダ 名前は小文字
+     * @return 応答 (this または 304/416)
+     */
+    HttpResponse conditional(String method, Map<String, String> req) {
+        if (status != 200 || !("GET".equals(method) || "HEAD".equals(method))) {
+            return this;
+        }
+        String etag = headers.get("ETag");
+        String modified = headers.get("Last-Modified");
+        String inm = req.get("if-none-match");
+        if (inm != null) {
+            if (etag != null && matchWeak(inm, etag)) {
+                return notModified();
+            }
+        } else {
+            String ims = req.get("if-modified-since");
+            if (ims != null && modified != null) {
+                long since = parseDate(ims);
+                if (since >= 0 && parseDate(modified) <= since) {
+                    return notModified();
+                }
+            }
+        }
+        String range = req.get("range");
+        if (range != null && ranges && length >= 0 && "GET".equals(method) && ifRange(req.get("if-range"), etag, modified)) {
+            return range(range);
+        }
+        return this;
+    }
+
+    private HttpResponse notModified() {
+        release();
+        HttpResponse res = new HttpResponse(304, "Not Modified");
+        for (String name : new String[] {"ETag", "Last-Modified", "Cache-Control", "Expires", "Vary"}) {
+            String v = headers.get(name);
+            if (v != null) {
+                res.header(name, v);
+            }
+        }
+        res.length = 0;
+        return res;
+    }
+
+    /**
+     * If-Range は強い比較か日付の完全一致.
+     */
+    private static boolean ifRange(String ifRange, String etag, String modified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        return modified != null && parseDate(ifRange) >= 0 && parseDate(ifRange) == parseDate(modified);
+    }
+
+    /**
+     * bytes=first-last, bytes=first-, bytes=-suffix の1範囲のみ.
+     * 複数範囲や読めないもの (last が first より前など) は無視して全体を返す.
+     * 読めるが範囲外のときだけ 416. RFC 9110 14.1.1, 14.2
+     * @param range Range ヘッダ
+     * @return this (200, 206) または 416
+     */
+    private HttpResponse range(String range) {
+        range = range.trim();
+        if (!range.regionMatches(true, 0, "bytes=", 0, 6) || range.indexOf(',') >= 0) {
+            return this;
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return this;
+        }
+        long first = digits(spec.substring(0, dash));
+        long last = digits(spec.substring(dash + 1));
+        if (dash == 0) { // suffix
+            if (last < 0) {
+                return this;
+            } else if (last == 0) {
+                return unsatisfiable();
+            }
+            first = Math.max(0, length - last);
+            last = length - 1;
+        } else if (first < 0) {
+            return this;
+        } else if (dash == spec.length() - 1) {
+            last = length - 1;
+        } else if (last < first) { // 読めない, 逆順
+            return this;
+        } else {
+            last = Math.min(last, length - 1);
+        }
+        if (first >= length) {
+            return unsatisfiable();
+        }
+        status = 206;
+        reason = "Partial Content";
+        header("Content-Range", "bytes " + first + "-" + last + "/" + length);
+        long len = last - first + 1;
+        if (file != null) {
+            offset += first;
+        } else {
+            ByteBuffer b = body[0].duplicate();
+            b.position(b.position() + (int) first);
+            b.limit(b.position() + (int) len);
+            body = new ByteBuffer[] {b};
+        }
+        length = len;
+        return this;
+    }
+
+    /**
+     * 1*DIGIT
+     * @return 値 または 読めないとき -1
+     */
+    private static long digits(String s) {
+        if (s.isEmpty() || s.length() > 18) {
+            return -1;
+        }
+        long v = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private HttpResponse unsatisfiable() {
+        release();
+        HttpResponse res = new HttpResponse(416, "Range Not Satisfiable");
+        res.header("Content-Range", "bytes */" + length);
+        res.length = 0;
+        return res;
+    }
+
+    /**
+     * 状態行とヘッダ.
+     * 決まったものは符号化済みのものを使い、使い回しのバッファに直接書く.
+     * @return CRLF CRLF まで
+     */
+    ByteBuffer head() {
+        ResponseWriter w = new ResponseWriter();
+        w.status(status, reason).put(ResponseWriter.SERVER);
+        if (ranges && status == 200) {
+            w.put(ResponseWriter.ACCEPT_RANGES);
+        }
+        for (Map.Entry<String, String> h : headers.entrySet()) {
+            w.header(h.getKey(), h.getValue());
+        }
+        if (source != null) {
+            w.put(ResponseWriter.CHUNKED);
+        } else if (status != 304) {
+            w.put(ResponseWriter.CONTENT_LENGTH).decimal(Math.max(length, 0)).put(ResponseWriter.CRLF);
+        }
+        w.put(ResponseWriter.CLOSE);
+        if (pooledHead != null) {
+            ResponseWriter.recycle(pooledHead);
+        }
+        pooledHead = w.finish();
+        return pooledHead;
+    }
+
+    /**
+     * 送信の準備.
+     * ヘッダとメモリ上の body は gathering write でまとめて、ファイルは transferTo で送る.
+     * @param head HEAD メソッドのときは body を送らない
+     * @throws IOException ファイルが開けない
+     */
+    void begin(boolean head) throws IOException {
+        ByteBuffer hd = head();
+        if (head || status == 304 || (body == null && file == null && source == null)) {
+            out = new ByteBuffer[] {hd};
+            if (source != null) {
+                source.close();
+                sourceEnd = true;
+            }
+        } else if (source != null) {
+            out = new ByteBuffer[] {hd};
+            source = new ChunkedSource(source);
+        } else if (file == null) {
+            out = new ByteBuffer[body.length + 1];
+            out[0] = hd;
+            for (int i = 0; i < body.length; i++) {
+                out[i + 1] = body[i].duplicate();
+            }
+        } else {
+            out = new ByteBuffer[] {hd};
+            fc = FileChannel.open(file, StandardOpenOption.READ);
+            filePos = offset;
+            fileEnd = offset + length;
+        }
+    }
+
+    /**
+     * 送れるところまで送る.
+     * non-blocking の channel でも使えるように、書けなくなったら戻る.
+     * @param ch 出力先 SocketChannel など
+     * @return 全部送った
+     * @throws IOException
+     */
+    boolean send(GatheringByteChannel ch) throws IOException {
+        idle = false;
+        while (remaining(out) > 0) {
+            long n = ch.write(out);
+            if (n == 0) {
+                return false;
+            }
+            sent += n;
+        }
+        if (fc != null) {
+            while (filePos < fileEnd) {
+                long n = fc.transferTo(filePos, fileEnd - filePos, ch);
+                if (n == 0) {
+                    if (filePos < fc.size()) {
+                        return false; // 送信バッファがいっぱい
+                    }
+                    break; // 途中で縮んだ
+                }
+                filePos += n;
+                sent += n;
+            }
+            release();
+        }
+        while (source != null && !sourceEnd) {
+            if (sourceBuf == null || !sourceBuf.hasRemaining()) {
+                sourceBuf = source.next();
+                if (sourceBuf == null) {
+                    sourceEnd = true;
+                    source.close();
+                    break;
+                } else if (!sourceBuf.hasRemaining()) {
+                    idle = true;
+                    return false; // 今はない
+                }
+            }
+            int n = ch.write(sourceBuf);
+            if (n == 0) {
+                return false;
+            }
+            sent += n;
+        }
+        return true;
+    }
+
+    /**
+     * @return 送った量
+     */
+    long sent() {
+        return sent;
+    }
+
+    /**
+     * send が送るものがなくて止まった.
+     * @return 次は stream から起こされるまで待つ
+     */
+    boolean idle() {
+        return idle;
+    }
+
+    /**
+     * stream に書かれたら I/Oスレッドを起こすようにする.
+     * @param wake 書き込み待ちにするもの
+     */
+    void attach(Runnable wake) {
+        if (stream != null) {
+            stream.attach(wake);
+        }
+    }
+
+    /**
+     * 開いているファイルを閉じる.
+     * 借りたバッファを返す.
+     */
+    void release() {
+        if (pooledHead != null) {
+            ResponseWriter.recycle(pooledHead);
+            pooledHead = null;
+        }
+        if (pooledBody != null) {
+            ResponseWriter.recycle(pooledBody);
+            pooledBody = null;
+        }
+        if (source != null && !sourceEnd) {
+            sourceEnd = true;
+            source.close();
+        }
+        if (fc != null) {
+            try {
+                fc.close();
+            } catch (IOException e) {
+                // 閉じるだけ
+            }
+            fc = null;
+        }
+    }
+
+    static long remaining(ByteBuffer[] srcs) {
+        long remaining = 0;
+        for (ByteBuffer b : srcs) {
+            remaining += b.remaining();
+        }
+        return remaining;
+    }
+}
@@ -16,25 +16,36 @@
 package net.siisise.net.http;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.Charset;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
 import net.siisise.abnf.ABNF;
 import net.siisise.abnf.ABNFReg;
 import net.siisise.abnf.parser5234.ABNF5234;
 import net.siisise.abnf.rfc.HTTP9112;
 import net.siisise.block.ReadableBlock;
 import net.siisise.bnf.BNF;
-import net.siisise.io.FileIO;
 import net.siisise.io.FrontPacket;
 import net.siisise.io.Packet;
 import net.siisise.io.PacketA;
@@ -44,13 +55,60 @@ import net.siisise.json.JSONObject;
  * OAuth client 用の簡易HTTPサーバ.
  * セッション1つ、データ1つのみ返す。
  * 何故作るはめに
+ * oneShot を外すと続けて受け付けるので JWKS や discovery を置くこともできる.
+ * 
+ * I/Oスレッド1つで受け付けとリクエストの解析をして、handler は worker で動かす.
+ * worker が埋まっているときは 503 を返す.
+ * SSLContext を設定すると https になる.
+ * ヘッダの期限と大きさ、接続数は制限する. 遅いクライアントに接続を占有させない.
  * 
  * ToDo HTTP/2, WebSocket へのUpgrage
  */
 public class HttpServer implements Runnable {
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
     private Thread thread;
-    Map<String,Function<JSONObject,Object>> pagemap = new HashMap<>();
+    Map<String,Function<JSONObject,Object>> pagemap = new ConcurrentHashMap<>();
+    /**
+     * null は ConcurrentHashMap に入らないので代わり.
+     */
+    private static final String ANY = "";
+    private final Queue<HttpConnection> ready = new ConcurrentLinkedQueue<>();
+    private int workerThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private int workerQueue = 64;
+    private final Map<String,Integer> routeLimits = new ConcurrentHashMap<>();
+    private HttpWorkers workers;
+    /**
+     * 応答の圧縮. null で圧縮しない.
+     */
+    private volatile HttpCompression compression;
+
+    private SSLContext sslContext;
+    /**
+     * ALPN. 今は http/1.1 のみ.
+     */
+    private BiFunction<SSLEngine,List<String>,String> alpn = HttpServer::alpnHttp11;
+    /**
+     * 1回応答したら閉じる.
+     */
+    private boolean oneShot = true;
+
+    private int maxHeader = HttpConnection.MAX_HEAD;
+    private int maxLine = HttpConnection.MAX_LINE;
+    private long headerTimeout = 10000;
+    private long writeTimeout = 30000;
+    private int maxConnections = 10000;
+    private int maxPerAddress = 256;
+    /**
+     * 接続数. I/Oスレッドのみ更新
+     */
+    private volatile int connections;
+    private final Map<InetAddress,Integer> perAddress = new HashMap<>();
+    private TimerWheel<HttpConnection> timers;
+    private volatile HttpMetrics metrics = HttpMetrics.NONE;
+    private volatile AccessLog accessLog;
+    private static final ByteBuffer BUSY = ByteBuffer.wrap(("HTTP/1.1 503 Service Unavailable\r\nServer: " + HttpResponse.SERVER
+            + "\r\nRetry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)).asReadOnlyBuffer();
 
     /**
      * callback Local用 とりあえず
@@ -65,11 +123,188 @@ public class HttpServer implements Runnable {
      * @param page
      */
     public void callback(Function<JSONObject,Object> page) {
-        pagemap.put(null, page);
+        pagemap.put(ANY, page);
     }
 
     public void callback(String path, Function<JSONObject,Object> page) {
-        pagemap.put(path, page);
+        pagemap.put(path == null ? ANY : path, page);
+    }
+
+    /**
+     * https にする.
+     * start 前に設定する.
+     * サーバ鍵と証明書は SSLContext で.
+     * @param context サーバ用 SSLContext または null で http
+     */
+    public void setSSLContext(SSLContext context) {
+        sslContext = context;
+    }
+
+    /**
+     * TLS セッションキャッシュ.
+     * handshake を省略できるようにする.
+     * TLS 1.3 の session ticket は JDK の jdk.tls.server.enableSessionTicketExtension で.
+     * @param size キャッシュ数 0で無制限
+     * @param timeoutSeconds 有効期間 秒
+     */
+    public void setSessionCache(int size, int timeoutSeconds) {
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(size);
+        sessions.setSessionTimeout(timeoutSeconds);
+    }
+
+    /**
+     * ALPN の選択.
+     * HTTP/2 などを追加するとき用.
+     * 選んだものは callback の params alpn に入る.
+     * @param selector SSLEngine とクライアントの候補から選ぶ. 空文字列は ALPN を使わない
+     */
+    public void setApplicationProtocolSelector(BiFunction<SSLEngine,List<String>,String> selector) {
+        alpn = selector;
+    }
+
+    static String alpnHttp11(SSLEngine engine, List<String> protocols) {
+        return protocols.contains("http/1.1") ? "http/1.1" : "";
+    }
+
+    /**
+     * @return https
+     */
+    public boolean isSecure() {
+        return sslContext != null;
+    }
+
+    /**
+     * handler を動かす worker の数と待ち行列の長さ.
+     * start 前に設定する.
+     * @param threads スレッド数
+     * @param queue 待ち行列 あふれたら 503
+     */
+    public void setWorkers(int threads, int queue) {
+        workerThreads = threads;
+        workerQueue = queue;
+    }
+
+    /**
+     * path ごとの同時実行数の制限.
+     * 超えたら 503.
+     * @param path callback の path または null (指定なし)
+     * @param max 最大数 0で制限なし
+     */
+    public void setRouteLimit(String path, int max) {
+        String route = path == null ? ANY : path;
+        routeLimits.put(route, max);
+        HttpWorkers w = workers;
+        if ( w != null ) {
+            w.limit(route, max);
+        }
+    }
+
+    /**
+     * @return 待ち行列にある handler の数
+     */
+    public int getQueueDepth() {
+        HttpWorkers w = workers;
+        return w == null ? 0 : w.queueDepth();
+    }
+
+    /**
+     * @return 動いている handler の数
+     */
+    public int getActiveCount() {
+        HttpWorkers w = workers;
+        return w == null ? 0 : w.active();
+    }
+
+    /**
+     * @return 混んでいて 503 にした数
+     */
+    public long getRejectedCount() {
+        HttpWorkers w = workers;
+        return w == null ? 0 : w.rejected();
+    }
+
+    /**
+     * gzip / deflate で圧縮する.
+     * text, json, xml などで minSize 以上のもの. Range 要求のときは圧縮しない.
+     * @param level 圧縮レベル 1-9, 0 で圧縮しない
+     * @param minSize これより小さいものは圧縮しない
+     */
+    public synchronized void setCompression(int level, int minSize) {
+        HttpCompression old = compression;
+        compression = level <= 0 ? null : new HttpCompression(Math.min(level, 9), minSize);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * 遅いクライアント対策.
+     * ヘッダを読み終わるまでの時間と、送信が進まないときに待つ時間.
+     * 過ぎたら切る.
+     * @param headerMillis 接続からヘッダの終わりまで ミリ秒
+     * @param writeMillis 送信が止まってから ミリ秒
+     */
+    public void setTimeouts(long headerMillis, long writeMillis) {
+        headerTimeout = headerMillis;
+        writeTimeout = writeMillis;
+    }
+
+    /**
+     * ヘッダの大きさの制限.
+     * 超えたら 431 または 414 (開始行) を返して切る.
+     * @param header ヘッダ全体の最大 byte
+     * @param line 1行の最大 byte
+     */
+    public void setHeaderLimits(int header, int line) {
+        maxHeader = header;
+        maxLine = line;
+    }
+
+    /**
+     * 同時接続数の制限.
+     * 超えたら 503 を返して切る.
+     * @param max 全体
+     * @param perAddress 同じ IPアドレスから
+     */
+    public void setConnectionLimits(int max, int perAddress) {
+        maxConnections = max;
+        maxPerAddress = perAddress;
+    }
+
+    /**
+     * 計測の出し先.
+     * @param metrics 出し先 または null で出さない
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics == null ? HttpMetrics.NONE : metrics;
+    }
+
+    /**
+     * アクセスログ.
+     * close しても AccessLog は閉じない.
+     * @param log ログ または null
+     */
+    public void setAccessLog(AccessLog log) {
+        accessLog = log;
+    }
+
+    /**
+     * @return 今の接続数
+     */
+    public int getConnectionCount() {
+        return connections;
+    }
+
+    /**
+     * 1回で閉じるか続けるか.
+     * callback の戻り値は JSONObject, String のほか
+     * HttpResponse, Path, File, ByteBuffer, byte[] も使える.
+     * HttpStream, EventStream を返すと handler が戻ったあとも少しずつ送れる.
+     * @param once true 1回だけ (初期値), false 閉じるまで続ける
+     */
+    public void setOneShot(boolean once) {
+        oneShot = once;
     }
 
     /**
@@ -80,17 +315,52 @@ public class HttpServer implements Runnable {
      * @throws java.io.IOException 
      */
     public int start(InetAddress addr, int port) throws IOException {
-        serverSocket = new ServerSocket(port,1, addr);
-        port = serverSocket.getLocalPort();
-        thread = new Thread(this);
+        workers = new HttpWorkers(workerThreads, workerQueue);
+        timers = new TimerWheel<>(100, 1024, now());
+        routeLimits.forEach(workers::limit);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(addr, port), oneShot ? 1 : 0);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        port = ((InetSocketAddress)serverChannel.getLocalAddress()).getPort();
+        thread = new Thread(this, "HttpServer-io-" + port);
         thread.start();
         return port;
     }
 
     public void close() throws IOException {
-        if ( serverSocket != null ) {
-            serverSocket.close();
-            serverSocket = null;
+        if ( serverChannel != null ) {
+            serverChannel.close();
+            serverChannel = null;
+        }
+        if ( selector != null ) {
+            Selector sel = selector;
+            selector = null;
+            if ( Thread.currentThread() == thread ) {
+                closeAll(sel);
+            } else {
+                sel.wakeup(); // I/Oスレッドで閉じる
+            }
+        }
+        if ( workers != null ) {
+            workers.shutdown();
+        }
+    }
+
+    private static void closeAll(Selector sel) {
+        if ( !sel.isOpen() ) {
+            return;
+        }
+        for ( SelectionKey key : sel.keys() ) {
+            if ( key.attachment() instanceof HttpConnection ) {
+                ((HttpConnection)key.attachment()).close();
+            }
+        }
+        try {
+            sel.close();
+        } catch (IOException ex) {
+            // 閉じるだけ
         }
     }
 
@@ -103,12 +373,6 @@ public class HttpServer implements Runnable {
     static final ABNF TS = REG.ref("trailer-section");
     static final ABNF FIELDLINE2 = REG.rule("fl2",REG.ref("trailer-section").pl(ABNF5234.CRLF));
     
-    String[] responses = {
-        "HTTP/1.1 200 OK",
-        "Server: Siisise Callback",
-        "Content-Type: application/json; charset=utf-8"
-    };
-
     String[] hds = {"method", "request-target"};
     
     String[] qs = {"query"};
@@ -157,119 +421,386 @@ public class HttpServer implements Runnable {
     }
 
     /**
-     * パターン待ち. 仮
-     * ABNFルールに一致するまで待つよ
-     * @param in 入力
-     * @param rulename ABNFルール名
-     * @param subrules サブルール
-     * @return 抽出結果
-     * @throws IOException 
+     * field-line からヘッダ表を作る.
+     * 同じ名前は , でつなぐ.
+     * @param lines field-line
+     * @return 小文字の名前と値
      */
-    ABNF.Match<Packet> wait(Packet pac, InputStream in, String rulename, String... subrules) throws IOException {
-        ABNF.Match<Packet> request;
-        do {
-            pac.write(FileIO.readAvailablie(in));
-            request = REG.find(pac, rulename, subrules);
-        } while ( request == null);
-        return request;
+    static Map<String,String> headerMap(List<String> lines) {
+        Map<String,String> headers = new LinkedHashMap<>();
+        if ( lines != null ) {
+            for ( String line : lines ) {
+                int c = line.indexOf(':');
+                if ( c > 0 ) {
+                    String name = line.substring(0, c).trim().toLowerCase(Locale.ROOT);
+                    String value = line.substring(c + 1).trim();
+                    headers.merge(name, value, (a, b) -> a + ", " + b);
+                }
+            }
+        }
+        return headers;
     }
-    
+
     /**
-     * Java EE っぽい.
-     * @param soc
-     * @throws IOException 
+     * 開始行の request-target から query を探す.
+     * '#' は来ないはず.
+     * @param head 開始行からヘッダ
+     * @return query 名前と値 なければ空
      */
-    void connect(Socket soc) throws IOException {
-        System.out.println("connect...");
-        System.out.println("port: " + soc.getPort());
-        System.out.println("localport: " + soc.getLocalPort());
-        try {
-            InputStream in = soc.getInputStream();
-            OutputStream out = soc.getOutputStream();
+    static QueryString query(byte[] head) {
+        int i = 0;
+        while (i < head.length && head[i] != ' ') { // method
+            i++;
+        }
+        int q = -1;
+        int e = ++i;
+        for (; e < head.length; e++) {
+            byte c = head[e];
+            if (c == ' ' || c == '\r' || c == '\n') {
+                break;
+            } else if (c == '?' && q < 0) {
+                q = e;
+            }
+        }
+        return q < 0 ? QueryString.parse(null) : QueryString.parse(head, q + 1, e - q - 1);
+    }
 
-            Packet pac = new PacketA();
+    /**
+     * リクエストヘッダの解析.
+     * I/Oスレッドで行う.
+     * ヘッダは conn.headers にも入れる.
+     * @param conn 接続
+     * @param head 開始行からヘッダの終わりの空行まで
+     * @return method, request-target, absolute-path, query, header など または 読めないとき null
+     */
+    JSONObject parse(HttpConnection conn, byte[] head) {
+        Packet pac = new PacketA(head);
 
-            // HTTP/1.1 待ち
-            ABNF.Match<Packet> request = wait(pac, in, "rql", "method", "request-target");
-            dump(request.sub);
-            dump(pac);
+        // HTTP/1.1
+        ABNF.Match<Packet> request = REG.find(pac, "rql", "method", "request-target");
+        if ( request == null ) {
+            return null;
+        }
 
-//            ABNF.Match<Packet> trailer = REG.find(pac, "trailer-section", "field-line");
-//                trailer = REG.find(pac, "trailer-section", "field-line");
-            ABNF.Match<Packet> trailer = REG.find(pac, "fl2","field-line");
+        ABNF.Match<Packet> trailer = REG.find(pac, "fl2","field-line");
+        if ( trailer == null ) {
+            trailer = REG.find(pac, "trailer-section","field-line");
             if ( trailer == null ) {
-                trailer = wait(pac, in,"trailer-section","field-line");
+                return null;
+            }
+        }
+
+        JSONObject params = new JSONObject();
+
+        Packet method = request.get("method").get(0);
+        Packet target = request.get("request-target").get(0);
+        params.put("scheme", isSecure() ? "https" : "http");
+        params.put("method", strd(method));
+        params.put("request-target", strd(target));
+        BNF.Match<Packet> queryMatch = HTTP9112.REG.find(target, "request-target", "absolute-path","query");
+        if ( queryMatch == null ) {
+            return null;
+        }
+        String absolutePath = strd(queryMatch.get("absolute-path").get(0));
+        // ToDo: absolutePath の正規化
+        params.put("absolute-path", absolutePath);
+        // query は文字列にせず head から直接読む
+        QueryString query = query(head);
+        params.put("query", query.toMap());
+        params.put("queries", query.toMultiMap());
+
+        List<Packet> lineps = trailer.get("field-line");
+        List<String> lines = null;
+        if ( lineps != null) {
+            lines = lineps.stream().map(v -> strd(v)).collect(Collectors.toList());
+            params.put("req", lines);
+        }
+        Map<String,String> headers = headerMap(lines);
+        conn.headers = headers;
+        params.put("header", headers);
+        params.put("linelen", trailer.sub.length());
+        return params;
+    }
+
+    /**
+     * Java EE っぽい.
+     * ヘッダまで読めたら handler を worker に渡す.
+     * @param conn 接続
+     * @param params 解析済みリクエスト
+     */
+    void dispatch(HttpConnection conn, JSONObject params) {
+        String absolutePath = (String)params.get("absolute-path");
+        String route = absolutePath;
+        Function<JSONObject,Object> page = pagemap.get(route);
+        if ( page == null ) {
+            route = ANY;
+            page = pagemap.get(route);
+        }
+        String m = (String)params.get("method");
+        conn.method = m;
+        conn.target = (String)params.get("request-target");
+        conn.route = route;
+        boolean head = "HEAD".equals(m);
+        Map<String,String> headers = conn.headers;
+        Function<JSONObject,Object> handler = page;
+        boolean accepted = workers.submit(route, () -> {
+            conn.handlerStart = System.nanoTime();
+            HttpResponse response;
+            try {
+                Object result = handler == null ? null : handler.apply(params);
+                // 条件付き, Range をみてから body は gathering write / transferTo で直接送る
+                response = HttpResponse.valueOf(result);
+                HttpCompression comp = compression;
+                int coding = 0;
+                if ( comp != null ) { // Range のときは圧縮しない
+                    String accept = headers.containsKey("range") ? null : headers.get("accept-encoding");
+                    coding = comp.prepare(response, accept);
+                }
+                HttpResponse res = response.conditional(m, headers);
+                if ( res == response && coding != 0 ) { // 304 などは圧縮しない
+                    HttpWorkers w = workers;
+                    comp.encode(res, coding, w::execute);
+                }
+                response = res;
+            } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace();
+                response = HttpResponse.error(500, "Internal Server Error");
+            }
+            conn.respond(response, head);
+        });
+        if ( !accepted ) {
+            conn.respond(HttpResponse.error(503, "Service Unavailable").header("Retry-After", "1"), head);
+        }
+    }
+
+    /**
+     * 書き込み待ちにする.
+     * worker から呼ばれるので I/Oスレッドに切り替える.
+     * @param conn 接続
+     */
+    void ready(HttpConnection conn) {
+        ready.add(conn);
+        Selector sel = selector;
+        if ( sel != null ) {
+            sel.wakeup();
+        }
+    }
+
+    private void accept(Selector sel) throws IOException {
+        SocketChannel ch;
+        while ( serverChannel != null && (ch = serverChannel.accept()) != null ) {
+            ch.configureBlocking(false);
+            InetAddress address = ((InetSocketAddress)ch.getRemoteAddress()).getAddress();
+            int count = perAddress.getOrDefault(address, 0);
+            if ( connections >= maxConnections || count >= maxPerAddress ) {
+                try {
+                    ch.write(BUSY.duplicate()); // 送れなくてもいい
+                } catch (IOException ex) {
+                    // 閉じるだけ
+                } finally {
+                    ch.close();
+                }
+                metrics.refused(connections < maxConnections);
+                continue;
             }
-            dump(trailer.sub);
-
-//            dump(fl);
-
-            JSONObject params = new JSONObject();
-
-            Packet method = request.get("method").get(0);
-            Packet target = request.get("request-target").get(0);
-            params.put("method", strd(method));
-            params.put("request-target", strd(target));
-            BNF.Match<Packet> queryMatch = HTTP9112.REG.find(target, "request-target", "absolute-path","query");
-            String absolutePath = strd(queryMatch.get("absolute-path").get(0));
-            // ToDo: absolutePath の正規化
-            params.put("absolute-path", absolutePath);
-            String query = strd(queryMatch.get("query").get(0));
-            Map <String,String> queryMap = HttpEncode.decodeQuery(query);
-            //JSONValue queryJson = JSON.valueOf(queryMap);
-            params.put("query", queryMap);
-
-//            ABNF.Match linematch = REG.find(trailer.sub,"trailer", "field-line");
-            List<Packet> lineps = trailer.get("field-line");
-            if ( lineps != null) {
-                List<String> lines = lineps.stream().map(v -> strd(v)).collect(Collectors.toList());
-                params.put("req", lines);
+            perAddress.put(address, count + 1);
+            connections++;
+            metrics.connections(connections);
+            TlsChannel tls = null;
+            HttpConnection[] self = new HttpConnection[1];
+            if ( sslContext != null ) {
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setHandshakeApplicationProtocolSelector(alpn);
+                tls = new TlsChannel(ch, engine, workers::execute, () -> ready(self[0]));
             }
-            params.put("linelen", trailer.sub.length());
+            HttpConnection conn = new HttpConnection(this, ch, tls, address);
+            self[0] = conn;
+            conn.key = ch.register(sel, SelectionKey.OP_READ, conn);
+            timers.schedule(conn.timer, now() + headerTimeout);
+        }
+    }
 
-            Function<JSONObject,Object> page = pagemap.get(absolutePath);
-            if ( page == null ) {
-                page = pagemap.get(null);
+    private void read(HttpConnection conn) {
+        if ( conn.responded() ) { // stream の途中
+            try {
+                if ( conn.discard() ) {
+                    return;
+                }
+            } catch (IOException ex) {
+                // 切れた
+            }
+            finish(conn);
+            return;
+        }
+        byte[] head;
+        try {
+            head = conn.readHead(maxHeader, maxLine);
+        } catch (HttpConnection.LimitException ex) {
+            timers.cancel(conn.timer);
+            conn.headRead = System.nanoTime();
+            conn.key.interestOps(0);
+            conn.respond(HttpResponse.error(ex.status, ex.reason), false);
+            return;
+        } catch (IOException ex) {
+            conn.close();
+            return;
+        }
+        if ( head == null ) { // まだ
+            if ( conn.tls != null ) {
+                if ( conn.tls.busy() ) {
+                    conn.key.interestOps(0); // handshake の task 待ち
+                } else if ( conn.tls.pending() ) {
+                    conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } else {
+                    conn.key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            return;
+        }
+        conn.key.interestOps(0);
+        timers.cancel(conn.timer); // handler の時間は制限しない
+        conn.headRead = System.nanoTime();
+        conn.bytesIn = head.length;
+        JSONObject params = parse(conn, head);
+        conn.parsed = System.nanoTime();
+        if ( params != null && conn.tls != null ) {
+            String protocol = conn.tls.applicationProtocol();
+            if ( protocol != null ) {
+                params.put("alpn", protocol);
             }
-            Object result = page.apply(params);
+        }
+        if ( params == null ) {
+            conn.respond(HttpResponse.error(400, "Bad Request"), false);
+        } else {
+            dispatch(conn, params);
+        }
+    }
 
-            StringBuilder rh = new StringBuilder();
-            // response header
-            for ( String h : responses ) {
-                rh.append(h);
-                rh.append("\r\n");
+    private void write(HttpConnection conn) {
+        if ( !conn.responded() ) { // TLS handshake の続き
+            try {
+                if ( conn.tls.flush() ) {
+                    read(conn);
+                }
+            } catch (IOException ex) {
+                conn.close();
             }
-            rh.append("\r\n");
-
-            Charset utf8 = StandardCharsets.UTF_8;
-            out.write(rh.toString().getBytes(utf8));
-            //out.write("\r\n".getBytes(utf8));
-            // body
-            if ( result instanceof JSONObject ) {
-                String json = ((JSONObject)result).toJSON();
-                out.write(json.getBytes(utf8));
-            } else {
-                out.write(((String)result).getBytes(utf8));
+            return;
+        }
+        try {
+            if ( !conn.write() ) {
+                if ( conn.idle() ) { // stream に書かれるまで待つ. 切れたら読めるのでわかる
+                    conn.key.interestOps(SelectionKey.OP_READ);
+                    timers.cancel(conn.timer);
+                } else { // 相手が読まないと送信バッファが空かない
+                    timers.schedule(conn.timer, now() + writeTimeout);
+                }
+                return; // 続きは次
+            }
+        } catch (IOException ex) {
+            // 切れた
+        }
+        finish(conn);
+    }
+
+    /**
+     * HttpConnection が閉じた.
+     * I/Oスレッド
+     * @param conn 接続
+     */
+    void closed(HttpConnection conn, HttpResponse res) {
+        TimerWheel<HttpConnection> t = timers;
+        if ( t != null ) {
+            t.cancel(conn.timer);
+        }
+        connections--;
+        perAddress.computeIfPresent(conn.address, (a, c) -> c > 1 ? c - 1 : null);
+        HttpMetrics m = metrics;
+        AccessLog log = accessLog;
+        m.connections(connections);
+        if ( conn.headRead != 0 && (m != HttpMetrics.NONE || log != null) ) {
+            RequestStats stats = new RequestStats(conn, res, System.nanoTime());
+            m.completed(stats);
+            if ( log != null ) {
+                log.completed(stats);
+            }
+        }
+    }
+
+    /**
+     * 期限切れ. ヘッダが来ない, 送信が進まない.
+     * @param conn 接続
+     */
+    private void timeout(HttpConnection conn) {
+        metrics.timeout();
+        conn.close();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * 応答が終わった, 切れた.
+     * @param conn 接続
+     */
+    private void finish(HttpConnection conn) {
+        conn.close();
+        if ( oneShot ) {
+            try {
+                close();
+            } catch (IOException ex) {
+                // 閉じるだけ
             }
-            out.write("\r\n".getBytes(utf8));
-            out.flush();
-        } finally {
-            soc.close();
-            close();
         }
     }
 
     /**
      * 何かそんな感じで動くだけ.
+     * I/Oスレッド
      */
     @Override
     public void run() {
-        try {
-            Socket soc = serverSocket.accept();
-            connect(soc); // 1回だけ
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            // 繋がらない
+        Selector sel = selector;
+        while ( selector == sel && sel.isOpen() ) {
+            try {
+                sel.select(timers.size() > 0 ? timers.tick() : 0);
+            } catch (IOException ex) {
+                break;
+            }
+            timers.expire(now(), this::timeout);
+            HttpConnection conn;
+            while ( (conn = ready.poll()) != null ) {
+                if ( !conn.key.isValid() ) {
+                    continue;
+                }
+                if ( conn.responded() ) {
+                    conn.key.interestOps(SelectionKey.OP_WRITE);
+                } else { // TLS handshake の task が終わった
+                    read(conn);
+                }
+            }
+            Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+            while ( sel.isOpen() && it.hasNext() ) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if ( !key.isValid() ) {
+                        continue;
+                    }
+                    if ( key.isAcceptable() ) {
+                        accept(sel);
+                    } else if ( key.isWritable() ) {
+                        write((HttpConnection)key.attachment());
+                    } else if ( key.isReadable() ) {
+                        read((HttpConnection)key.attachment());
+                    }
+                } catch (IOException | CancelledKeyException ex) {
+                    // 繋がらない
+                }
+            }
         }
+        closeAll(sel);
     }
 }
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 少しずつ送る応答.
+ * Transfer-Encoding: chunked で送る.
+ * handler はこれを返してすぐ戻り、別のスレッドから write して最後に close する.
+ * 送るまでは接続ごとに溜めておく. I/Oスレッドは待たない.
+ *
+ * 溜まった量が highWater を超えると isWritable が false になり、
+ * lowWater を下回ると onWritable が呼ばれる.
+ * 相手が切ったら isOpen が false になり onClose が呼ばれる.
+ */
+public class HttpStream implements Closeable {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    static final int LOW_WATER = 16384;
+    static final int HIGH_WATER = 65536;
+
+    private final String contentType;
+    private final int lowWater;
+    private final int highWater;
+
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queued = new AtomicLong();
+    /**
+     * まとめて送るとき用. I/Oスレッドのみ
+     */
+    private ByteBuffer merge;
+
+    /**
+     * 書き終わり.
+     */
+    private volatile boolean ended;
+    /**
+     * 切れた または 送り終わった.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean blocked;
+    /**
+     * 途中で失敗した. 終わりの chunk を送らずに切る.
+     */
+    private volatile boolean aborted;
+
+    private volatile Runnable wake;
+    private final AtomicBoolean signalled = new AtomicBoolean();
+    private final List<Runnable> writables = new CopyOnWriteArrayList<>();
+    private final List<Runnable> closes = new CopyOnWriteArrayList<>();
+
+    private final Source source = new Source();
+
+    /**
+     * @param contentType Content-Type
+     */
+    public HttpStream(String contentType) {
+        this(contentType, LOW_WATER, HIGH_WATER);
+    }
+
+    /**
+     * @param contentType Content-Type
+     * @param lowWater これより減ったら書ける
+     * @param highWater これより溜まったら書かない
+     */
+    public HttpStream(String contentType, int lowWater, int highWater) {
+        if (lowWater < 0 || highWater < lowWater) {
+            throw new IllegalArgumentException();
+        }
+        this.contentType = contentType == null ? HttpResponse.OCTET_TYPE : contentType;
+        this.lowWater = lowWater;
+        this.highWater = highWater;
+    }
+
+    /**
+     * 200 OK で chunked の応答.
+     * @return 応答
+     */
+    public HttpResponse response() {
+        HttpResponse res = new HttpResponse(200, "OK");
+        res.contentType(contentType);
+        res.source = source;
+        res.stream = this;
+        return res;
+    }
+
+    /**
+     * 書く.
+     * 配列は複製するので使い回し可.
+     * @param data 送るもの
+     * @return まだ書ける isWritable()
+     */
+    public boolean write(byte[] data) {
+        return write(data, 0, data.length);
+    }
+
+    public boolean write(byte[] data, int offset, int length) {
+        byte[] d = new byte[length];
+        System.arraycopy(data, offset, d, 0, length);
+        return push(ByteBuffer.wrap(d));
+    }
+
+    /**
+     * position から limit まで. 複製するので位置は変わらない.
+     * @param data 送るもの
+     * @return まだ書ける
+     */
+    public boolean write(ByteBuffer data) {
+        ByteBuffer d = ByteBuffer.allocate(data.remaining());
+        d.put(data.duplicate()).flip();
+        return push(d);
+    }
+
+    /**
+     * UTF-8 で書く.
+     * @param text 送るもの
+     * @return まだ書ける
+     */
+    public boolean write(String text) {
+        return push(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private boolean push(ByteBuffer data) {
+        if (ended || closed.get()) {
+            return false;
+        }
+        if (data.hasRemaining()) {
+            queue.add(data);
+            if (queued.addAndGet(data.remaining()) >= highWater) {
+                blocked = true;
+            }
+            signal();
+        }
+        return isWritable();
+    }
+
+    /**
+     * 溜まりすぎていない.
+     * @return 書いてもいい
+     */
+    public boolean isWritable() {
+        return !closed.get() && queued.get() < highWater;
+    }
+
+    /**
+     * @return 送っていない量
+     */
+    public long queued() {
+        return queued.get();
+    }
+
+    /**
+     * 相手がまだいて、書き終わっていない.
+     * @return 開いている
+     */
+    public boolean isOpen() {
+        return !ended && !closed.get();
+    }
+
+    /**
+     * lowWater まで減ったとき.
+     * I/Oスレッドから呼ぶので重い処理はしないこと.
+     * @param run 呼ぶもの
+     */
+    public void onWritable(Runnable run) {
+        writables.add(run);
+    }
+
+    /**
+     * 切れたとき、送り終わったとき.
+     * 既に閉じていればすぐ呼ぶ.
+     * @param run 呼ぶもの
+     */
+    public void onClose(Runnable run) {
+        closes.add(run);
+        if (closed.get() && closes.remove(run)) {
+            run.run();
+        }
+    }
+
+    /**
+     * 書けるようになるまで待つ.
+     * worker など待ってもいいスレッドから.
+     * @param timeout 最大
+     * @param unit 単位
+     * @return 書ける, false 時間切れ または 閉じた
+     * @throws InterruptedException
+     */
+    public boolean awaitWritable(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (!isWritable() && !closed.get()) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+        }
+        return isWritable();
+    }
+
+    /**
+     * 書き終わり.
+     * 溜まっている分を送ってから終わる.
+     */
+    @Override
+    public void close() {
+        ended = true;
+        signal();
+    }
+
+    /**
+     * 途中で失敗したので、終わりを送らずに切る.
+     * 受け取った側に途中までのものを完全なものと思わせない.
+     */
+    void abort() {
+        aborted = true;
+        ended = true;
+        signal();
+    }
+
+    /**
+     * @return I/Oスレッドから読む側
+     */
+    HttpResponse.Source source() {
+        return source;
+    }
+
+    /**
+     * I/Oスレッドを起こす.
+     * 起こしたあと読みに来るまでは何度も起こさない.
+     */
+    private void signal() {
+        Runnable w = wake;
+        if (w != null && signalled.compareAndSet(false, true)) {
+            w.run();
+        }
+    }
+
+    /**
+     * 接続に結びつける.
+     * @param w 書き込み待ちにするもの
+     */
+    void attach(Runnable w) {
+        wake = w;
+        if (!queue.isEmpty() || ended) {
+            signal();
+        }
+    }
+
+    private void drained() {
+        if (blocked && queued.get() <= lowWater) {
+            blocked = false;
+            synchronized (this) {
+                notifyAll();
+            }
+            for (Runnable r : writables) {
+                r.run();
+            }
+        }
+    }
+
+    private void closed() {
+        if (closed.compareAndSet(false, true)) {
+            queue.clear();
+            queued.set(0);
+            synchronized (this) {
+                notifyAll();
+            }
+            for (Runnable r : closes) {
+                if (closes.remove(r)) {
+                    r.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * I/Oスレッドから読む側.
+     * 小さいものはまとめて1つの chunk にする.
+     */
+    private class Source implements HttpResponse.Source {
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            signalled.set(false);
+            if (aborted) {
+                throw new IOException("aborted");
+            }
+            boolean end = ended;
+            ByteBuffer b = queue.poll();
+            if (b == null) {
+                drained();
+                return end ? null : EMPTY;
+            }
+            long n = b.remaining();
+            ByteBuffer next = queue.peek();
+            if (next != null && b.remaining() + next.remaining() <= LOW_WATER) {
+                if (merge == null) {
+                    merge = ByteBuffer.allocate(LOW_WATER);
+                }
+                merge.clear();
+                merge.put(b);
+                while ((next = queue.peek()) != null && next.remaining() <= merge.remaining()) {
+                    queue.poll();
+                    n += next.remaining();
+                    merge.put(next);
+                }
+                merge.flip();
+                b = merge;
+            }
+            queued.addAndGet(-n);
+            drained();
+            return b;
+        }
+
+        @Override
+        public void close() {
+            closed();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HttpServer の handler を動かすところ.
+ * I/Oスレッドでは handler を動かさない.
+ * キューは有限で、あふれたら受け付けない (503にする).
+ * path ごとの同時実行数も制限できる.
+ */
+class HttpWorkers {
+
+    private final ThreadPoolExecutor pool;
+    /**
+     * TLS handshake の delegated task 用.
+     * handler とは分けて、handler が詰まっても handshake は進むようにする.
+     * 数は接続数の制限で抑えられるので待ち行列は制限しない.
+     */
+    private final ThreadPoolExecutor tasks;
+    private final Map<String, Semaphore> routes = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param threads 最大スレッド数
+     * @param queue 待ち行列の長さ
+     */
+    HttpWorkers(int threads, int queue) {
+        AtomicInteger num = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queue), r -> {
+            Thread t = new Thread(r, "HttpServer-worker-" + num.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        AtomicInteger tnum = new AtomicInteger();
+        tasks = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "HttpServer-task-" + tnum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        tasks.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * path ごとの同時実行数.
+     * @param route path または null (指定なし全般)
+     * @param max 最大数 0以下で制限なし
+     */
+    void limit(String route, int max) {
+        if (max > 0) {
+            routes.put(route == null ? "" : route, new Semaphore(max));
+        } else {
+            routes.remove(route == null ? "" : route);
+        }
+    }
+
+    /**
+     * handler の実行を頼む.
+     * @param route path
+     * @param task 処理
+     * @return false 混んでいるので受け付けなかった
+     */
+    boolean submit(String route, Runnable task) {
+        Semaphore sem = routes.get(route == null ? "" : route);
+        if (sem != null && !sem.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            pool.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    if (sem != null) {
+                        sem.release();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (sem != null) {
+                sem.release();
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * handler 以外の重いもの. TLS handshake の delegated task など.
+     * handler の pool と待ち行列は使わないので 503 の判定とは関係ない.
+     * 待ち行列は制限しない. 止めたあとは RejectedExecutionException.
+     * @param task 処理
+     */
+    void execute(Runnable task) {
+        tasks.execute(task);
+    }
+
+    int queueDepth() {
+        return pool.getQueue().size();
+    }
+
+    int active() {
+        return pool.getActiveCount();
+    }
+
+    long rejected() {
+        return rejected.get();
+    }
+
+    void shutdown() {
+        pool.shutdown();
+        tasks.shutdown();
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * query (application/x-www-form-urlencoded) の解析.
+ * 正規表現は使わず1回なめて '&amp;' と '=' の位置だけ覚える.
+ * 名前と値は使うときにデコードする.
+ * 同じ名前が複数あってもいい (WebFinger の rel など).
+ * 値のない "a" や "a=" は空文字列.
+ */
+public final class QueryString implements Iterable<QueryString.Param> {
+
+    private static final QueryString EMPTY = new QueryString(new byte[0], new int[0], 0);
+
+    private final byte[] src;
+    /**
+     * name の始まり, '=' の位置 (なければ -1), 終わり の組
+     */
+    private final int[] marks;
+    private final int size;
+
+    private QueryString(byte[] src, int[] marks, int size) {
+        this.src = src;
+        this.marks = marks;
+        this.size = size;
+    }
+
+    /**
+     * 名前と値の1組.
+     * デコードするまでは位置だけ.
+     */
+    public final class Param {
+
+        private final int index;
+
+        private Param(int index) {
+            this.index = index;
+        }
+
+        public String name() {
+            int s = marks[index * 3];
+            int eq = marks[index * 3 + 1];
+            return decode(s, eq < 0 ? marks[index * 3 + 2] : eq);
+        }
+
+        /**
+         * @return 値, '=' がないときは空文字列
+         */
+        public String value() {
+            int eq = marks[index * 3 + 1];
+            return eq < 0 ? "" : decode(eq + 1, marks[index * 3 + 2]);
+        }
+
+        /**
+         * デコードせずに名前を比べる.
+         * 符号化されていないときのみ
+         */
+        boolean nameIs(byte[] name) {
+            int s = marks[index * 3];
+            int eq = marks[index * 3 + 1];
+            int e = eq < 0 ? marks[index * 3 + 2] : eq;
+            return e - s == name.length && Arrays.equals(src, s, e, name, 0, name.length);
+        }
+
+        @Override
+        public String toString() {
+            return name() + "=" + value();
+        }
+    }
+
+    /**
+     * 文字列から.
+     * @param query '?' のあと, '#' の前 または null
+     * @return 解析したもの
+     */
+    public static QueryString parse(String query) {
+        if (query == null || query.isEmpty()) {
+            return EMPTY;
+        }
+        byte[] b = query.getBytes(StandardCharsets.UTF_8);
+        return parse(b, 0, b.length);
+    }
+
+    /**
+     * バイト列から. 配列は複製しないので変更しないこと.
+     * HttpServer ではリクエストのヘッダをそのまま使う.
+     * @param src バイト列
+     * @param offset query の始まり
+     * @param length query の長さ
+     * @return 解析したもの
+     */
+    public static QueryString parse(byte[] src, int offset, int length) {
+        int end = offset + length;
+        int[] marks = new int[12];
+        int n = 0;
+        int s = offset;
+        int eq = -1;
+        for (int i = offset; i <= end; i++) {
+            byte c = i < end ? src[i] : (byte) '&';
+            if (c == '&') {
+                if (i > s) { // 空の組は飛ばす
+                    if (marks.length < (n + 1) * 3) {
+                        marks = Arrays.copyOf(marks, marks.length * 2);
+                    }
+                    marks[n * 3] = s;
+                    marks[n * 3 + 1] = eq;
+                    marks[n * 3 + 2] = i;
+                    n++;
+                }
+                s = i + 1;
+                eq = -1;
+            } else if (c == '=' && eq < 0) {
+                eq = i;
+            }
+        }
+        return n == 0 ? EMPTY : new QueryString(src, marks, n);
+    }
+
+    private String decode(int s, int e) {
+        for (int i = s; i < e; i++) {
+            byte c = src[i];
+            if (c == '%' || c == '+') {
+                return HttpEncode.formPercentDecode(src, s, e - s);
+            }
+        }
+        return new String(src, s, e - s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 組の数
+     */
+    public int size() {
+        return size;
+    }
+
+    public Param get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return new Param(index);
+    }
+
+    @Override
+    public Iterator<Param> iterator() {
+        return new Iterator<Param>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            public Param next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                return new Param(i++);
+            }
+        };
+    }
+
+    /**
+     * 最初の値.
+     * @param name 名前
+     * @return 値 または null
+     */
+    public String get(String name) {
+        byte[] bn = plain(name);
+        for (int i = 0; i < size; i++) {
+            if (matches(i, name, bn)) {
+                return new Param(i).value();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 同じ名前の値すべて.
+     * @param name 名前
+     * @return 値 順番どおり
+     */
+    public List<String> getAll(String name) {
+        byte[] bn = plain(name);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (matches(i, name, bn)) {
+                values.add(new Param(i).value());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 符号化されていない名前はデコードせずにバイトで比べる.
+     * @param bn ASCII の name または null
+     */
+    private boolean matches(int index, String name, byte[] bn) {
+        Param p = new Param(index);
+        if (bn == null || encodedName(index)) {
+            return name.equals(p.name());
+        }
+        return p.nameIs(bn);
+    }
+
+    /**
+     * 名前に '%' か '+' がある.
+     */
+    private boolean encodedName(int index) {
+        int s = marks[index * 3];
+        int eq = marks[index * 3 + 1];
+        int e = eq < 0 ? marks[index * 3 + 2] : eq;
+        for (int i = s; i < e; i++) {
+            if (src[i] == '%' || src[i] == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ASCII で符号化の不要な名前はバイトのまま比べる.
+     */
+    private static byte[] plain(String name) {
+        byte[] b = new byte[name.length()];
+        for (int i = 0; i < b.length; i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80 || c == '%' || c == '+' || c == '&' || c == '=') {
+                return null;
+            }
+            b[i] = (byte) c;
+        }
+        return b;
+    }
+
+    /**
+     * 名前ごとに最初の値.
+     * @return 順番どおりの Map
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (Param p : this) {
+            map.putIfAbsent(p.name(), p.value());
+        }
+        return map;
+    }
+
+    /**
+     * 名前ごとにすべての値.
+     * @return 順番どおりの Map
+     */
+    public Map<String, List<String>> toMultiMap() {
+        if (size == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        for (Param p : this) {
+            map.computeIfAbsent(p.name(), k -> new ArrayList<>(1)).add(p.value());
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Param p : this) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            HttpEncode.formPercentEncode(p.name(), sb);
+            sb.append('=');
+            HttpEncode.formPercentEncode(p.value(), sb);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.net.InetAddress;
+
+/**
+ * 1リクエスト分の計測.
+ * 時間はナノ秒. 測れなかったものは -1.
+ */
+public final class RequestStats {
+
+    final InetAddress address;
+    final long time;
+    final String method;
+    final String target;
+    final String route;
+    final int status;
+    final long bytesIn;
+    final long bytesOut;
+    final long firstByte;
+    final long parse;
+    final long queue;
+    final long handler;
+    final long write;
+    final long total;
+
+    RequestStats(HttpConnection conn, HttpResponse res, long done) {
+        address = conn.address;
+        time = conn.acceptedTime;
+        method = conn.method;
+        target = conn.target;
+        route = conn.route;
+        status = res == null ? 0 : res.status;
+        bytesIn = conn.bytesIn;
+        bytesOut = res == null ? 0 : res.sent();
+        firstByte = span(conn.accepted, conn.firstWrite);
+        parse = span(conn.headRead, conn.parsed);
+        queue = span(conn.parsed, conn.handlerStart);
+        handler = span(conn.handlerStart, conn.handlerEnd);
+        write = span(conn.firstWrite, done);
+        total = span(conn.accepted, done);
+    }
+
+    private static long span(long start, long end) {
+        return start == 0 || end == 0 ? -1 : end - start;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return 接続した時刻 epoch ミリ秒
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return method または 読めなかったとき null
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return callback の path, 指定なしは空文字列
+     */
+    public String getRoute() {
+        return route;
+    }
+
+    /**
+     * @return 状態コード, 応答しなかったとき 0
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return 受信したヘッダの大きさ
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * @return 送った大きさ (ヘッダ含む, TLS は平文)
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return 接続から応答の最初の1バイトまで
+     */
+    public long getFirstByteNanos() {
+        return firstByte;
+    }
+
+    /**
+     * @return ヘッダの解析
+     */
+    public long getParseNanos() {
+        return parse;
+    }
+
+    /**
+     * @return worker の空き待ち
+     */
+    public long getQueueNanos() {
+        return queue;
+    }
+
+    /**
+     * @return handler の実行
+     */
+    public long getHandlerNanos() {
+        return handler;
+    }
+
+    /**
+     * @return 送り始めてから終わりまで
+     */
+    public long getWriteNanos() {
+        return write;
+    }
+
+    /**
+     * @return 接続から終わりまで
+     */
+    public long getTotalNanos() {
+        return total;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import net.siisise.json.JSON;
+import net.siisise.json.JSONValue;
+
+/**
+ * 状態行、ヘッダ、JSON を直接 ByteBuffer に書く.
+ * String や byte[] を途中で作らない.
+ * バッファは使い回す. 送り終わったら recycle で戻す.
+ *
+ * JSON は Map, List (JSONObject, JSONArray), 文字列, 数値, 真偽値, null をそのまま辿る.
+ * それ以外の JSONValue, bean などは softlib の JSON にまかせる.
+ */
+final class ResponseWriter {
+
+    static final int SIZE = 8192;
+    private static final int POOL = 256;
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    static final byte[] HTTP11 = ascii("HTTP/1.1 ");
+    static final byte[] CRLF = ascii("\r\n");
+    static final byte[] COLON = ascii(": ");
+    static final byte[] SERVER = ascii("Server: " + HttpResponse.SERVER + "\r\n");
+    static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+    static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    static final byte[] CLOSE = ascii("Connection: close\r\n\r\n");
+    private static final byte[] OK = ascii("HTTP/1.1 200 OK\r\n");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private ByteBuffer buf;
+
+    ResponseWriter() {
+        buf = acquire();
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 使い回しのバッファ.
+     * @return 空のバッファ
+     */
+    static ByteBuffer acquire() {
+        ByteBuffer b = pool.poll();
+        return b == null ? ByteBuffer.allocateDirect(SIZE) : b.clear();
+    }
+
+    /**
+     * 使い終わったバッファを戻す.
+     * 大きくしたものは戻さない.
+     * @param b バッファ
+     */
+    static void recycle(ByteBuffer b) {
+        if (b.isDirect() && b.capacity() == SIZE && pool.size() < POOL) {
+            pool.add(b);
+        }
+    }
+
+    private void ensure(int len) {
+        if (buf.remaining() < len) {
+            ByteBuffer n = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + len));
+            buf.flip();
+            n.put(buf);
+            recycle(buf);
+            buf = n;
+        }
+    }
+
+    ResponseWriter put(byte[] b) {
+        ensure(b.length);
+        buf.put(b);
+        return this;
+    }
+
+    ResponseWriter put(byte b) {
+        ensure(1);
+        buf.put(b);
+        return this;
+    }
+
+    /**
+     * ヘッダ用. ISO-8859-1.
+     * 書き換えないで送れないものは使えない.
+     * @param s 文字列
+     * @return this
+     * @throws IllegalArgumentException 0xFF を超える文字, CR, LF, NUL
+     */
+    ResponseWriter latin1(CharSequence s) {
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c > 0xff || c == '\r' || c == '\n' || c == 0) {
+                throw new IllegalArgumentException("field value: \\u" + Integer.toHexString(c));
+            }
+            buf.put((byte) c);
+        }
+        return this;
+    }
+
+    /**
+     * field-name は token. RFC 9110 5.1, 5.6.2
+     * @param name 名前
+     * @return token
+     */
+    static boolean token(CharSequence name) {
+        int len = name.length();
+        if (len == 0) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            char c = name.charAt(i);
+            if (c <= 0x20 || c >= 0x7f || "\"(),/:;<=>?@[\\]{}".indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ヘッダとして送れるか.
+     * @param name field-name
+     * @param value field-value
+     * @throws IllegalArgumentException 送れない
+     */
+    static void checkField(CharSequence name, CharSequence value) {
+        if (!token(name)) {
+            throw new IllegalArgumentException("field name: " + name);
+        }
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c > 0xff || c == '\r' || c == '\n' || c == 0) {
+                throw new IllegalArgumentException("field value: \\u" + Integer.toHexString(c));
+            }
+        }
+    }
+
+    /**
+     * 10進数.
+     * @param v 値
+     * @return this
+     */
+    ResponseWriter decimal(long v) {
+        if (v < 0) {
+            if (v == Long.MIN_VALUE) {
+                return latin1("-9223372036854775808");
+            }
+            put((byte) '-');
+            v = -v;
+        }
+        ensure(19);
+        int start = buf.position();
+        do {
+            buf.put((byte) ('0' + v % 10));
+            v /= 10;
+        } while (v > 0);
+        for (int i = start, j = buf.position() - 1; i < j; i++, j--) { // 逆順
+            byte t = buf.get(i);
+            buf.put(i, buf.get(j));
+            buf.put(j, t);
+        }
+        return this;
+    }
+
+    /**
+     * UTF-8 で.
+     * @param s 文字列
+     * @return this
+     */
+    ResponseWriter utf8(CharSequence s) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                put((byte) c);
+            } else {
+                i = utf8(s, i, c);
+            }
+        }
+        return this;
+    }
+
+    private int utf8(CharSequence s, int i, char c) {
+        if (c < 0x800) {
+            ensure(2);
+            buf.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            ensure(4);
+            buf.put((byte) (0xf0 | (cp >> 18))).put((byte) (0x80 | ((cp >> 12) & 0x3f)))
+                    .put((byte) (0x80 | ((cp >> 6) & 0x3f))).put((byte) (0x80 | (cp & 0x3f)));
+        } else if (Character.isSurrogate(c)) {
+            put((byte) '?');
+        } else {
+            ensure(3);
+            buf.put((byte) (0xe0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3f))).put((byte) (0x80 | (c & 0x3f)));
+        }
+        return i;
+    }
+
+    /**
+     * 状態行.
+     * @param status 状態コード
+     * @param reason 理由
+     * @return this
+     */
+    ResponseWriter status(int status, String reason) {
+        if (status == 200 && "OK".equals(reason)) {
+            return put(OK);
+        }
+        return put(HTTP11).decimal(status).put((byte) ' ').latin1(reason).put(CRLF);
+    }
+
+    /**
+     * 1行.
+     * @param name field-name
+     * @param value field-value
+     * @return this
+     * @throws IllegalArgumentException token でない名前, 送れない文字
+     */
+    ResponseWriter header(CharSequence name, CharSequence value) {
+        if (!token(name)) {
+            throw new IllegalArgumentException("field name: " + name);
+        }
+        return latin1(name).put(COLON).latin1(value).put(CRLF);
+    }
+
+    /**
+     * JSON にして書く.
+     * @param obj Map, List, 文字列, 数値など
+     * @return this
+     */
+    ResponseWriter json(Object obj) {
+        if (obj == null) {
+            put(NULL);
+        } else if (obj instanceof CharSequence) {
+            string((CharSequence) obj);
+        } else if (obj instanceof Map) {
+            put((byte) '{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet()) {
+                if (!first) {
+                    put((byte) ',');
+                }
+                first = false;
+                string(String.valueOf(e.getKey()));
+                put((byte) ':');
+                json(e.getValue());
+            }
+            put((byte) '}');
+        } else if (obj instanceof Collection) {
+            put((byte) '[');
+            boolean first = true;
+            for (Object v : (Collection<?>) obj) {
+                if (!first) {
+                    put((byte) ',');
+                }
+                first = false;
+                json(v);
+            }
+            put((byte) ']');
+        } else if (obj instanceof Boolean) {
+            put((Boolean) obj ? TRUE : FALSE);
+        } else if (obj instanceof Integer || obj instanceof Long || obj instanceof Short || obj instanceof Byte) {
+            decimal(((Number) obj).longValue());
+        } else if (obj instanceof Double || obj instanceof Float) {
+            double d = ((Number) obj).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                put(NULL);
+            } else {
+                latin1(obj.toString());
+            }
+        } else if (obj instanceof Number) {
+            latin1(obj.toString());
+        } else if (obj instanceof Character) {
+            string(obj.toString());
+        } else if (obj instanceof JSONValue) {
+            utf8(((JSONValue) obj).toJSON());
+        } else { // bean など
+            utf8(JSON.valueOf(obj).toJSON());
+        }
+        return this;
+    }
+
+    /**
+     * JSON の文字列.
+     * RFC 8259 Section 7
+     */
+    private void string(CharSequence s) {
+        put((byte) '"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                i = utf8(s, i, c);
+            } else if (c == '"' || c == '\\') {
+                ensure(2);
+                buf.put((byte) '\\').put((byte) c);
+            } else if (c >= 0x20) {
+                put((byte) c);
+            } else {
+                ensure(6);
+                switch (c) {
+                    case '\n':
+                        buf.put((byte) '\\').put((byte) 'n');
+                        break;
+                    case '\r':
+                        buf.put((byte) '\\').put((byte) 'r');
+                        break;
+                    case '\t':
+                        buf.put((byte) '\\').put((byte) 't');
+                        break;
+                    case '\b':
+                        buf.put((byte) '\\').put((byte) 'b');
+                        break;
+                    case '\f':
+                        buf.put((byte) '\\').put((byte) 'f');
+                        break;
+                    default:
+                        buf.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                                .put(HEX[c >> 4]).put(HEX[c & 0xf]);
+                        break;
+                }
+            }
+        }
+        put((byte) '"');
+    }
+
+    /**
+     * 書き終わり.
+     * @return 読み出しモードのバッファ
+     */
+    ByteBuffer finish() {
+        ByteBuffer b = buf;
+        buf = null;
+        return b.flip();
+    }
+}
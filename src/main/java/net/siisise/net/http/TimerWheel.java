@@ -0,0 +1,152 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.util.function.Consumer;
+
+/**
+ * 接続ごとの期限を管理する.
+ * hashed timing wheel. 登録, 取り消し, 延長は O(1).
+ * 期限は tick 単位で丸めるので少し遅れることがある.
+ * 1周より先のものは自分の番が来るまで残る.
+ *
+ * I/Oスレッド専用. 同期しない.
+ * @param <T> 期限切れで渡すもの
+ */
+class TimerWheel<T> {
+
+    /**
+     * 登録1つ分.
+     * 取り消し, 延長用にとっておく.
+     * @param <T> 値
+     */
+    static final class Timer<T> {
+
+        final T value;
+        long deadline;
+        private Timer<T> prev;
+        private Timer<T> next;
+        private int slot = -1;
+
+        Timer(T value) {
+            this.value = value;
+        }
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tick;
+    private final Timer<T>[] slots;
+    private final int mask;
+    private long current;
+    private int size;
+
+    /**
+     * @param tick 刻み ミリ秒
+     * @param wheelSize 刻みの数 2のべき乗に切り上げる
+     * @param now 今 ミリ秒
+     */
+    TimerWheel(long tick, int wheelSize, long now) {
+        int n = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.tick = tick;
+        @SuppressWarnings("unchecked") // Timer<T> の配列は作れない
+        Timer<T>[] a = new Timer[n];
+        slots = a;
+        mask = n - 1;
+        current = now / tick;
+    }
+
+    long tick() {
+        return tick;
+    }
+
+    /**
+     * @return 登録数
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 期限を設定する. 登録済みなら付け替える.
+     * @param timer 期限をつけるもの
+     * @param deadline 期限 ミリ秒
+     */
+    void schedule(Timer<T> timer, long deadline) {
+        cancel(timer);
+        timer.deadline = deadline;
+        long t = Math.max(deadline / tick, current);
+        int s = (int) (t & mask);
+        timer.slot = s;
+        timer.next = slots[s];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[s] = timer;
+        size++;
+    }
+
+    /**
+     * 取り消す. 未登録なら何もしない.
+     * @param timer 登録したもの
+     */
+    void cancel(Timer<T> timer) {
+        if (timer.slot < 0) {
+            return;
+        }
+        if (timer.prev == null) {
+            slots[timer.slot] = timer.next;
+        } else {
+            timer.prev.next = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+        size--;
+    }
+
+    /**
+     * 期限の来たものを取り出す.
+     * @param now 今 ミリ秒
+     * @param expired 期限切れを受け取るもの
+     */
+    void expire(long now, Consumer<T> expired) {
+        long end = now / tick;
+        for (; current <= end && size > 0; current++) {
+            int s = (int) (current & mask);
+            Timer<T> t = slots[s];
+            while (t != null) {
+                Timer<T> next = t.next;
+                if (t.deadline <= now) {
+                    cancel(t);
+                    expired.accept(t.value);
+                }
+                t = next;
+            }
+            if (current == end) {
+                break;
+            }
+        }
+        if (size == 0) {
+            current = end;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * non-blocking な SocketChannel の上の TLS.
+ * SSLEngine で wrap / unwrap するだけ.
+ * handshake は read で進める. 書けなかった分は flush で送る.
+ * 重い handshake の処理 (delegated task) は I/Oスレッドでは動かさない.
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel ch;
+    final SSLEngine engine;
+    private final Executor executor;
+    private final Runnable resume;
+
+    /**
+     * 受信した TLS record.
+     * 書き込みモード
+     */
+    private ByteBuffer netIn;
+    /**
+     * 復号済み.
+     * 書き込みモード
+     */
+    private ByteBuffer appIn;
+    /**
+     * 送信待ちの TLS record.
+     * 読み出しモード
+     */
+    private ByteBuffer netOut;
+
+    private volatile boolean tasks;
+
+    /**
+     * @param ch non-blocking な接続
+     * @param engine サーバモードの SSLEngine
+     * @param executor delegated task を動かすところ
+     * @param resume task が終わったら呼ぶ
+     */
+    TlsChannel(SocketChannel ch, SSLEngine engine, Executor executor, Runnable resume) {
+        this.ch = ch;
+        this.engine = engine;
+        this.executor = executor;
+        this.resume = resume;
+        int packet = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packet);
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        netOut = ByteBuffer.allocate(packet);
+        netOut.flip();
+    }
+
+    /**
+     * handshake の task 実行中.
+     * @return 実行中
+     */
+    boolean busy() {
+        return tasks;
+    }
+
+    /**
+     * 送信待ちがある.
+     * @return 送れていない TLS record がある
+     */
+    boolean pending() {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * ALPN で決まったもの.
+     * @return protocol または 決まっていないとき null
+     */
+    String applicationProtocol() {
+        String p = engine.getApplicationProtocol();
+        return p == null || p.isEmpty() ? null : p;
+    }
+
+    /**
+     * 復号して読む.
+     * handshake 中は handshake を進める.
+     * @param dst 出力先
+     * @return 読めた長さ 0 まだ, -1 終わり
+     * @throws IOException
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (true) {
+            if (appIn.position() > 0) {
+                return drain(dst);
+            }
+            if (tasks) {
+                return 0;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    return 0;
+                case NEED_WRAP:
+                    if (!flush()) {
+                        return 0;
+                    }
+                    wrap(EMPTY);
+                    continue;
+                default:
+                    break;
+            }
+            netIn.flip();
+            SSLEngineResult r = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (r.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    int n = ch.read(netIn);
+                    if (n < 0) {
+                        try {
+                            engine.closeInbound();
+                        } catch (SSLException e) {
+                            // close_notify なしで切れた
+                        }
+                        return -1;
+                    } else if (n == 0) {
+                        return 0;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                case CLOSED:
+                    return appIn.position() > 0 ? drain(dst) : -1;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private int drain(ByteBuffer dst) {
+        appIn.flip();
+        int len = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer b = appIn.duplicate();
+        b.limit(b.position() + len);
+        dst.put(b);
+        appIn.position(appIn.position() + len);
+        appIn.compact();
+        return len;
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer b, int size) {
+        ByteBuffer n = ByteBuffer.allocate(b.capacity() + size);
+        b.flip();
+        n.put(b);
+        return n;
+    }
+
+    /**
+     * handshake の重い処理を handler とは別のスレッドで.
+     * 終わったら resume で I/Oスレッドに戻る.
+     * 止めたあとで受け付けないときはその場で動かす.
+     */
+    private void runTasks() {
+        tasks = true;
+        Runnable run = () -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            tasks = false;
+            resume.run();
+        };
+        try {
+            executor.execute(run);
+        } catch (RejectedExecutionException e) {
+            run.run();
+        }
+    }
+
+    /**
+     * 1 record 分暗号化して送る.
+     * netOut は空のこと
+     */
+    private SSLEngineResult wrap(ByteBuffer... srcs) throws IOException {
+        while (true) {
+            netOut.clear();
+            SSLEngineResult r = engine.wrap(srcs, netOut);
+            netOut.flip();
+            switch (r.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    netOut = ByteBuffer.allocate(netOut.capacity() + engine.getSession().getPacketBufferSize());
+                    netOut.flip();
+                    continue;
+                case CLOSED:
+                    if (!netOut.hasRemaining()) {
+                        throw new IOException("TLS closed");
+                    }
+                    break;
+                default:
+                    break;
+            }
+            flush();
+            return r;
+        }
+    }
+
+    /**
+     * 送れていない TLS record を送る.
+     * @return 全部送れた
+     * @throws IOException
+     */
+    boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (ch.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * 暗号化して送る.
+     * 送信バッファがいっぱいになったら途中で戻る. 暗号化した分は送ったことにする.
+     * @return 暗号化した平文の長さ
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!flush()) {
+            return 0;
+        }
+        long consumed = 0;
+        ByteBuffer[] s = srcs;
+        if (offset != 0 || length != srcs.length) {
+            s = new ByteBuffer[length];
+            System.arraycopy(srcs, offset, s, 0, length);
+        }
+        while (HttpResponse.remaining(s) > 0) {
+            SSLEngineResult r = wrap(s);
+            consumed += r.bytesConsumed();
+            if (netOut.hasRemaining() || r.bytesConsumed() == 0) {
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return ch.isOpen();
+    }
+
+    /**
+     * close_notify を送れたら送って閉じる.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            if (flush() && ch.isOpen()) {
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                flush();
+            }
+        } catch (IOException e) {
+            // 閉じるだけ
+        } finally {
+            ch.close();
+        }
+    }
+}
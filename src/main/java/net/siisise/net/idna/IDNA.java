@@ -16,28 +16,326 @@
 package net.siisise.net.idna;
 
 import java.text.Normalizer;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * IDNA あとで分けるかも.
  * RFC 3490 IDNA
  * RFC 3491 Nameprep
  * RFC 3492 Punycode
+ * RFC 5891 IDNA2008
+ * UTS #46 の mapping は NFKC と小文字化で近似する. ß などは変換しない (nontransitional).
  */
 public class IDNA {
-    
+
+    static final String ACE_PREFIX = "xn--";
+
+    /**
+     * 変換済みの host. 大きくなりすぎたら適当に捨てる.
+     */
+    static final int CACHE_MAX = 4096;
+    private static final Map<String, String> ASCII_CACHE = new ConcurrentHashMap<>();
+    private static final Map<String, String> UNICODE_CACHE = new ConcurrentHashMap<>();
+
+    // RFC 3492 5. Parameter values for Punycode
+    private static final int BASE = 36;
+    private static final int TMIN = 1;
+    private static final int TMAX = 26;
+    private static final int SKEW = 38;
+    private static final int DAMP = 700;
+    private static final int INITIAL_BIAS = 72;
+    private static final int INITIAL_N = 0x80;
+
     public static String idnaEncode(String src) {
-        return java.net.IDN.toASCII(src);
-        //return punycodeEncode(nameprepEncode(src));
+        return toASCII(src);
+    }
+
+    /**
+     * ドメイン名を ASCII にする.
+     * ASCII のみのときは何もせず src を返す.
+     * @param src ドメイン名
+     * @return xn-- 形式
+     * @throws IllegalArgumentException 変換できないとき
+     */
+    public static String toASCII(String src) {
+        if (isASCII(src)) {
+            return src;
+        }
+        String ace = ASCII_CACHE.get(src);
+        if (ace == null) {
+            ace = convertASCII(src);
+            put(ASCII_CACHE, src, ace);
+        }
+        return ace;
+    }
+
+    /**
+     * xn-- のラベルを Unicode に戻す.
+     * @param src ドメイン名
+     * @return Unicode のドメイン名
+     * @throws IllegalArgumentException 変換できないとき
+     */
+    public static String toUnicode(String src) {
+        if (!hasACE(src)) {
+            return src;
+        }
+        String uni = UNICODE_CACHE.get(src);
+        if (uni == null) {
+            uni = convertUnicode(src);
+            put(UNICODE_CACHE, src, uni);
+        }
+        return uni;
+    }
+
+    private static void put(Map<String, String> cache, String key, String value) {
+        if (cache.size() >= CACHE_MAX) {
+            Iterator<String> it = cache.keySet().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        cache.put(key, value);
+    }
+
+    /**
+     * @param src 文字列
+     * @return ASCII のみ
+     */
+    public static boolean isASCII(CharSequence src) {
+        int len = src.length();
+        for (int i = 0; i < len; i++) {
+            if (src.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasACE(String src) {
+        int len = src.length() - ACE_PREFIX.length();
+        for (int i = 0; i <= len; i++) {
+            if ((i == 0 || src.charAt(i - 1) == '.') && src.regionMatches(true, i, ACE_PREFIX, 0, ACE_PREFIX.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * UTS #46 の mapping の代わり.
+     * 全角ピリオドなどは NFKC で '.' または '。' になる.
+     */
+    static String map(String src) {
+        String s = Normalizer.normalize(src, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        s = Normalizer.normalize(s, Normalizer.Form.NFKC);
+        return s.replace('。', '.');
+    }
+
+    private static String convertASCII(String src) {
+        String mapped = map(src);
+        StringBuilder sb = new StringBuilder(mapped.length() + 8);
+        int s = 0;
+        int len = mapped.length();
+        while (s <= len) {
+            int e = mapped.indexOf('.', s);
+            if (e < 0) {
+                e = len;
+            }
+            int start = sb.length();
+            String label = mapped.substring(s, e);
+            if (isASCII(label)) {
+                sb.append(label);
+            } else {
+                sb.append(ACE_PREFIX);
+                punycodeEncode(label, sb);
+            }
+            if (sb.length() - start > 63) {
+                throw new IllegalArgumentException("label too long: " + label);
+            }
+            if (e < len) {
+                sb.append('.');
+            }
+            s = e + 1;
+        }
+        return sb.toString();
+    }
+
+    private static String convertUnicode(String src) {
+        StringBuilder sb = new StringBuilder(src.length());
+        int s = 0;
+        int len = src.length();
+        while (s <= len) {
+            int e = src.indexOf('.', s);
+            if (e < 0) {
+                e = len;
+            }
+            if (e - s > ACE_PREFIX.length() && src.regionMatches(true, s, ACE_PREFIX, 0, ACE_PREFIX.length())) {
+                sb.append(punycodeDecode(src.substring(s + ACE_PREFIX.length(), e)));
+            } else {
+                sb.append(src, s, e);
+            }
+            if (e < len) {
+                sb.append('.');
+            }
+            s = e + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * RFC 3492 6.1 Bias adaptation function
+     */
+    private static int adapt(int delta, int numpoints, boolean firsttime) {
+        delta = firsttime ? delta / DAMP : delta / 2;
+        delta += delta / numpoints;
+        int k = 0;
+        while (delta > ((BASE - TMIN) * TMAX) / 2) {
+            delta /= BASE - TMIN;
+            k += BASE;
+        }
+        return k + (((BASE - TMIN + 1) * delta) / (delta + SKEW));
     }
-    
-/*    
-    static String nameprepEncode(String src) {
-        Normalizer.normalize(src, Normalizer.Form.NFKC);
-        return src;
+
+    private static char digit(int d) {
+        return (char) (d < 26 ? 'a' + d : '0' + d - 26);
     }
-    
-    static String punycodeEncode(String src) {
-        return src;
+
+    private static int digit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0' + 26;
+        } else if (c >= 'a' && c <= 'z') {
+            return c - 'a';
+        } else if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        return BASE;
+    }
+
+    /**
+     * Punycode 符号化.
+     * @param src ラベル 1つ
+     * @return ACE prefix なしの Punycode
+     */
+    public static String punycodeEncode(String src) {
+        StringBuilder sb = new StringBuilder(src.length() + 8);
+        punycodeEncode(src, sb);
+        return sb.toString();
+    }
+
+    /**
+     * RFC 3492 6.3 Encoding procedure
+     */
+    static void punycodeEncode(String src, StringBuilder out) {
+        int[] input = src.codePoints().toArray();
+        int b = 0;
+        for (int c : input) {
+            if (c < 0x80) {
+                out.append((char) c);
+                b++;
+            }
+        }
+        int h = b;
+        if (b > 0) {
+            out.append('-');
+        }
+        int n = INITIAL_N;
+        int delta = 0;
+        int bias = INITIAL_BIAS;
+        while (h < input.length) {
+            int m = Integer.MAX_VALUE;
+            for (int c : input) {
+                if (c >= n && c < m) {
+                    m = c;
+                }
+            }
+            if (m - n > (Integer.MAX_VALUE - delta) / (h + 1)) {
+                throw new IllegalArgumentException("overflow");
+            }
+            delta += (m - n) * (h + 1);
+            n = m;
+            for (int c : input) {
+                if (c < n && ++delta == 0) {
+                    throw new IllegalArgumentException("overflow");
+                }
+                if (c == n) {
+                    int q = delta;
+                    for (int k = BASE;; k += BASE) {
+                        int t = k <= bias ? TMIN : k >= bias + TMAX ? TMAX : k - bias;
+                        if (q < t) {
+                            break;
+                        }
+                        out.append(digit(t + (q - t) % (BASE - t)));
+                        q = (q - t) / (BASE - t);
+                    }
+                    out.append(digit(q));
+                    bias = adapt(delta, h + 1, h == b);
+                    delta = 0;
+                    h++;
+                }
+            }
+            delta++;
+            n++;
+        }
+    }
+
+    /**
+     * RFC 3492 6.2 Decoding procedure
+     * @param src ACE prefix なしの Punycode
+     * @return Unicode のラベル
+     * @throws IllegalArgumentException 正しくない符号
+     */
+    public static String punycodeDecode(String src) {
+        int b = src.lastIndexOf('-');
+        int[] output = new int[src.length()];
+        int len = 0;
+        for (int j = 0; j < b; j++) {
+            char c = src.charAt(j);
+            if (c >= 0x80) {
+                throw new IllegalArgumentException("bad input");
+            }
+            output[len++] = c;
+        }
+        int n = INITIAL_N;
+        int i = 0;
+        int bias = INITIAL_BIAS;
+        for (int in = b > 0 ? b + 1 : 0; in < src.length();) {
+            int oldi = i;
+            int w = 1;
+            for (int k = BASE;; k += BASE) {
+                if (in >= src.length()) {
+                    throw new IllegalArgumentException("bad input");
+                }
+                int d = digit(src.charAt(in++));
+                if (d >= BASE || d > (Integer.MAX_VALUE - i) / w) {
+                    throw new IllegalArgumentException("bad input");
+                }
+                i += d * w;
+                int t = k <= bias ? TMIN : k >= bias + TMAX ? TMAX : k - bias;
+                if (d < t) {
+                    break;
+                }
+                if (w > Integer.MAX_VALUE / (BASE - t)) {
+                    throw new IllegalArgumentException("overflow");
+                }
+                w *= BASE - t;
+            }
+            bias = adapt(i - oldi, len + 1, oldi == 0);
+            if (i / (len + 1) > Integer.MAX_VALUE - n) {
+                throw new IllegalArgumentException("overflow");
+            }
+            n += i / (len + 1);
+            i %= len + 1;
+            if (n > Character.MAX_CODE_POINT || (n >= 0xd800 && n <= 0xdfff)) {
+                throw new IllegalArgumentException("bad code point");
+            }
+            System.arraycopy(output, i, output, i + 1, len - i);
+            output[i++] = n;
+            len++;
+        }
+        return new String(output, 0, len);
     }
-*/
 }
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import net.siisise.abnf.rfc.URI3986;
 import net.siisise.io.FileIO;
@@ -26,6 +27,9 @@ import net.siisise.json.JSON;
 import net.siisise.json.JSONArray;
 import net.siisise.json.JSONObject;
 import net.siisise.json.JSONValue;
+import net.siisise.json.jose.JWKSource;
+import net.siisise.json.jose.JWKStore;
+import net.siisise.json.jose.JWTVerifier;
 
 /**
  * サービス情報.
@@ -54,6 +58,18 @@ public class ClientInfo {
     public String iss;
     public JSONObject config;
     public JSONArray jwks;
+    /**
+     * jwks_uri の鍵
+     */
+    private volatile JWKSCache jwksCache;
+    /**
+     * jwks から作った ID Token の検証
+     */
+    private volatile JWTVerifier verifier;
+    /**
+     * verifier を作ったときの jwksCache または jwks
+     */
+    private volatile Object verifierKeys;
 
     /**
      * OpenID Connect well-known + RS256
@@ -161,34 +177,98 @@ public class ClientInfo {
         return (JSONArray)config.getJSON("id_token_signing_alg_values_supported");
     }
     
+    /**
+     * jwks_uri の鍵.
+     * @return 鍵 または jwks_uri がないとき null
+     * @throws MalformedURLException 
+     */
+    public JWKSCache jwksCache() throws MalformedURLException {
+        JWKSCache cache = jwksCache;
+        if ( cache == null ) {
+            String jwksUri = (String)config.get(JWKS_URI);
+            if ( jwksUri == null ) {
+                return null;
+            }
+            synchronized (this) {
+                cache = jwksCache;
+                if ( cache == null ) {
+                    cache = new JWKSCache(new URL(jwksUri));
+                    jwksCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
     /**
      * RFC 7517 JWKっぽい?
+     * max-age の間は読み直さない.
      * @return
      * @throws MalformedURLException
      * @throws IOException 
      */
     public JSONArray keys() throws MalformedURLException, IOException {
-        if ( jwks == null ) {
-            String jwksUri = (String)config.get(JWKS_URI);
-            if ( jwksUri != null ) {
-                JSONValue  jkws = readJSON(new URL(jwksUri));
-                jwks = (JSONArray)((JSONObject)jkws).getJSON("keys");
-            }
+        JWKSCache cache = jwksCache();
+        if ( cache != null ) {
+            jwks = cache.jwks();
         }
         return jwks;
     }
     
-    public JSONObject alg(String alg, String kid) throws IOException {
-        if ( jwks == null ) {
-            keys();
+    /**
+     * ID Token の検証.
+     * 作ったものは複数のスレッドで使いまわす.
+     * jwks_uri があるときは JWKSCache が鍵を読み直すので作り直さない.
+     * jwks_uri がなく jwks を入れ替えたときは作り直す.
+     * @return 検証するもの
+     * @throws IOException jwks が読めない
+     */
+    public JWTVerifier idTokenVerifier() throws IOException {
+        JWKSCache cache = jwksCache();
+        Object src = cache != null ? cache : jwks;
+        JWTVerifier v = verifier;
+        if ( v != null && verifierKeys == src ) {
+            return v;
         }
-        for ( Object k : jwks ) {
-            JSONObject key = (JSONObject)k;
-            if ( alg.equals(key.get("alg")) && kid.equals(key.get("kid"))) {
-                return key;
+        synchronized (this) {
+            v = verifier;
+            if ( v != null && verifierKeys == src ) {
+                return v;
+            }
+            List<String> algs = new ArrayList<>();
+            JSONArray supported = idTokenSigningAlgValuesSupported();
+            if ( supported != null ) {
+                for ( Object alg : supported ) {
+                    algs.add(String.valueOf(alg));
+                }
+            }
+            JWKSource keys = cache;
+            if ( keys == null ) {
+                keys = new JWKStore(jwks == null ? new JSONArray() : jwks);
+            } else {
+                keys();
             }
+            v = JWTVerifier.of(keys, algs);
+            verifierKeys = src;
+            verifier = v;
+            return v;
+        }
+    }
+
+    /**
+     * kid の鍵. 見つからないときは jwks_uri を読み直す.
+     * @param alg alg
+     * @param kid kid
+     * @return JWK
+     * @throws IOException 
+     */
+    public JSONObject alg(String alg, String kid) throws IOException {
+        JWKSCache cache = jwksCache();
+        JWKStore.Key key = cache == null ? null : cache.key(kid, alg);
+        if ( key == null || !alg.equals(key.getJWK().get("alg"))) {
+            throw new SecurityException();
         }
-        throw new SecurityException();
+        return key.getJWK();
     }
 
     public JSONArray codeChallengeMethodsSupported() {
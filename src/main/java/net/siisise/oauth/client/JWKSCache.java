@@ -0,0 +1,363 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.oauth.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import net.siisise.io.FileIO;
+import net.siisise.json.JSON;
+import net.siisise.json.JSONArray;
+import net.siisise.json.JSONObject;
+import net.siisise.json.JSONValue;
+import net.siisise.json.jose.JWKSource;
+import net.siisise.json.jose.JWKStore;
+
+/**
+ * jwks_uri の JWK Set を持っておくもの.
+ * Cache-Control の max-age まで使い、期限が近づいたら裏で読み直す.
+ * 知らない kid が来たら読み直すが、同時に来たものは1回の通信にまとめ、
+ * 間隔をあけないと読み直さない (鍵の入れ替え時に全リクエストが外れても1回だけ).
+ *
+ * JWKSource として JWTVerifier などにそのまま渡せる. 鍵は読んだ JWK Set のみで、追加はできない.
+ */
+public class JWKSCache implements JWKSource {
+
+    /**
+     * 取得したもの.
+     */
+    static final class Fetched {
+
+        final byte[] body;
+        final String cacheControl;
+
+        Fetched(byte[] body, String cacheControl) {
+            this.body = body;
+            this.cacheControl = cacheControl;
+        }
+    }
+
+    /**
+     * 取得方法. テストで差し替える.
+     */
+    interface Fetcher {
+
+        Fetched fetch() throws IOException;
+    }
+
+    /**
+     * ある時点の鍵.
+     */
+    private static final class Snapshot {
+
+        final JSONArray jwks;
+        final JWKStore keys;
+        /**
+         * 読んだ時刻 nanoTime
+         */
+        final long fetched;
+        /**
+         * 裏で読み直し始める時刻
+         */
+        final long refresh;
+        /**
+         * 使えなくなる時刻
+         */
+        final long expires;
+
+        Snapshot(JSONArray jwks, long fetched, long maxAge) {
+            this.jwks = jwks;
+            keys = new JWKStore(jwks);
+            this.fetched = fetched;
+            refresh = fetched + maxAge / 5 * 4;
+            expires = fetched + maxAge;
+        }
+    }
+
+    private static final Executor REFRESH = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "JWKSCache-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Fetcher fetcher;
+    private volatile Snapshot current;
+    /**
+     * 通信中のもの. this で同期する
+     */
+    private CompletableFuture<Snapshot> inflight;
+    /**
+     * kid が見つからないときに読み直すのは1スレッドずつ
+     */
+    private final Object missLock = new Object();
+    /**
+     * 最後に通信を始めた時刻 nanoTime. 失敗したものも含む
+     */
+    private volatile long lastAttempt;
+
+    private long defaultMaxAge = TimeUnit.MINUTES.toNanos(5);
+    private long minMaxAge = TimeUnit.SECONDS.toNanos(30);
+    private long maxMaxAge = TimeUnit.DAYS.toNanos(1);
+    /**
+     * kid が見つからないときに読み直す間隔
+     */
+    private long missInterval = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * @param jwksUri jwks_uri
+     */
+    public JWKSCache(URL jwksUri) {
+        this(() -> read(jwksUri));
+    }
+
+    JWKSCache(Fetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    private static Fetched read(URL url) throws IOException {
+        URLConnection conn = url.openConnection();
+        conn.setRequestProperty("Accept", "application/jwk-set+json, application/json");
+        try (InputStream in = conn.getInputStream()) {
+            if (conn instanceof HttpURLConnection && ((HttpURLConnection) conn).getResponseCode() != 200) {
+                throw new IOException("jwks_uri " + ((HttpURLConnection) conn).getResponseCode());
+            }
+            return new Fetched(FileIO.binRead(in), conn.getHeaderField("Cache-Control"));
+        }
+    }
+
+    /**
+     * max-age がないときの期限.
+     * @param time 時間
+     * @param unit 単位
+     */
+    public void setDefaultMaxAge(long time, TimeUnit unit) {
+        defaultMaxAge = unit.toNanos(time);
+    }
+
+    /**
+     * 知らない kid で読み直す間隔. no-cache などのときの最短の期限にもなる.
+     * @param time 時間
+     * @param unit 単位
+     */
+    public void setMissInterval(long time, TimeUnit unit) {
+        missInterval = unit.toNanos(time);
+        minMaxAge = missInterval;
+    }
+
+    /**
+     * Cache-Control の max-age.
+     * @param cacheControl ヘッダ または null
+     * @return 秒, no-cache, no-store は 0, 指定なし -1
+     */
+    static long maxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        long age = -1;
+        for (String d : cacheControl.split(",")) {
+            d = d.trim().toLowerCase(Locale.ROOT);
+            if (d.equals("no-cache") || d.equals("no-store")) {
+                return 0;
+            } else if (d.startsWith("max-age=")) {
+                try {
+                    age = Long.parseLong(d.substring(8).replace("\"", "").trim());
+                } catch (NumberFormatException e) {
+                    // 使わない
+                }
+            }
+        }
+        return age;
+    }
+
+    /**
+     * 通信して Snapshot にする. 同時に1つだけ.
+     */
+    private Snapshot load() throws IOException {
+        long now = System.nanoTime();
+        lastAttempt = now;
+        Fetched f = fetcher.fetch();
+        JSONValue json = JSON.parseWrap(f.body);
+        if (!(json instanceof JSONObject) || !(((JSONObject) json).getJSON("keys") instanceof JSONArray)) {
+            throw new IOException("not JWK Set");
+        }
+        long age = maxAge(f.cacheControl);
+        age = age < 0 ? defaultMaxAge : TimeUnit.SECONDS.toNanos(age);
+        age = Math.min(Math.max(age, minMaxAge), maxMaxAge);
+        return new Snapshot((JSONArray) ((JSONObject) json).getJSON("keys"), now, age);
+    }
+
+    /**
+     * 読み直す. 通信中のものがあればそれを待つ.
+     * @param async 裏で読む
+     * @return 通信の結果
+     */
+    private CompletableFuture<Snapshot> refresh(boolean async) {
+        CompletableFuture<Snapshot> f;
+        synchronized (this) {
+            if (inflight != null) {
+                return inflight;
+            }
+            f = new CompletableFuture<>();
+            inflight = f;
+        }
+        if (async) {
+            REFRESH.execute(() -> complete(f));
+        } else {
+            complete(f);
+        }
+        return f;
+    }
+
+    private void complete(CompletableFuture<Snapshot> f) {
+        try {
+            Snapshot s = load();
+            current = s;
+            f.complete(s);
+        } catch (IOException | RuntimeException e) {
+            f.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                inflight = null;
+            }
+        }
+    }
+
+    private static Snapshot await(CompletableFuture<Snapshot> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) {
+                throw (IOException) c;
+            }
+            throw new IOException(c);
+        }
+    }
+
+    /**
+     * 期限内のもの. 期限切れで読めなかったときは古いものを使う.
+     */
+    private Snapshot snapshot() throws IOException {
+        Snapshot s = current;
+        long now = System.nanoTime();
+        if (s == null) {
+            return await(refresh(false));
+        } else if (now - s.expires >= 0) {
+            try {
+                return await(refresh(false));
+            } catch (IOException e) {
+                return s;
+            }
+        } else if (now - s.refresh >= 0) {
+            refresh(true);
+        }
+        return s;
+    }
+
+    /**
+     * 今の JWK の列.
+     * @return keys
+     * @throws IOException 1回も読めていない
+     */
+    public JSONArray jwks() throws IOException {
+        return snapshot().jwks;
+    }
+
+    /**
+     * kid の鍵. なければ間隔をあけて読み直す.
+     * 待っている間にほかのスレッドが読み直していたら、それを使う.
+     * @param kid kid または null
+     * @param alg alg
+     * @return 鍵 または null
+     * @throws IOException 読めない
+     */
+    public JWKStore.Key key(String kid, String alg) throws IOException {
+        Snapshot s = snapshot();
+        JWKStore.Key key = s.keys.select(kid, alg);
+        if (key != null || kid == null) {
+            return key;
+        }
+        synchronized (missLock) {
+            Snapshot c = current;
+            if (c != s) { // 読み直したあと
+                key = c.keys.select(kid, alg);
+                if (key != null) {
+                    return key;
+                }
+            }
+            if (System.nanoTime() - lastAttempt < missInterval) {
+                return null;
+            }
+            return await(refresh(false)).keys.select(kid, alg);
+        }
+    }
+
+    /**
+     * 検証用. 読めないときは null.
+     */
+    @Override
+    public JWKStore.Key select(String kid, String alg) {
+        try {
+            return key(kid, alg);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param kid kid
+     * @return 鍵 または 読めないとき null
+     */
+    public JWKStore.Key get(String kid) {
+        try {
+            return snapshot().keys.get(kid);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * RFC 7638 thumbprint で探す.
+     * @param thumbprint SHA-256 の BASE64URL
+     * @return 鍵 または null
+     */
+    public JWKStore.Key thumbprint(String thumbprint) {
+        try {
+            return snapshot().keys.thumbprint(thumbprint);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return 読んだ鍵の数, まだのとき 0
+     */
+    public int size() {
+        Snapshot s = current;
+        return s == null ? 0 : s.keys.size();
+    }
+}
@@ -21,15 +21,15 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
 import net.siisise.io.BASE64;
 import net.siisise.json.JSONArray;
 import net.siisise.json.JSONObject;
-import net.siisise.json.jose.JWT7519;
+import net.siisise.json.jose.JOSERandom;
 import net.siisise.net.http.HttpServer;
 import net.siisise.rest.RestClient;
 import net.siisise.rest.RestException;
@@ -54,6 +54,7 @@ public class OAuthClient extends RestClient {
     private String nonce;
     private String code_verifier;
     private HttpServer httpd;
+    private SSLContext httpdContext;
 
     /**
      * サーバに登録されたClient ID, Client Secret を知っている状態からスタート.
@@ -69,6 +70,14 @@ public class OAuthClient extends RestClient {
         redirect = uri;
     }
 
+    /**
+     * https の redirect URI を callback サーバで受けるときの鍵と証明書.
+     * @param context サーバ用 SSLContext
+     */
+    public void setCallbackSSLContext(SSLContext context) {
+        httpdContext = context;
+    }
+
     public ClientInfo info() {
         return info;
     }
@@ -93,10 +102,7 @@ public class OAuthClient extends RestClient {
             JSONObject ac = authcode(code);
             exr.putJSON("ac",ac);
             String idToken = (String)ac.get("id_token");
-            JWT7519 jwt = new JWT7519();
-            JSONArray algs = info.idTokenSigningAlgValuesSupported();
-            jwt.init(info.keys());
-            exr.putJSON("payload", jwt.validate(idToken));
+            exr.putJSON("payload", info.idTokenVerifier().validateJSON(idToken));
             return exr.toJSON();
         } catch (IOException ex) {
             Logger.getLogger(OAuthClient.class.getName()).log(Level.SEVERE, null, ex);
@@ -178,22 +184,16 @@ public class OAuthClient extends RestClient {
         if ( scope != null ) {
             params.put("scope", scope);
         }
-        SecureRandom sr = SecureRandom.getInstanceStrong();
-        BASE64 b64 = new BASE64(BASE64.URL,0);
-        byte[] rnd = new byte[8];
-        sr.nextBytes(rnd);
-        state = b64.encode(rnd); // 仮
+        state = JOSERandom.token(16);
         params.put("state", state);
-        sr.nextBytes(rnd);
-        nonce = b64.encode(rnd); // 今まで使われていない値
+        nonce = JOSERandom.token(16); // 今まで使われていない値
         params.put("nonce", nonce);
         
         JSONArray methods = info.codeChallengeMethodsSupported();
         if ( methods != null && methods.contains("S256")) {
             // RFC 7636 PKCE
-            rnd = new byte[45];
-            sr.nextBytes(rnd);
-            code_verifier = b64.encode(rnd); // 43 - 128文字
+            code_verifier = JOSERandom.token(45); // 43 - 128文字
+            BASE64 b64 = new BASE64(BASE64.URL,0);
             SHA256 s256 = new SHA256();
             String code_challenge = b64.encode(s256.digest(code_verifier.getBytes(StandardCharsets.UTF_8))); // ASCII文字としてHASH
             params.put("code_challenge", code_challenge);
@@ -214,12 +214,15 @@ public class OAuthClient extends RestClient {
         httpd.callback(redirect_uri.getPath(), callback);
         int port = redirect_uri.getPort();
         String scheme = redirect_uri.getScheme();
-        if ( port == -1 ) {
-            if ( "http".equals(scheme)) {
-                port = 80;
-            } else {
-                throw new java.net.UnknownServiceException();
+        if ( "https".equals(scheme) && httpdContext != null ) {
+            httpd.setSSLContext(httpdContext);
+            if ( port == -1 ) {
+                port = 443;
             }
+        } else if ( !"http".equals(scheme) ) {
+            throw new java.net.UnknownServiceException();
+        } else if ( port == -1 ) {
+            port = 80;
         }
         InetAddress loopback = InetAddress.getLoopbackAddress();
         httpd.start(loopback, port);
@@ -15,13 +15,18 @@
  */
 package net.siisise.oauth.parser;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import net.siisise.abnf.ABNF;
 import net.siisise.abnf.ABNFReg;
 import net.siisise.abnf.parser5234.ABNF5234;
+import net.siisise.block.ReadableBlock;
 import net.siisise.bnf.BNF;
 import net.siisise.bnf.BNFReg;
 import net.siisise.bnf.parser.BNFList;
+import net.siisise.net.http.QueryString;
 
 /**
  *
@@ -39,9 +44,37 @@ public class URIQuery extends BNFList<List,Object> {
         super(bnf,reg);
     }
 
+    /**
+     * 読んだものを並べなおして QueryString で名前と値に分ける.
+     * @param list 部分の解析結果
+     * @return QueryString.Param の列
+     */
     @Override
     protected List build(List<Object> list) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object o : list) {
+            if (o instanceof Byte) { // PCTdce でデコード済み
+                int b = ((Byte) o) & 0xff;
+                out.write('%');
+                out.write(Character.forDigit(b >> 4, 16));
+                out.write(Character.forDigit(b & 0xf, 16));
+            } else if (o instanceof ReadableBlock) {
+                ReadableBlock rb = (ReadableBlock) o;
+                byte[] d = new byte[rb.size()];
+                rb.read(d);
+                rb.back(d.length);
+                out.write(d, 0, d.length);
+            } else if (o != null) {
+                byte[] d = o.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(d, 0, d.length);
+            }
+        }
+        byte[] q = out.toByteArray();
+        List<QueryString.Param> params = new ArrayList<>();
+        for (QueryString.Param p : QueryString.parse(q, 0, q.length)) {
+            params.add(p);
+        }
+        return params;
     }
 
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.rest;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import net.siisise.abnf.rfc.URI6874;
+import net.siisise.net.http.HttpEncode;
+import net.siisise.net.idna.IDNA;
+
+/**
+ * 分解済みのリクエスト先.
+ * baseURI を1回だけ解析しておいて path と query をつなぐ.
+ * URI.create と URL の解析を毎回しない.
+ * 文法の確認は net.siisise.rest.debug が true のときだけ ABNF で行う.
+ */
+public final class RequestTarget {
+
+    static final boolean DEBUG = Boolean.getBoolean("net.siisise.rest.debug");
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    final String scheme;
+    /**
+     * userinfo@ または 空
+     */
+    final String userinfo;
+    /**
+     * ASCII の host
+     */
+    final String host;
+    /**
+     * 省略時 -1
+     */
+    final int port;
+    final String path;
+    /**
+     * 符号化済み または null
+     */
+    final String query;
+
+    /**
+     * parse したときの文字列 または null
+     */
+    final String source;
+
+    private String string;
+
+    private RequestTarget(String source, String scheme, String userinfo, String host, int port, String path, String query) {
+        this.source = source;
+        this.scheme = scheme;
+        this.userinfo = userinfo;
+        this.host = host;
+        this.port = port;
+        this.path = path;
+        this.query = query;
+        if (DEBUG) {
+            validate(toString());
+        }
+    }
+
+    /**
+     * 絶対URIを分解する.
+     * fragment は送らないので捨てる.
+     * @param uri 絶対URI
+     * @return 分解したもの
+     * @throws IllegalArgumentException URI でないとき
+     */
+    public static RequestTarget parse(String uri) {
+        if (DEBUG) {
+            validate(uri);
+        }
+        int a = uri.indexOf("://");
+        if (a <= 0) {
+            throw new IllegalArgumentException("not absolute URI: " + uri);
+        }
+        String scheme = uri.substring(0, a).toLowerCase(Locale.ROOT);
+        a += 3;
+        int len = end(uri, '#', 0);
+        int p = a;
+        while (p < len && "/?".indexOf(uri.charAt(p)) < 0) {
+            p++;
+        }
+        int h = uri.lastIndexOf('@', p - 1) + 1;
+        if (h < a) {
+            h = a;
+        }
+        int c = uri.lastIndexOf(':', p - 1);
+        if (c < h || uri.lastIndexOf(']', p - 1) > c) { // IPv6
+            c = p;
+        }
+        int port = -1;
+        if (c + 1 < p) {
+            try {
+                port = Integer.parseInt(uri.substring(c + 1, p));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad port: " + uri, e);
+            }
+        }
+        String host = IDNA.toASCII(uri.substring(h, c));
+        int q = end(uri, '?', p);
+        if (q > len) {
+            q = len;
+        }
+        String path = encode(uri.substring(p, q));
+        String query = q < len ? encode(uri.substring(q + 1, len)) : null;
+        return new RequestTarget(uri, scheme, uri.substring(a, h), host, port, path, query);
+    }
+
+    private static int end(String s, char ch, int from) {
+        int i = s.indexOf(ch, from);
+        return i < 0 ? s.length() : i;
+    }
+
+    /**
+     * path をつなげる.
+     * baseuri + uri の文字列連結と同じ扱いで、RFC 3986 の相対解決ではない.
+     * 絶対URIのときはそれを使う.
+     * @param uri 相対URL または 絶対URI, query がついていてもいい
+     * @return 新しいもの
+     */
+    public RequestTarget resolve(String uri) {
+        int q = uri.indexOf('?');
+        int s = uri.indexOf("://");
+        if (s > 0 && (q < 0 || s < q) && uri.lastIndexOf('/', s) < 0) {
+            return parse(uri);
+        }
+        int len = end(uri, '#', 0);
+        if (q < 0 || q > len) {
+            q = len;
+        }
+        String p = path + encode(uri.substring(0, q));
+        String rq = q < len ? encode(uri.substring(q + 1, len)) : null;
+        return new RequestTarget(null, scheme, userinfo, host, port, p, rq == null ? query : query == null ? rq : query + "&" + rq);
+    }
+
+    /**
+     * query に追加する.
+     * @param nv 名前と値の組, 符号化していないもの
+     * @return 新しいもの
+     */
+    public RequestTarget param(String... nv) {
+        if (nv.length < 2) {
+            return this;
+        }
+        StringBuilder sb = new StringBuilder(nv.length * 16);
+        for (int i = 0; i + 1 < nv.length; i += 2) {
+            pair(sb, nv[i], nv[i + 1]);
+        }
+        return query(sb);
+    }
+
+    /**
+     * query に追加する.
+     * @param params 名前と値, 符号化していないもの
+     * @return 新しいもの
+     */
+    public RequestTarget param(Map<String, String> params) {
+        if (params.isEmpty()) {
+            return this;
+        }
+        StringBuilder sb = new StringBuilder(params.size() * 16);
+        params.forEach((k, v) -> pair(sb, k, v));
+        return query(sb);
+    }
+
+    private static void pair(StringBuilder sb, String name, String value) {
+        if (sb.length() > 0) {
+            sb.append('&');
+        }
+        HttpEncode.formPercentEncode(name, sb);
+        sb.append('=');
+        HttpEncode.formPercentEncode(value, sb);
+    }
+
+    private RequestTarget query(StringBuilder sb) {
+        String q = query == null ? sb.toString() : query + "&" + sb;
+        return new RequestTarget(null, scheme, userinfo, host, port, path, q);
+    }
+
+    /**
+     * ASCII 以外と空白などを percent-encoding する.
+     * '%' はすでに符号化されているものとしてそのまま.
+     */
+    static String encode(String s) {
+        int len = s.length();
+        int i = 0;
+        while (i < len && s.charAt(i) > 0x20 && s.charAt(i) < 0x7f) {
+            i++;
+        }
+        if (i == len) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(len + 16);
+        sb.append(s, 0, i);
+        for (; i < len; i++) {
+            char c = s.charAt(i);
+            if (c > 0x20 && c < 0x7f) {
+                sb.append(c);
+                continue;
+            }
+            int e = i + 1;
+            if (Character.isHighSurrogate(c) && e < len) {
+                e++;
+            }
+            for (byte b : s.substring(i, e).getBytes(StandardCharsets.UTF_8)) {
+                sb.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+            }
+            i = e - 1;
+        }
+        return sb.toString();
+    }
+
+    private static void validate(String uri) {
+        if (!URI6874.REG.ref("URI").is(uri)) {
+            throw new IllegalArgumentException("URI syntax: " + uri);
+        }
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return port または 省略時 -1
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return 符号化済みの query または null
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * 解析し直さずに URL にする.
+     * @return URL
+     * @throws MalformedURLException scheme が使えないとき
+     */
+    public URL toURL() throws MalformedURLException {
+        if (!userinfo.isEmpty()) {
+            return new URL(toString());
+        }
+        String file = query == null ? path : path + "?" + query;
+        return new URL(scheme, host, port, file);
+    }
+
+    public URI toURI() {
+        return URI.create(toString());
+    }
+
+    @Override
+    public String toString() {
+        if (string == null) {
+            StringBuilder sb = new StringBuilder(scheme.length() + host.length() + path.length() + 16 + (query == null ? 0 : query.length()));
+            sb.append(scheme).append("://").append(userinfo).append(host);
+            if (port >= 0) {
+                sb.append(':').append(port);
+            }
+            sb.append(path);
+            if (query != null) {
+                sb.append('?').append(query);
+            }
+            string = sb.toString();
+        }
+        return string;
+    }
+}
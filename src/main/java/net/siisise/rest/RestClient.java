@@ -25,14 +25,18 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import net.siisise.bind.Rebind;
+import net.siisise.html.HTML;
 import net.siisise.io.FileIO;
+import net.siisise.net.URITemplate;
 import net.siisise.net.http.HttpClient;
+import net.siisise.net.idna.IDNA;
 import net.siisise.json.JSON;
 import net.siisise.json.JSONValue;
 
@@ -46,6 +50,11 @@ import net.siisise.json.JSONValue;
  */
 public class RestClient extends HttpClient {
 
+    /**
+     * 解析済みの baseuri
+     */
+    private volatile RequestTarget base;
+
     /**
      * 
      * Nature Remo っぽい
@@ -79,6 +88,54 @@ public class RestClient extends HttpClient {
         }
     }
 
+    /**
+     * baseURI につなげる.
+     * baseURI は1回だけ解析する.
+     * @param uri 相対URL または 絶対URI
+     * @return 分解済みのURL
+     */
+    RequestTarget target(String uri) {
+        String b = baseuri;
+        if (b == null || b.isEmpty()) {
+            return RequestTarget.parse(uri);
+        }
+        RequestTarget t = base;
+        if (t == null || !b.equals(t.source)) {
+            t = RequestTarget.parse(b);
+            base = t;
+        }
+        return t.resolve(uri);
+    }
+
+    /**
+     * URI.create の代わり.
+     * 国際化ドメイン名は IDNA で xn-- 形式にする. 変換結果は IDNA がキャッシュする.
+     * @param s URI
+     * @return URI
+     */
+    static URI uri(String s) {
+        int a = s.indexOf("://");
+        if (a < 0 || IDNA.isASCII(s)) {
+            return URI.create(s);
+        }
+        a += 3;
+        int e = a;
+        while (e < s.length() && "/?#".indexOf(s.charAt(e)) < 0) {
+            e++;
+        }
+        int h = s.lastIndexOf('@', e - 1) + 1;
+        if (h < a) {
+            h = a;
+        }
+        int p = s.lastIndexOf(':', e - 1);
+        if (p < h) {
+            p = e;
+        }
+        String host = s.substring(h, p);
+        String ace = IDNA.toASCII(host);
+        return URI.create(ace == host ? s : s.substring(0, h) + ace + s.substring(p));
+    }
+
     /**
      * パラメータを適度に追加する.
      * @param uri
@@ -95,7 +152,7 @@ public class RestClient extends HttpClient {
             u.append(formPercentEncode(nv[i + 1]));
             ar = '&';
         }
-        return URI.create(u.toString());
+        return uri(u.toString());
     }
 
     /**
@@ -114,26 +171,27 @@ public class RestClient extends HttpClient {
             u.append(formPercentEncode(params.get(key)));
             ap ='&';
         }
-        return URI.create(u.toString());
+        return uri(u.toString());
     }
 
     /**
-     * 
-     * @param url
+     * 自動送信用のform.
+     * 属性値は HTML のエスケープのみ. percent-encoding はブラウザが送るときに行う.
+     * @param url action
      * @param name
-     * @param nv
-     * @return 
+     * @param nv 名前と値の組
+     * @return form
      */
     public static String html(String url, String name, String... nv) {
-        StringBuilder html = new StringBuilder();
+        StringBuilder html = new StringBuilder(64 + nv.length * 48);
         html.append("<form action=\"");
-        html.append(url);
+        HTML.escAttr(url, html);
         html.append("\">");
         for (int i = 0; i < nv.length; i += 2) {
             html.append("<input type=\"hidden\" name=\"");
-            html.append(formPercentEncode(nv[i]));
+            HTML.escAttr(nv[i], html);
             html.append("\" value=\"");
-            html.append(formPercentEncode(nv[i + 1]));
+            HTML.escAttr(nv[i + 1], html);
             html.append("\">");
         }
         html.append("<input type=\"submit\">");
@@ -151,10 +209,7 @@ public class RestClient extends HttpClient {
      * @throws IOException
      */
     public <T> T get(String uri, String... params) throws RestException, IOException {
-        if (params.length >= 2) {
-            return get(param(baseuri + uri,params), JSONValue.class);
-        }
-        return get(URI.create(baseuri + uri), JSONValue.class);
+        return get(target(uri).param(params), JSONValue.class);
     }
 
     /**
@@ -166,8 +221,7 @@ public class RestClient extends HttpClient {
      * @throws IOException 
      */
     public byte[] getBlob(String uri, String accept, String... params) throws IOException {
-        URI u = param(baseuri + uri, params);
-        return getBlob(u, accept);
+        return getBlob(target(uri).param(params).toURL(), accept);
     }
 
     /**
@@ -180,7 +234,21 @@ public class RestClient extends HttpClient {
      * @throws IOException 
      */
     public <T> T get(String uri, Map<String, String> paramMap) throws RestException, IOException {
-        return get(param(baseuri + uri, paramMap));
+        return get(target(uri).param(paramMap), JSONValue.class);
+    }
+
+    /**
+     * URI Template を展開して GET.
+     * 展開したものが相対URLのときは baseURI につなげる.
+     * @param <T> たぶんJSON
+     * @param template RFC 6570 URI Template
+     * @param vars 変数
+     * @return JSONな戻りを期待
+     * @throws RestException
+     * @throws IOException 
+     */
+    public <T> T get(URITemplate template, Map<String, ?> vars) throws RestException, IOException {
+        return get(target(template.expand(vars)), JSONValue.class);
     }
 
     /**
@@ -220,7 +288,7 @@ public class RestClient extends HttpClient {
      * @throws IOException
      */
     public <T> T get(String url, Type genType) throws RestException, IOException {
-        return get(URI.create(baseuri + url), genType);
+        return get(target(url), genType);
     }
 
     /**
@@ -234,7 +302,22 @@ public class RestClient extends HttpClient {
      * @throws IOException
      */
     public <T> T get(URI uri, Type type) throws RestException, IOException {
-        HttpURLConnection conn = getConnect(uri);
+        HttpURLConnection conn = getConnect(uri.toURL());
+        return result(conn, type);
+    }
+
+    /**
+     * HTTP GET
+     *
+     * @param <T>
+     * @param target 分解済みのURL
+     * @param type 期待する戻り型
+     * @return JSON固定 bindとかしない
+     * @throws net.siisise.rest.RestException
+     * @throws IOException
+     */
+    public <T> T get(RequestTarget target, Type type) throws RestException, IOException {
+        HttpURLConnection conn = getConnect(target.toURL());
         return result(conn, type);
     }
 
@@ -246,7 +329,11 @@ public class RestClient extends HttpClient {
      * @throws IOException 
      */
     public byte[] getBlob(URI uri, String accept) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) uri.toURL().openConnection();
+        return getBlob(uri.toURL(), accept);
+    }
+
+    private byte[] getBlob(URL url, String accept) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         conn.setRequestMethod("GET");
 
         Map<String,String> hds = new LinkedHashMap<>(headers);
@@ -265,7 +352,7 @@ public class RestClient extends HttpClient {
      * @throws IOException 
      */
     public JSONValue post(String uri, Map<String, String> paramMap) throws RestException, IOException {
-        return post(URI.create(baseuri + uri), paramMap);
+        return post(target(uri), paramToArray(paramMap));
     }
     
     /**
@@ -278,7 +365,7 @@ public class RestClient extends HttpClient {
      * @throws RestException 
      */
     public <T extends JSONValue> T postJSON(String uri, JSONValue json) throws IOException, RestException {
-        return post(URI.create(baseuri + uri), "application/json", 
+        return post(target(uri), "application/json", 
                 json.rebind(JSONValue.NOBR_MINESC).getBytes(StandardCharsets.UTF_8));
     }
 
@@ -291,11 +378,11 @@ public class RestClient extends HttpClient {
      * @throws RestException 
      */
     public <T extends JSONValue> T post(String uri) throws IOException, RestException {
-        return post(URI.create(baseuri + uri), null, null);
+        return post(target(uri), null, null);
     }
 
     public <T extends JSONValue> T post(String uri, String mime, byte[] body) throws IOException, RestException {
-        return post(URI.create(baseuri + uri), mime, body);
+        return post(target(uri), mime, body);
     }
 
     /**
@@ -307,7 +394,7 @@ public class RestClient extends HttpClient {
      * @throws IOException
      */
     public JSONValue post(String uri, String... parameters) throws RestException, IOException {
-        return post(URI.create(baseuri + uri), parameters);
+        return post(target(uri), parameters);
     }
 
     /**
@@ -341,7 +428,20 @@ public class RestClient extends HttpClient {
      * @throws IOException
      */
     public JSONValue post(URI uri, String... parameters) throws RestException, IOException {
-        HttpURLConnection conn = postRequest(uri, parameters);
+        HttpURLConnection conn = postRequest(uri.toURL(), parameters);
+        return result(conn, JSONValue.class);
+    }
+
+    /**
+     * POST.application/x-www-form-urlencoded
+     * @param target 分解済みのURL
+     * @param parameters エンコードしてない
+     * @return JSON
+     * @throws net.siisise.rest.RestException
+     * @throws IOException
+     */
+    public JSONValue post(RequestTarget target, String... parameters) throws RestException, IOException {
+        HttpURLConnection conn = postRequest(target.toURL(), parameters);
         return result(conn, JSONValue.class);
     }
 
@@ -369,7 +469,25 @@ public class RestClient extends HttpClient {
      * @throws RestException 
      */
     public <T extends JSONValue> T post(URI uri, String mime, byte[] body) throws IOException, RestException {
-        HttpURLConnection conn = postConnect(uri);
+        return post(uri.toURL(), mime, body);
+    }
+
+    /**
+     * BODY送信
+     * @param <T>
+     * @param target 分解済みのURL
+     * @param mime
+     * @param body
+     * @return
+     * @throws IOException
+     * @throws RestException 
+     */
+    public <T extends JSONValue> T post(RequestTarget target, String mime, byte[] body) throws IOException, RestException {
+        return post(target.toURL(), mime, body);
+    }
+
+    private <T extends JSONValue> T post(URL url, String mime, byte[] body) throws IOException, RestException {
+        HttpURLConnection conn = postConnect(url);
         
         System.out.println(new String(body, StandardCharsets.UTF_8));
 
@@ -392,8 +510,8 @@ public class RestClient extends HttpClient {
      * @throws ProtocolException
      * @throws IOException 
      */
-    HttpURLConnection getConnect(URI uri) throws MalformedURLException, ProtocolException, IOException {
-        HttpURLConnection conn = (HttpURLConnection) uri.toURL().openConnection();
+    HttpURLConnection getConnect(URL url) throws MalformedURLException, ProtocolException, IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         // https限定
         conn.setRequestMethod("GET");
         headers.forEach((key, val) -> conn.setRequestProperty(key, val));
@@ -420,8 +538,8 @@ public class RestClient extends HttpClient {
      * @throws ProtocolException
      * @throws IOException 
      */
-    HttpURLConnection postConnect(URI uri) throws MalformedURLException, ProtocolException, IOException {
-        HttpURLConnection conn = (HttpURLConnection) uri.toURL().openConnection();
+    HttpURLConnection postConnect(URL url) throws MalformedURLException, ProtocolException, IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         // https限定
         conn.setRequestMethod("POST");
         headers.forEach((key, val) -> conn.setRequestProperty(key, val));
@@ -447,8 +565,8 @@ public class RestClient extends HttpClient {
      * @return
      * @throws IOException 
      */
-    HttpURLConnection postRequest(URI uri, String... parameters) throws IOException {
-        HttpURLConnection conn = postConnect(uri);
+    HttpURLConnection postRequest(URL url, String... parameters) throws IOException {
+        HttpURLConnection conn = postConnect(url);
         
         if (parameters.length > 0) {
             conn.setDoOutput(true);
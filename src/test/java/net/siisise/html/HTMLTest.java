@@ -0,0 +1,45 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.html;
+
+import java.io.StringWriter;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HTMLのエスケープ.
+ */
+public class HTMLTest {
+
+    public HTMLTest() {
+    }
+
+    @Test
+    public void testEsc() throws Exception {
+        System.out.println("esc");
+        String plain = "abcあいう";
+        assertSame(plain, HTML.esc(plain));
+        assertEquals("&lt;a&nbsp;href=&quot;x&quot;&gt;&amp;&#39;&nbsp;b", HTML.esc("<a href=\"x\">&' b"));
+        assertEquals("a b&amp;", HTML.escAttr("a b&"));
+
+        StringWriter w = new StringWriter();
+        HTML.esc("x<y>z", w);
+        assertEquals("x&lt;y&gt;z", w.toString());
+        StringBuilder sb = new StringBuilder("v=");
+        HTML.escAttr("\"q\"", sb);
+        assertEquals("v=&quot;q&quot;", sb.toString());
+    }
+}
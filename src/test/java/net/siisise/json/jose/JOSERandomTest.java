@@ -0,0 +1,54 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 乱数.
+ */
+public class JOSERandomTest {
+
+    public JOSERandomTest() {
+    }
+
+    @Test
+    public void testToken() {
+        System.out.println("token");
+        assertEquals(60, JOSERandom.token(45).length()); // PKCE code_verifier 43 - 128文字
+        Set<String> tokens = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(tokens.add(JOSERandom.token(16)));
+        }
+        assertSame(JOSERandom.current(), JOSERandom.current());
+    }
+
+    /**
+     * 量を超えたら reseed してそのまま使える.
+     */
+    @Test
+    public void testReseed() {
+        System.out.println("reseed");
+        byte[] b = new byte[(int) (JOSERandom.RESEED_BYTES / 4)];
+        for (int i = 0; i < 6; i++) {
+            JOSERandom.nextBytes(b);
+        }
+        assertEquals(32, JOSERandom.bytes(32).length);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+import java.util.Random;
+import net.siisise.io.BASE64;
+import net.siisise.json.JSONArray;
+import net.siisise.json.JSONObject;
+import net.siisise.security.key.RSAMiniPrivateKey;
+import net.siisise.security.key.RSAPublicKey;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * JWE.
+ */
+public class JWE7516Test {
+
+    public JWE7516Test() {
+    }
+
+    /**
+     * RFC 7516 Appendix A.3 A128KW, A128CBC-HS256
+     */
+    @Test
+    public void testA128KW() {
+        System.out.println("A128KW A128CBC-HS256");
+        String jwe = "eyJhbGciOiJBMTI4S1ciLCJlbmMiOiJBMTI4Q0JDLUhTMjU2In0."
+                + "6KB707dM9YTIgHtLvtgWQ8mKwboJW3of9locizkDTHzBC2IlrT1oOQ."
+                + "AxY8DCtDaGlsbGljb3RoZQ."
+                + "KDlTtXchhZTGufMYmOYGS4HffxPSUrfmqCHXaI9wOGY."
+                + "U0m_YmjN04DJvceFICbCVQ";
+        JWE7516 dec = new JWE7516();
+        dec.setAlg("A128KW");
+        dec.setEnc("A128CBC-HS256");
+        dec.setKey(new BASE64(BASE64.URL, 0).decode("GawgguFyGrWKav7AX4VKUg"));
+        assertEquals("Live long and prosper.", new String(dec.decrypt(jwe), StandardCharsets.UTF_8));
+        assertThrows(SecurityException.class, () -> dec.decrypt(jwe.replace("U0m_", "U0m-")));
+
+        String again = dec.compact("Live long and prosper.".getBytes(StandardCharsets.UTF_8));
+        assertEquals("Live long and prosper.", new String(dec.decrypt(again), StandardCharsets.UTF_8));
+        dec.setEnc("A128GCM");
+        assertThrows(SecurityException.class, () -> dec.decrypt(jwe)); // enc 違い
+    }
+
+    @Test
+    public void testRSAOAEP() throws Exception {
+        System.out.println("RSA-OAEP-256 A256GCM");
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair kp = kpg.generateKeyPair();
+        RSAPrivateKey prv = (RSAPrivateKey) kp.getPrivate();
+        java.security.interfaces.RSAPublicKey pub = (java.security.interfaces.RSAPublicKey) kp.getPublic();
+        for (String alg : new String[] {"RSA-OAEP", "RSA-OAEP-256"}) {
+            JWE7516 enc = new JWE7516();
+            enc.setAlg(alg);
+            enc.init(new RSAPublicKey(pub.getModulus(), pub.getPublicExponent()));
+            JWE7516 dec = new JWE7516();
+            dec.setAlg(alg);
+            dec.init(new RSAMiniPrivateKey(prv.getModulus(), prv.getPrivateExponent()));
+
+            byte[] data = "The true sign of intelligence is not knowledge but imagination.".getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(data, dec.decrypt(enc.compact(data)));
+            JSONObject json = enc.json(data, "aad".getBytes(StandardCharsets.UTF_8));
+            assertArrayEquals(data, dec.decrypt(json));
+            json.put("aad", "YWFl");
+            assertThrows(SecurityException.class, () -> dec.decrypt(json));
+        }
+    }
+
+    /**
+     * zip, crit はどのヘッダにあっても復号しない.
+     */
+    @Test
+    public void testUnsupportedHeader() {
+        System.out.println("zip, crit");
+        JWE7516 jwe = new JWE7516();
+        jwe.setAlg("A128KW");
+        jwe.setEnc("A128GCM");
+        jwe.setKey(new BASE64(BASE64.URL, 0).decode("GawgguFyGrWKav7AX4VKUg"));
+        byte[] data = "Live long and prosper.".getBytes(StandardCharsets.UTF_8);
+        for (String name : new String[] {"zip", "crit"}) {
+            Object value = name.equals("zip") ? "DEF" : Arrays.asList("exp");
+            JSONObject unprotected = jwe.json(data);
+            JSONObject h = new JSONObject();
+            h.put(name, value);
+            unprotected.put("unprotected", h);
+            assertThrows(SecurityException.class, () -> jwe.decrypt(unprotected), name);
+
+            JSONObject header = jwe.json(data); // flattened の header
+            header.put("header", h);
+            assertThrows(SecurityException.class, () -> jwe.decrypt(header), name);
+
+            JSONObject general = jwe.json(data); // 2つめの recipient の header
+            JSONObject r1 = new JSONObject();
+            r1.put("encrypted_key", general.remove("encrypted_key"));
+            JSONObject r2 = new JSONObject();
+            r2.put("header", h);
+            r2.put("encrypted_key", r1.get("encrypted_key"));
+            JSONArray recipients = new JSONArray();
+            recipients.add(r1);
+            recipients.add(r2);
+            general.put("recipients", recipients);
+            assertThrows(SecurityException.class, () -> jwe.decrypt(general), name);
+            recipients.remove(r2);
+            assertArrayEquals(data, jwe.decrypt(general));
+        }
+        JSONObject bad = jwe.json(data);
+        bad.put("unprotected", "zip");
+        assertThrows(SecurityException.class, () -> jwe.decrypt(bad));
+    }
+
+    /**
+     * 文字列でないものは復号しない.
+     */
+    @Test
+    public void testNonString() {
+        System.out.println("non string");
+        JWE7516 jwe = new JWE7516();
+        jwe.setAlg("A128KW");
+        jwe.setEnc("A128GCM");
+        jwe.setKey(new BASE64(BASE64.URL, 0).decode("GawgguFyGrWKav7AX4VKUg"));
+        byte[] data = "Live long and prosper.".getBytes(StandardCharsets.UTF_8);
+        for (String name : new String[] {"protected", "aad", "iv", "ciphertext", "tag", "encrypted_key"}) {
+            JSONObject bad = jwe.json(data);
+            bad.put(name, 1);
+            assertThrows(SecurityException.class, () -> jwe.decrypt(bad), name);
+        }
+        JSONObject alg = jwe.json(data);
+        alg.put("protected", new BASE64(BASE64.URL, 0).encode("{\"alg\":1,\"enc\":\"A128GCM\"}".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(SecurityException.class, () -> jwe.decrypt(alg));
+    }
+
+    /**
+     * 読みながら暗号化したものを復号する.
+     */
+    @Test
+    public void testStream() throws Exception {
+        System.out.println("stream");
+        byte[] data = new byte[100001];
+        new Random(1).nextBytes(data);
+        for (String e : new String[] {"A256GCM", "A192CBC-HS384"}) {
+            JWE7516 jwe = new JWE7516();
+            jwe.setAlg("dir");
+            jwe.setEnc(e);
+            jwe.setKey(new byte[JWE7516.cekLength(e)]);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            jwe.compact(new ByteArrayInputStream(data), out);
+            String s = new String(out.toByteArray(), StandardCharsets.US_ASCII);
+            assertEquals("", s.split("\\.")[1]);
+            assertArrayEquals(data, jwe.decrypt(s));
+        }
+    }
+}
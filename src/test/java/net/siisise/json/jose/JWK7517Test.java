@@ -0,0 +1,124 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.util.Arrays;
+import net.siisise.json.JSONArray;
+import net.siisise.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * JWK と JWK Set.
+ */
+public class JWK7517Test {
+
+    /**
+     * RFC 7638 3.1
+     */
+    static final String RSA = "{\"kty\":\"RSA\",\"n\":\"0vx7agoebGcQSuuPiLJXZptN9nndrQmbXEps2aiAFbWhM78LhWx4cbbfAAtVT86zwu1RK7aPFFxuhDR1L6tSoc_BJECPebWKRXjBZCiFV4n3oknjhMstn64tZ_2W-5JsGY4Hc5n9yBXArwl93lqt7_RN5w6Cf0h4QyQ5v-65YGjQR0_FDW2QvzqY368QQMicAtaSqzs8KJZgnYb9c7d0zgdAZHzu6qMQvRL5hajrn1n91CbOpbISD08qNLyrdkt-bFTWhAI4vMQFh6WeZu0fM4lFd2NcRwr3XPksINHaQ-G_xBniIqbw0Ls1jF44-csFCur-kEgU8awapJzKnqDKgw\","
+            + "\"e\":\"AQAB\",\"alg\":\"RS256\",\"kid\":\"2011-04-29\"}";
+
+    public JWK7517Test() {
+    }
+
+    @Test
+    public void testThumbprint() {
+        System.out.println("thumbprint");
+        JWK7517 rsa = JWK7517.parse(RSA);
+        assertEquals("NzbLsXh8uDCcd-6MNwXF4W_7noWXFZAfHkxZsRGC9Xs", rsa.thumbprint());
+        assertEquals("RSA", rsa.getKty());
+        assertEquals("2011-04-29", rsa.getKid());
+        assertEquals("RSA", rsa.publicKey().getAlgorithm());
+        assertSame(rsa.publicKey(), rsa.publicKey());
+
+        // RFC 8037 A.3
+        JWK7517 okp = JWK7517.parse("{\"kty\":\"OKP\",\"crv\":\"Ed25519\",\"x\":\"11qYAYKxCrfVS_7TyWQHOg7hcvPapiMlrwIaaPcHURo\"}");
+        assertEquals("kPrK_qmxVWaYVA9wwBF6Iuo3vVzz7TxHCTwXBygrS4k", okp.thumbprint());
+    }
+
+    @Test
+    public void testParse() {
+        System.out.println("parse");
+        assertThrows(IllegalArgumentException.class, () -> JWK7517.parse("{\"kty\":\"RSA\",\"e\":\"AQAB\"}"));
+        assertThrows(IllegalArgumentException.class, () -> JWK7517.parse("{\"kty\":\"EC\",\"crv\":\"P-256\",\"x\":\"AQAB\",\"y\":\"AQAB\"}"));
+        assertThrows(IllegalArgumentException.class, () -> JWK7517.parse("{\"kty\":\"oct\",\"k\":\"AQ+B\"}"));
+        assertThrows(IllegalArgumentException.class, () -> JWK7517.parse("{\"kty\":\"XYZ\"}"));
+        assertThrows(IllegalArgumentException.class, () -> JWK7517.parse("{\"kty\":\"oct\",\"k\":\"AQAB\",\"key_ops\":[\"sign\",\"sign\"]}"));
+
+        JWK7517 oct = JWK7517.parse("{\"kty\":\"oct\",\"k\":\"AQAB\",\"use\":\"enc\"}");
+        assertArrayEquals(new byte[] {1, 0, 1}, oct.octets());
+        assertTrue(oct.allows("enc", "wrapKey"));
+        assertFalse(oct.allows("sig", null));
+    }
+
+    @Test
+    public void testJWKSet() {
+        System.out.println("JWK Set");
+        JSONObject sig = (JSONObject) net.siisise.json.JSON.parseWrap(RSA);
+        JSONObject enc = (JSONObject) net.siisise.json.JSON.parseWrap(RSA);
+        enc.put("kid", "enc1");
+        enc.remove("alg");
+        enc.put("use", "enc");
+        JSONObject unknown = new JSONObject();
+        unknown.put("kty", "XYZ");
+        JWKStore store = new JWKStore(Arrays.asList(enc, unknown, sig));
+        assertEquals(2, store.size());
+        assertEquals("2011-04-29", store.select(null, "RS256").getKid());
+        assertNull(store.select("enc1", "RS256"));
+        assertEquals("enc1", store.thumbprint("NzbLsXh8uDCcd-6MNwXF4W_7noWXFZAfHkxZsRGC9Xs").getKid());
+
+        JSONObject set = store.toJWKSet(false);
+        assertEquals(2, ((JSONArray) set.get("keys")).size());
+        JWKStore copy = JWKStore.of(set);
+        assertSame(copy.get("enc1").getKey(), copy.get("enc1").getKey());
+        assertEquals("enc", copy.get("enc1").getKey().getUse());
+    }
+
+    /**
+     * JWE の鍵管理の alg でも引ける. RSA-OAEP は RS で始まるが JWS ではない.
+     */
+    @Test
+    public void testEncKey() {
+        System.out.println("JWE key");
+        assertEquals("RSA", JWKStore.kty("RSA-OAEP"));
+        assertEquals("enc", JWKStore.use("RSA-OAEP"));
+        assertEquals("enc", JWKStore.use("RSA-OAEP-256"));
+        assertEquals("enc", JWKStore.use("RSA1_5"));
+        assertEquals("enc", JWKStore.use("A128KW"));
+        assertEquals("enc", JWKStore.use("dir"));
+        assertEquals("enc", JWKStore.use("ECDH-ES+A256KW"));
+        assertEquals("sig", JWKStore.use("RS256"));
+        assertEquals("sig", JWKStore.use("PS512"));
+        assertEquals("sig", JWKStore.use("HS256"));
+        assertNull(JWKStore.kty("RSXYZ"));
+        assertNull(JWKStore.use("none"));
+
+        JSONObject sig = (JSONObject) net.siisise.json.JSON.parseWrap(RSA);
+        sig.remove("alg");
+        sig.put("use", "sig");
+        JSONObject enc = (JSONObject) net.siisise.json.JSON.parseWrap(RSA);
+        enc.remove("alg");
+        enc.put("kid", "enc1");
+        enc.put("use", "enc");
+        JWKStore store = new JWKStore(Arrays.asList(sig, enc));
+        assertEquals("enc1", store.select("enc1", "RSA-OAEP").getKid());
+        assertEquals("enc1", store.select(null, "RSA-OAEP").getKid());
+        assertEquals("2011-04-29", store.select(null, "RS256").getKid());
+        assertNull(store.select("enc1", "RS256"));
+        assertNull(store.select("2011-04-29", "RSA-OAEP-256"));
+    }
+}
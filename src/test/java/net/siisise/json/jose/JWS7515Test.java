@@ -15,11 +15,24 @@
  */
 package net.siisise.json.jose;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
 import net.siisise.io.BASE64;
 import net.siisise.json.JSON;
 import net.siisise.json.JSONObject;
+import net.siisise.security.key.RSAMiniPrivateKey;
+import net.siisise.security.key.RSAPublicKey;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -83,6 +96,119 @@ public class JWS7515Test {
         assertEquals(expResult, rsJWS);
     }
 
+    @Test
+    public void testRS256KeyStore() throws Exception {
+        System.out.println("RS256 JWKStore");
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair kp = kpg.generateKeyPair();
+        RSAPrivateKey prv = (RSAPrivateKey) kp.getPrivate();
+        java.security.interfaces.RSAPublicKey pub = (java.security.interfaces.RSAPublicKey) kp.getPublic();
+
+        JWS7515 signer = new JWS7515();
+        signer.setTyp("JWT");
+        signer.setRsaKey("k1", "RS256", new RSAMiniPrivateKey(prv.getModulus(), prv.getPrivateExponent()));
+        String jwt = signer.compact("{\"sub\":\"a\"}");
+
+        JWS7515 pubjws = new JWS7515();
+        pubjws.setRsaKey("k1", "RS256", new RSAPublicKey(pub.getModulus(), pub.getPublicExponent()));
+        JSONObject jwk = (JSONObject) JSON.parseWrap(("{\"kty\":\"RSA\",\"kid\":\"k1\",\"alg\":\"RS256\",\"n\":\""
+                + b64(pub.getModulus()) + "\",\"e\":\"" + b64(pub.getPublicExponent()) + "\"}").getBytes(StandardCharsets.UTF_8));
+        JWKStore store = new JWKStore(Arrays.asList(jwk));
+        for (int i = 0; i < 3; i++) { // 同じ鍵とスレッドの RSASSA を使いまわす
+            JWS7515 verifier = new JWS7515();
+            verifier.setTyp("JWT");
+            verifier.setKeys(store);
+            assertEquals("{\"sub\":\"a\"}", new String(verifier.validateCompact(jwt), StandardCharsets.UTF_8));
+        }
+        assertSame(store.get("k1").rsaPublic(), store.get("k1").rsaPublic());
+        assertNull(store.select("k2", "RS256"));
+        assertNull(store.select("k1", "PS256"));
+
+        String[] sp = jwt.split("\\.");
+        JWS7515 verifier = new JWS7515();
+        verifier.setTyp("JWT");
+        verifier.setKeys(store);
+        assertThrows(SecurityException.class, () -> verifier.validateCompact(sp[0] + "." + sp[1] + "x." + sp[2]));
+    }
+
+    @Test
+    public void testES512() throws Exception {
+        System.out.println("ES512");
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+        kpg.initialize(new ECGenParameterSpec("secp521r1"));
+        KeyPair kp = kpg.generateKeyPair();
+        ECPrivateKey prv = (ECPrivateKey) kp.getPrivate();
+        ECPublicKey pub = (ECPublicKey) kp.getPublic();
+        JSONObject jwk = new JSONObject();
+        jwk.put("kty", "EC");
+        jwk.put("crv", "P-521");
+        jwk.put("x", b64(pub.getW().getAffineX()));
+        jwk.put("y", b64(pub.getW().getAffineY()));
+        jwk.put("d", b64(prv.getS()));
+
+        JWS7515 signer = new JWS7515();
+        signer.setTyp("JWT");
+        signer.setJwk("e1", "ES512", jwk);
+        String jwt = signer.compact("{\"sub\":\"a\"}");
+        assertEquals(132, new BASE64(BASE64.URL, 0).decode(jwt.substring(jwt.lastIndexOf('.') + 1)).length);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("{\"sub\":\"a\"}", new String(signer.validateCompact(jwt), StandardCharsets.UTF_8));
+        }
+        assertThrows(SecurityException.class, () -> signer.validateCompact(jwt.replace(".ey", ".eY")));
+    }
+
+    /**
+     * RFC 7797 Section 4 b64:false と detached.
+     */
+    @Test
+    public void testDetached() throws Exception {
+        System.out.println("detached b64:false");
+        byte[] key = new BASE64(BASE64.URL, 0).decode(JWTVerifierTest.KEY);
+        JWS7515 jws = new JWS7515();
+        jws.setKey(key);
+        assertEquals("eyJhbGciOiJIUzI1NiJ9..5mvfOroL-g7HyqJoozehmsaqmvTYGEq5jTI1gVvoEoQ",
+                jws.detached(new ByteArrayInputStream("$.02".getBytes(StandardCharsets.US_ASCII))));
+        jws.setB64(false);
+        String detached = jws.detached(new ByteArrayInputStream("$.02".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("eyJhbGciOiJIUzI1NiIsImI2NCI6ZmFsc2UsImNyaXQiOlsiYjY0Il19..A5dxf2s96_n5FLueVuW1Z_vh161FwXZC4YLPff6dmDY", detached);
+        jws.validateDetached(detached, new ByteArrayInputStream("$.02".getBytes(StandardCharsets.US_ASCII)));
+        assertThrows(SecurityException.class, () -> jws.validateDetached(detached, new ByteArrayInputStream("$.03".getBytes(StandardCharsets.US_ASCII))));
+        assertThrows(IllegalArgumentException.class, () -> jws.compact("$.02"));
+        String inline = jws.compact("$02");
+        assertEquals("$02", new String(jws.validateCompact(inline), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 3の倍数でない大きさで読んでも compact と同じ署名.
+     */
+    @Test
+    public void testDetachedStream() throws Exception {
+        System.out.println("detached stream");
+        byte[] data = new byte[100001];
+        new java.util.Random(1).nextBytes(data);
+        JWS7515 jws = new JWS7515();
+        jws.setTyp("JWT");
+        jws.setKey(new BASE64(BASE64.URL, 0).decode(JWTVerifierTest.KEY));
+        String compact = jws.compact(data);
+        String detached = jws.detached(new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        });
+        assertEquals(compact.substring(compact.lastIndexOf('.')), detached.substring(detached.lastIndexOf('.')));
+        jws.validateDetached(detached, new ByteArrayInputStream(data));
+    }
+
+    private static String b64(BigInteger n) {
+        byte[] d = n.toByteArray();
+        if (d[0] == 0) {
+            d = Arrays.copyOfRange(d, 1, d.length);
+        }
+        return new BASE64(BASE64.URL, 0).encode(d);
+    }
+
     /**
      * Test of compact method, of class JWS7515.
      */
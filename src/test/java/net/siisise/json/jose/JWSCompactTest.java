@@ -0,0 +1,163 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import javax.crypto.spec.SecretKeySpec;
+import net.siisise.security.mac.HMAC;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * JWS Compact の分解と BASE64URL.
+ */
+public class JWSCompactTest {
+
+    /**
+     * RFC 7515 A.1
+     */
+    static final String HS256 = "eyJ0eXAiOiJKV1QiLA0KICJhbGciOiJIUzI1NiJ9"
+            + ".eyJpc3MiOiJqb2UiLA0KICJleHAiOjEzMDA4MTkzODAsDQogImh0dHA6Ly9leGFtcGxlLmNvbS9pc19yb290Ijp0cnVlfQ"
+            + ".dBjftJeZ4CVP-mB92K27uhbUJU1p1r_wW1gFWFOEjXk";
+    static final String KEY = "AyM1SysPpbyDfgZld3umj1qzKObwVMkoqQ-EstJQLr_T-1qS0gZH75aKtMN3Yj0iPS4hcgUuTwjAzZr1Z9CAow";
+
+    public JWSCompactTest() {
+    }
+
+    static String b64(String s) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static HMAC hmac() {
+        return new HMAC(new SecretKeySpec(Base64.getUrlDecoder().decode(KEY), "HMAC-SHA-256"));
+    }
+
+    @Test
+    public void testParse() {
+        System.out.println("parse");
+        JWSCompact jws = JWSCompact.parse(HS256);
+        assertEquals("HS256", jws.alg());
+        assertEquals("JWT", jws.header().get("typ"));
+        assertFalse(jws.detached());
+        assertFalse(jws.unsigned());
+        assertTrue(new String(jws.payload(), StandardCharsets.UTF_8).startsWith("{\"iss\":\"joe\",\r\n"));
+
+        String h = b64("{\"alg\":\"HS256\"}");
+        assertThrows(SecurityException.class, () -> JWSCompact.parse(""));
+        assertThrows(SecurityException.class, () -> JWSCompact.parse(h));
+        assertThrows(SecurityException.class, () -> JWSCompact.parse(h + ".e30"));
+        assertThrows(SecurityException.class, () -> JWSCompact.parse(h + ".e30.AA.AA"));
+        assertThrows(SecurityException.class, () -> JWSCompact.parse(h + "..."));
+        assertThrows(SecurityException.class, () -> JWSCompact.parse(b64("[1]") + ".e30.")); // object でない
+        assertThrows(SecurityException.class, () -> JWSCompact.parse(b64("{") + ".e30."));
+        assertThrows(SecurityException.class, () -> JWSCompact.parse("eyJhbGciOiJIUzI1NiJ9=.e30."));
+
+        JWSCompact d = JWSCompact.parse(h + "..AA");
+        assertTrue(d.detached());
+        assertTrue(JWSCompact.parse(h + ".e30.").unsigned());
+    }
+
+    /**
+     * BASE64URL の長さと使えない文字.
+     */
+    @Test
+    public void testDecode() {
+        System.out.println("decode");
+        for (String s : new String[] {"A", "AAAAA", "eyJhb", "AA+A", "AA/A", "AA=", "AA.A", "AA A", "AAé"}) {
+            byte[] src = s.getBytes(StandardCharsets.UTF_8);
+            assertThrows(SecurityException.class, () -> JWSCompact.decode(src, 0, src.length), s);
+        }
+        assertEquals(0, JWSCompact.decode(new byte[0], 0, 0).length);
+        assertEquals(0, JWSCompact.decodedLength(0));
+        assertEquals(1, JWSCompact.decodedLength(2));
+        assertEquals(2, JWSCompact.decodedLength(3));
+        assertEquals(3, JWSCompact.decodedLength(4));
+    }
+
+    /**
+     * java.util.Base64 と同じになる.
+     */
+    @Test
+    public void testRoundTrip() {
+        System.out.println("round trip");
+        Random r = new Random(7515);
+        Base64.Encoder enc = Base64.getUrlEncoder().withoutPadding();
+        for (int len = 0; len < 200; len++) {
+            byte[] data = new byte[len + 3];
+            r.nextBytes(data);
+            byte[] dst = new byte[(len + 2) / 3 * 4];
+            int n = JWSCompact.encode(data, 3, len, dst); // 途中から
+            String expected = enc.encodeToString(Arrays.copyOfRange(data, 3, len + 3));
+            assertEquals(expected, new String(dst, 0, n, StandardCharsets.US_ASCII));
+
+            byte[] src = ("." + expected + ".").getBytes(StandardCharsets.US_ASCII);
+            byte[] out = new byte[len + 2];
+            assertEquals(len, JWSCompact.decode(src, 1, n, out, 2));
+            assertArrayEquals(Arrays.copyOfRange(data, 3, len + 3), Arrays.copyOfRange(out, 2, len + 2));
+            assertEquals(len, JWSCompact.decodedLength(n));
+        }
+    }
+
+    /**
+     * HMAC は一時領域で時間一定に比べる.
+     * 短い, 長い, 1文字違う署名は false.
+     */
+    @Test
+    public void testVerifyHMAC() {
+        System.out.println("verify HMAC");
+        HMAC mac = hmac();
+        assertTrue(JWSCompact.parse(HS256).verify(mac));
+        String body = HS256.substring(0, HS256.lastIndexOf('.') + 1);
+        String sig = HS256.substring(body.length());
+        assertFalse(JWSCompact.parse(body + sig.substring(0, sig.length() - 1)).verify(mac));
+        assertFalse(JWSCompact.parse(body + sig.substring(0, 42)).verify(mac));
+        assertFalse(JWSCompact.parse(body + sig.substring(0, 41)).verify(mac)); // length % 4 == 1
+        assertFalse(JWSCompact.parse(body + sig.substring(0, 40)).verify(mac));
+        assertFalse(JWSCompact.parse(body).verify(mac)); // 空
+        assertFalse(JWSCompact.parse(body + sig + "AAAA").verify(mac));
+        assertFalse(JWSCompact.parse(body + sig.substring(0, 10) + "A" + sig.substring(11)).verify(mac));
+        assertFalse(JWSCompact.parse(HS256.replace(".eyJpc3", ".eyJpC3")).verify(mac));
+        assertThrows(SecurityException.class, () -> JWSCompact.parse(body + sig.replace('-', '+')).verify(mac));
+        assertTrue(JWSCompact.parse(HS256).verify(mac)); // 失敗のあとも使える
+    }
+
+    /**
+     * crit は b64 だけ.
+     */
+    @Test
+    public void testCrit() {
+        System.out.println("crit");
+        assertTrue(JWSCompact.parse(b64("{\"alg\":\"HS256\"}") + ".e30.").b64());
+        assertFalse(JWSCompact.parse(b64("{\"alg\":\"HS256\",\"b64\":false,\"crit\":[\"b64\"]}") + ".{}.").b64());
+        assertTrue(JWSCompact.parse(b64("{\"alg\":\"HS256\",\"b64\":true,\"crit\":[\"b64\"]}") + ".e30.").b64());
+        assertTrue(JWSCompact.parse(b64("{\"alg\":\"HS256\",\"crit\":[\"b64\"]}") + ".e30.").b64());
+        for (String h : new String[] {
+            "{\"alg\":\"HS256\",\"crit\":[\"exp\"]}",
+            "{\"alg\":\"HS256\",\"b64\":false,\"crit\":[\"b64\",\"exp\"]}",
+            "{\"alg\":\"HS256\",\"crit\":[]}",
+            "{\"alg\":\"HS256\",\"crit\":\"b64\"}",
+            "{\"alg\":\"HS256\",\"crit\":[1]}",
+            "{\"alg\":\"HS256\",\"b64\":false}", // crit がない
+            "{\"alg\":\"HS256\",\"b64\":\"false\",\"crit\":[\"b64\"]}"}) {
+            JWSCompact jws = JWSCompact.parse(b64(h) + ".e30.");
+            assertThrows(SecurityException.class, jws::b64, h);
+            assertThrows(SecurityException.class, jws::payload, h);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.siisise.io.BASE64;
+import net.siisise.json.JSON;
+import net.siisise.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * JWS JSON Serialization.
+ */
+public class JWSJSONTest {
+
+    /**
+     * RFC 7515 Appendix A.6.4
+     */
+    static final String GENERAL = "{\"payload\":\"eyJpc3MiOiJqb2UiLA0KICJleHAiOjEzMDA4MTkzODAsDQogImh0dHA6Ly9leGFtcGxlLmNvbS9pc19yb290Ijp0cnVlfQ\","
+            + "\"signatures\":["
+            + "{\"protected\":\"eyJhbGciOiJSUzI1NiJ9\",\"header\":{\"kid\":\"2010-12-29\"},"
+            + "\"signature\":\"cC4hiUPoj9Eetdgtv3hF80EGrhuB__dzERat0XF9g2VtQgr9PJbu3XOiZj5RZmh7AAuHIm4Bh-0Qc_lF5YKt_O8W2Fp5jujGbds9uJdbF9CUAr7t1dnZcAcQjbKBYNX4BAynRFdiuB--f_nZLgrnbyTyWzO75vRK5h6xBArLIARNPvkSjtQBMHlb1L07Qe7K0GarZRmB_eSN9383LcOLn6_dO--xi12jzDwusC-eOkHWEsqtFZESc6BfI7noOPqvhJ1phCnvWh6IeYI2w9QOYEUipUTI8np6LbgGY9Fs98rqVt5AXLIhWkWywlVmtVrBp0igcN_IoypGlUPQGe77Rw\"},"
+            + "{\"protected\":\"eyJhbGciOiJFUzI1NiJ9\",\"header\":{\"kid\":\"e9bc097a-ce51-4036-9562-d2ade882db0d\"},"
+            + "\"signature\":\"DtEhU3ljbEg8L38VWAfUAqOyKAM6-Xx-F4GawxaepmXFCgfTjDxw5djxLa8ISlSApmWQxfKTUJqPP3-Kg6NU1Q\"}]}";
+
+    public JWSJSONTest() {
+    }
+
+    @Test
+    public void testGeneral() {
+        System.out.println("general");
+        JWSJSON jws = JWSJSON.parse(GENERAL);
+        assertEquals(2, jws.getSignatures().size());
+        assertEquals("e9bc097a-ce51-4036-9562-d2ade882db0d", jws.getSignatures().get(1).kid());
+
+        JSONObject jwk = new JSONObject();
+        jwk.put("kty", "EC");
+        jwk.put("kid", "e9bc097a-ce51-4036-9562-d2ade882db0d");
+        jwk.put("crv", "P-256");
+        jwk.put("x", "f83OJ3D2xF1Bg8vub9tLe1gHMzV76e8Tus9uPHvRVEU");
+        jwk.put("y", "x_FEzRu9m36HLN_tue659LNpXW6pCyStikYjKIWI5a0");
+        JWTVerifier verifier = JWTVerifier.of(new JWKStore(Arrays.asList(jwk)), Arrays.asList("RS256", "ES256"));
+        assertEquals(1, jws.verifyAny(verifier)); // RS256 の鍵はない
+        assertArrayEquals(new boolean[] {false, true}, jws.verifyAll(verifier));
+        assertTrue(new String(jws.validate(verifier), StandardCharsets.UTF_8).startsWith("{\"iss\":\"joe\""));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            assertEquals(1, jws.verifyAny(verifier, executor));
+            assertArrayEquals(new boolean[] {false, true}, jws.verifyAll(verifier, executor));
+            JWTVerifier none = JWTVerifier.of(new JWKStore(Arrays.asList(jwk)), Arrays.asList("RS256"));
+            assertEquals(-1, jws.verifyAny(none, executor));
+            assertArrayEquals(new boolean[] {false, false}, jws.verifyAll(none, executor));
+        } finally {
+            executor.shutdown();
+        }
+
+        JWSJSON again = JWSJSON.parse(jws.toGeneral().toJSON());
+        assertEquals(1, again.verifyAny(verifier));
+        assertThrows(IllegalStateException.class, () -> jws.toFlattened());
+    }
+
+    @Test
+    public void testSignFlattened() throws Exception {
+        System.out.println("sign flattened");
+        byte[] key = new BASE64(BASE64.URL, 0).decode(JWTVerifierTest.KEY);
+        byte[] hsKey = key.clone();
+        JWS7515 hs = new JWS7515();
+        hs.setTyp("JWT");
+        hs.setKey(key);
+        hs.setHeader("kid", "h1");
+        byte[] payload = "{\"sub\":\"a\"}".getBytes(StandardCharsets.UTF_8);
+        JWSJSON jws = JWSJSON.sign(payload, Arrays.asList(hs));
+        JSONObject flat = jws.toFlattened();
+        assertEquals("h1", ((JSONObject) flat.getJSON("header")).get("kid"));
+
+        JWSJSON parsed = JWSJSON.parse(flat.toJSON());
+        assertArrayEquals(payload, parsed.validate(JWTVerifier.hmac("HS256", key)));
+        key[0]++;
+        assertThrows(SecurityException.class, () -> parsed.validate(JWTVerifier.hmac("HS256", key)));
+        // protected と header で同じ名前は不可
+        flat.put("header", new JSONObject());
+        ((JSONObject) flat.get("header")).put("alg", "none");
+        assertThrows(SecurityException.class, () -> JWSJSON.parse(flat.toJSON()));
+        // crit, b64 は protected のみ
+        ((JSONObject) flat.get("header")).remove("alg");
+        ((JSONObject) flat.get("header")).put("crit", Arrays.asList("exp"));
+        assertThrows(SecurityException.class, () -> JWSJSON.parse(flat.toJSON()));
+        ((JSONObject) flat.get("header")).remove("crit");
+        ((JSONObject) flat.get("header")).put("b64", false);
+        assertThrows(SecurityException.class, () -> JWSJSON.parse(flat.toJSON()));
+        ((JSONObject) flat.get("header")).remove("b64");
+        assertArrayEquals(payload, JWSJSON.parse(flat.toJSON()).validate(JWTVerifier.hmac("HS256", hsKey)));
+        // 文字列でないもの
+        ((JSONObject) flat.get("header")).put("kid", 1);
+        assertThrows(SecurityException.class, () -> JWSJSON.parse(flat.toJSON()));
+        ((JSONObject) flat.get("header")).put("kid", "h1");
+        for (String name : new String[] {"payload", "protected", "signature"}) {
+            JSONObject bad = (JSONObject) JSON.parseWrap(flat.toJSON());
+            bad.put(name, 1);
+            assertThrows(SecurityException.class, () -> JWSJSON.parse(bad), name);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.json.jose;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.siisise.io.BASE64;
+import net.siisise.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * JWT の検証.
+ */
+public class JWTVerifierTest {
+
+    static final String EXAMPLE = "eyJ0eXAiOiJKV1QiLA0KICJhbGciOiJIUzI1NiJ9"
+            + ".eyJpc3MiOiJqb2UiLA0KICJleHAiOjEzMDA4MTkzODAsDQogImh0dHA6Ly9leGFtcGxlLmNvbS9pc19yb290Ijp0cnVlfQ"
+            + ".dBjftJeZ4CVP-mB92K27uhbUJU1p1r_wW1gFWFOEjXk";
+    static final String KEY = "AyM1SysPpbyDfgZld3umj1qzKObwVMkoqQ-EstJQLr_T-1qS0gZH75aKtMN3Yj0iPS4hcgUuTwjAzZr1Z9CAow";
+
+    public JWTVerifierTest() {
+    }
+
+    /**
+     * RFC 7515 Appendix A.1 を複数のスレッドで.
+     */
+    @Test
+    public void testHS256() throws Exception {
+        System.out.println("JWTVerifier HS256");
+        JWTVerifier verifier = JWTVerifier.hmac("HS256", new BASE64(BASE64.URL, 0).decode(KEY));
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(pool.submit(() -> verifier.validate(EXAMPLE)));
+            }
+            for (Future<byte[]> r : results) {
+                assertTrue(new String(r.get(), StandardCharsets.UTF_8).startsWith("{\"iss\":\"joe\""));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        String bad = EXAMPLE.substring(0, EXAMPLE.length() - 2) + "Ak";
+        assertThrows(SecurityException.class, () -> verifier.validate(bad));
+        // alg none
+        String none = "eyJhbGciOiJub25lIn0" + EXAMPLE.substring(EXAMPLE.indexOf('.'), EXAMPLE.lastIndexOf('.') + 1);
+        assertThrows(SecurityException.class, () -> verifier.validate(none));
+        // RS256 の鍵がないので HS256 以外は通さない
+        JWTVerifier rsa = JWTVerifier.rsa(new JWKStore(), Arrays.asList("RS256"));
+        assertThrows(SecurityException.class, () -> rsa.validate(EXAMPLE));
+        // 文字列でない kid, typ
+        String rest = EXAMPLE.substring(EXAMPLE.indexOf('.'));
+        for (String h : new String[] {"{\"alg\":\"HS256\",\"kid\":1}", "{\"alg\":\"HS256\",\"typ\":[\"JWT\"]}"}) {
+            String jws = new BASE64(BASE64.URL, 0).encode(h.getBytes(StandardCharsets.UTF_8)) + rest;
+            assertThrows(SecurityException.class, () -> verifier.validate(jws));
+        }
+    }
+
+    /**
+     * RFC 7515 Appendix A.3 ES256
+     */
+    @Test
+    public void testES256() {
+        System.out.println("JWTVerifier ES256");
+        String jws = "eyJhbGciOiJFUzI1NiJ9"
+                + ".eyJpc3MiOiJqb2UiLA0KICJleHAiOjEzMDA4MTkzODAsDQogImh0dHA6Ly9leGFtcGxlLmNvbS9pc19yb290Ijp0cnVlfQ"
+                + ".DtEhU3ljbEg8L38VWAfUAqOyKAM6-Xx-F4GawxaepmXFCgfTjDxw5djxLa8ISlSApmWQxfKTUJqPP3-Kg6NU1Q";
+        JSONObject jwk = new JSONObject();
+        jwk.put("kty", "EC");
+        jwk.put("crv", "P-256");
+        jwk.put("x", "f83OJ3D2xF1Bg8vub9tLe1gHMzV76e8Tus9uPHvRVEU");
+        jwk.put("y", "x_FEzRu9m36HLN_tue659LNpXW6pCyStikYjKIWI5a0");
+        JWKStore store = new JWKStore(Arrays.asList(jwk));
+        JWTVerifier verifier = JWTVerifier.of(store, Arrays.asList("ES256"));
+        assertTrue(new String(verifier.validate(jws), StandardCharsets.UTF_8).startsWith("{\"iss\":\"joe\""));
+        assertSame(store.first().publicKey(), store.first().publicKey());
+        assertThrows(SecurityException.class, () -> verifier.validate(jws.replace("NU1Q", "NU2Q")));
+        // 曲線の違う alg では使わない
+        assertThrows(SecurityException.class, () -> JWTVerifier.of(store, Arrays.asList("RS256")).validate(jws));
+    }
+
+    /**
+     * RFC 8037 Appendix A.4 Ed25519
+     */
+    @Test
+    @EnabledForJreRange(min = JRE.JAVA_15) // JCA の Ed25519
+    public void testEdDSA() {
+        System.out.println("JWTVerifier EdDSA");
+        String jws = "eyJhbGciOiJFZERTQSJ9.RXhhbXBsZSBvZiBFZDI1NTE5IHNpZ25pbmc"
+                + ".hgyY0il_MGCjP0JzlnLWG1PPOt7-09PGcvMg3AIbQR6dWbhijcNR4ki4iylGjg5BhVsPt9g7sVvpAr_MuM0KAg";
+        JSONObject jwk = new JSONObject();
+        jwk.put("kty", "OKP");
+        jwk.put("crv", "Ed25519");
+        jwk.put("d", "nWGxne_9WmC6hEr0kuwsxERJxWl7MmkZcDusAxyuf2A");
+        jwk.put("x", "11qYAYKxCrfVS_7TyWQHOg7hcvPapiMlrwIaaPcHURo");
+        JWTVerifier verifier = JWTVerifier.of(new JWKStore(Arrays.asList(jwk)), Arrays.asList("EdDSA"));
+        assertEquals(Collections.singleton("EdDSA"), verifier.getAlgs());
+        assertEquals("Example of Ed25519 signing", new String(verifier.validate(jws), StandardCharsets.UTF_8));
+
+        byte[] data = jws.substring(0, jws.lastIndexOf('.')).getBytes(StandardCharsets.US_ASCII);
+        byte[] sign = JWA7518.jca("EdDSA").sign(jwk, data);
+        assertEquals(jws.substring(jws.lastIndexOf('.') + 1), new BASE64(BASE64.URL, 0).encode(sign));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import net.siisise.block.ReadableBlock;
+import net.siisise.io.Packet;
+import net.siisise.io.PacketA;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * percent-encoding.
+ */
+public class URI3986Test {
+
+    public URI3986Test() {
+    }
+
+    /**
+     * ABNF で1バイトずつ判定する参照実装.
+     */
+    static String abnfPercentEncode(String src) {
+        ReadableBlock srcBlock = ReadableBlock.wrap(src.getBytes(StandardCharsets.UTF_8));
+        Packet rb = new PacketA();
+        while (srcBlock.length() > 0) {
+            ReadableBlock ur = net.siisise.abnf.rfc.URI3986.unreserved.is(srcBlock);
+            if (ur != null) {
+                rb.write(ur);
+            } else {
+                rb.write('%');
+                String b = "0" + Integer.toHexString(srcBlock.read()).toUpperCase();
+                rb.write(b.substring(b.length() - 2).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return new String(rb.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testUrlPercentEncode() {
+        System.out.println("urlPercentEncode");
+        Random rnd = new Random(3986);
+        String chars = "aZ09-._~ !$&'()*+,;=:@/?#[]%\"<>あ漢😀";
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = rnd.nextInt(20); j > 0; j--) {
+                int p = rnd.nextInt(chars.length());
+                if (Character.isLowSurrogate(chars.charAt(p))) {
+                    p--;
+                }
+                sb.append(chars.charAt(p));
+                if (Character.isHighSurrogate(chars.charAt(p))) {
+                    sb.append(chars.charAt(p + 1));
+                }
+            }
+            String src = sb.toString();
+            String enc = URI3986.urlPercentEncode(src);
+            assertEquals(abnfPercentEncode(src), enc, src);
+            assertEquals(src, URI3986.urlPercentDecode(enc));
+        }
+    }
+
+    @Test
+    public void testComponents() {
+        System.out.println("components");
+        String src = "a b/c?d&e=f+g#h@i:j";
+        assertEquals("a%20b%2Fc%3Fd&e=f+g%23h@i:j", URI3986.encodePathSegment(src));
+        assertEquals("a%20b/c%3Fd&e=f+g%23h@i:j", URI3986.encodePath(src));
+        assertEquals("a%20b/c?d&e=f+g%23h@i:j", URI3986.encodeQuery(src));
+        assertEquals("a%20b/c?d%26e%3Df%2Bg%23h@i:j", URI3986.encodeQueryParam(src));
+        assertEquals("a%20b%2Fc%3Fd&e=f+g%23h%40i:j", URI3986.encodeUserinfo(src));
+        assertEquals("%E3%81%82", URI3986.encodeFragment("あ"));
+        assertEquals("あ%zz", URI3986.urlPercentDecode("%E3%81%82%zz"));
+    }
+}
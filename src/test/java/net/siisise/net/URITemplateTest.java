@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RFC 6570 3.2 の例.
+ */
+public class URITemplateTest {
+
+    public URITemplateTest() {
+    }
+
+    static Map<String, Object> vars() {
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("count", Arrays.asList("one", "two", "three"));
+        vars.put("dom", Arrays.asList("example", "com"));
+        vars.put("dub", "me/too");
+        vars.put("hello", "Hello World!");
+        vars.put("half", "50%");
+        vars.put("var", "value");
+        vars.put("who", "fred");
+        vars.put("base", "http://example.com/home/");
+        vars.put("path", "/foo/bar");
+        vars.put("list", Arrays.asList("red", "green", "blue"));
+        Map<String, String> keys = new LinkedHashMap<>();
+        keys.put("semi", ";");
+        keys.put("dot", ".");
+        keys.put("comma", ",");
+        vars.put("keys", keys);
+        vars.put("v", "6");
+        vars.put("x", "1024");
+        vars.put("y", "768");
+        vars.put("empty", "");
+        vars.put("empty_keys", Collections.emptyMap());
+        return vars;
+    }
+
+    @Test
+    public void testExpand() {
+        System.out.println("expand");
+        Map<String, Object> vars = vars();
+        String[][] cases = {
+            {"{var}", "value"},
+            {"{hello}", "Hello%20World%21"},
+            {"{half}", "50%25"},
+            {"O{empty}X", "OX"},
+            {"O{undef}X", "OX"},
+            {"{x,y}", "1024,768"},
+            {"?{x,empty}", "?1024,"},
+            {"{var:3}", "val"},
+            {"{list}", "red,green,blue"},
+            {"{list*}", "red,green,blue"},
+            {"{keys}", "semi,%3B,dot,.,comma,%2C"},
+            {"{keys*}", "semi=%3B,dot=.,comma=%2C"},
+            {"{+path}/here", "/foo/bar/here"},
+            {"here?ref={+path}", "here?ref=/foo/bar"},
+            {"{+base}index", "http://example.com/home/index"},
+            {"{+half}", "50%25"},
+            {"{#hello}", "#Hello%20World!"},
+            {"{#keys*}", "#semi=;,dot=.,comma=,"},
+            {"X{.var:3}", "X.val"},
+            {"X{.list*}", "X.red.green.blue"},
+            {"www{.dom*}", "www.example.com"},
+            {"{/var,empty}", "/value/"},
+            {"{/list*,path:4}", "/red/green/blue/%2Ffoo"},
+            {"{;x,y,empty}", ";x=1024;y=768;empty"},
+            {"{;list*}", ";list=red;list=green;list=blue"},
+            {"{;keys*}", ";semi=%3B;dot=.;comma=%2C"},
+            {"{?x,y,empty}", "?x=1024&y=768&empty="},
+            {"{?list}", "?list=red,green,blue"},
+            {"{?keys*}", "?semi=%3B&dot=.&comma=%2C"},
+            {"{?empty_keys*}", ""},
+            {"?fixed=yes{&x}", "?fixed=yes&x=1024"},
+            {"{&list*}", "&list=red&list=green&list=blue"},
+            {"{/who,dub}", "/fred/me%2Ftoo"},
+        };
+        for (String[] c : cases) {
+            assertEquals(c[1], URITemplate.compile(c[0]).expand(vars), c[0]);
+        }
+        URITemplate lrdd = URITemplate.compile("https://example.com/.well-known/webfinger?resource={uri}");
+        assertEquals("https://example.com/.well-known/webfinger?resource=acct%3Abob%40example.com",
+                lrdd.expand(Collections.singletonMap("uri", "acct:bob@example.com")));
+        assertThrows(IllegalArgumentException.class, () -> URITemplate.compile("{var"));
+        assertThrows(IllegalArgumentException.class, () -> URITemplate.compile("{=var}"));
+        assertThrows(IllegalArgumentException.class, () -> URITemplate.compile("{var:0}"));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * AccessLog のリングバッファと書式.
+ */
+public class AccessLogTest {
+
+    public AccessLogTest() {
+    }
+
+    static RequestStats stats(String target) {
+        HttpConnection conn = new HttpConnection(null, null, null, InetAddress.getLoopbackAddress());
+        conn.method = "GET";
+        conn.target = target;
+        conn.route = "";
+        conn.headRead = System.nanoTime();
+        return new RequestStats(conn, null, System.nanoTime());
+    }
+
+    @Test
+    public void testFormat() {
+        System.out.println("format");
+        RequestStats e = stats("/a?b=c");
+        assertEquals(0, e.getStatus());
+        assertEquals(0, e.getBytesOut());
+        assertEquals(-1, e.getHandlerNanos()); // handler は動いていない
+        assertEquals(-1, e.getFirstByteNanos());
+        assertTrue(e.getTotalNanos() >= 0);
+        StringBuilder sb = new StringBuilder();
+        AccessLog.format(sb, e);
+        String line = sb.toString();
+        assertTrue(line.startsWith("127.0.0.1 - - ["), line);
+        assertTrue(line.matches("(?s).*\\] \"GET /a\\?b=c HTTP/1\\.1\" 0 0 \\* \\d+\n"), line);
+    }
+
+    /**
+     * いくつかのスレッドから入れても、なくならない, 重ならない.
+     * @throws Exception
+     */
+    @Test
+    public void testThreads() throws Exception {
+        System.out.println("threads");
+        int threads = 4;
+        int count = 20000;
+        StringWriter out = new StringWriter();
+        AccessLog log = new AccessLog(out, 256);
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            ts[t] = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    log.completed(stats("/" + id + "/" + i));
+                }
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        log.close();
+        String[] lines = out.toString().split("\n");
+        Set<String> targets = new HashSet<>();
+        for (String line : lines) {
+            String target = line.substring(line.indexOf("\"GET ") + 5, line.indexOf(" HTTP/1.1\""));
+            assertTrue(targets.add(target), target);
+        }
+        assertEquals(threads * count, targets.size() + log.getDropped());
+    }
+
+    /**
+     * 書き込みが止まっていっぱいになったら捨てて数える.
+     * @throws Exception
+     */
+    @Test
+    public void testDropped() throws Exception {
+        System.out.println("dropped");
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StringBuilder sb = new StringBuilder();
+        Writer out = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                sb.append(cbuf, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        AccessLog log = new AccessLog(out, 4);
+        log.completed(stats("/first"));
+        assertTrue(writing.await(5, TimeUnit.SECONDS)); // 読み出し側は止まっている
+        for (int i = 0; i < 10; i++) {
+            log.completed(stats("/" + i));
+        }
+        assertEquals(6, log.getDropped());
+        release.countDown();
+        log.close();
+        String[] lines = sb.toString().split("\n");
+        assertEquals(5, lines.length);
+        assertTrue(lines[0].contains("\"GET /first HTTP/1.1\""));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(lines[i + 1].contains("\"GET /" + i + " HTTP/1.1\""), lines[i + 1]);
+        }
+        log.completed(stats("/closed"));
+        assertEquals(7, log.getDropped());
+    }
+}
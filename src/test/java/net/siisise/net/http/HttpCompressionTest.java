@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Accept-Encoding と圧縮する形式.
+ */
+public class HttpCompressionTest {
+
+    public HttpCompressionTest() {
+    }
+
+    @Test
+    public void testNegotiate() {
+        System.out.println("negotiate");
+        assertEquals(0, HttpCompression.negotiate(null));
+        assertEquals(HttpCompression.GZIP, HttpCompression.negotiate("gzip, deflate"));
+        assertEquals(HttpCompression.GZIP, HttpCompression.negotiate("deflate, gzip")); // 同じ q は gzip
+        assertEquals(HttpCompression.DEFLATE, HttpCompression.negotiate("gzip;q=0.5, deflate;q=0.8"));
+        assertEquals(HttpCompression.DEFLATE, HttpCompression.negotiate("gzip;q=0, deflate"));
+        assertEquals(HttpCompression.GZIP, HttpCompression.negotiate("br, *;q=0.1"));
+        assertEquals(HttpCompression.DEFLATE, HttpCompression.negotiate("gzip;q=0, *"));
+        assertEquals(0, HttpCompression.negotiate("gzip;q=0, deflate;q=0"));
+        assertEquals(0, HttpCompression.negotiate("br, identity"));
+        assertEquals(HttpCompression.GZIP, HttpCompression.negotiate("identity;q=0, gzip"));
+        assertEquals(0, HttpCompression.negotiate("identity;q=0")); // 選べるものがないので identity のまま
+        assertEquals(0, HttpCompression.negotiate("gzip;q=abc"));
+    }
+
+    @Test
+    public void testCompressible() {
+        System.out.println("compressible");
+        assertTrue(HttpCompression.compressible("application/json; charset=utf-8"));
+        assertTrue(HttpCompression.compressible("text/html"));
+        assertTrue(HttpCompression.compressible("application/jwk-set+json"));
+        assertTrue(HttpCompression.compressible("image/svg+xml"));
+        assertFalse(HttpCompression.compressible("image/png"));
+        assertFalse(HttpCompression.compressible("application/octet-stream"));
+        assertFalse(HttpCompression.compressible(null));
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * application/x-www-form-urlencoded.
+ */
+public class HttpEncodeTest {
+
+    public HttpEncodeTest() {
+    }
+
+    @Test
+    public void testFormPercentEncode() throws Exception {
+        System.out.println("formPercentEncode");
+        String src = "a-Z_0.9* ~/あ😀";
+        String expResult = "a-Z_0.9*+%7e%2f%e3%81%82%f0%9f%98%80";
+        assertEquals(expResult, HttpEncode.formPercentEncode(src));
+        String plain = "abcXYZ019";
+        assertSame(plain, HttpEncode.formPercentEncode(plain));
+
+        StringBuilder sb = new StringBuilder("q=");
+        HttpEncode.formPercentEncode(src, sb);
+        assertEquals("q=" + expResult, sb.toString());
+
+        ByteBuffer bb = ByteBuffer.allocate(64);
+        HttpEncode.formPercentEncode(src, bb);
+        assertEquals(expResult, new String(bb.array(), 0, bb.position(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testFormPercentDecode() {
+        System.out.println("formPercentDecode");
+        assertEquals("a-Z_0.9* ~/あ😀", HttpEncode.formPercentDecode("a-Z_0.9*+%7E%2f%E3%81%82%f0%9f%98%80"));
+        assertEquals("100%zz あ", HttpEncode.formPercentDecode("100%zz+あ"));
+        assertEquals("%", HttpEncode.formPercentDecode("%"));
+        assertEquals("a b", HttpEncode.formPercentDecode(ByteBuffer.wrap("a+b".getBytes(StandardCharsets.US_ASCII))));
+    }
+}
@@ -0,0 +1,659 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import net.siisise.io.FileIO;
+import net.siisise.json.JSONObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HttpServer https.
+ */
+public class HttpServerTest {
+
+    private static final char[] PASS = "changeit".toCharArray();
+    private static Path dir;
+    private static KeyStore keyStore;
+
+    public HttpServerTest() {
+    }
+
+    /**
+     * 自己署名の鍵と証明書をその場でつくる.
+     * @throws Exception
+     */
+    @BeforeAll
+    public static void setUpClass() throws Exception {
+        dir = Files.createTempDirectory("httpserver");
+        File ks = dir.resolve("server.p12").toFile();
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", ks.getPath(), "-storepass", new String(PASS), "-keypass", new String(PASS))
+                .redirectErrorStream(true).start();
+        FileIO.binRead(p.getInputStream());
+        assertEquals(0, p.waitFor());
+        keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(ks.toPath())) {
+            keyStore.load(in, PASS);
+        }
+    }
+
+    @AfterAll
+    public static void tearDownClass() throws IOException {
+        Files.deleteIfExists(dir.resolve("server.p12"));
+        Files.deleteIfExists(dir);
+    }
+
+    static SSLContext serverContext() throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASS);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    static SSLContext clientContext() throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    static String request(SSLContext client, int port, String req, String[] alpn, SSLSession[] session) throws IOException {
+        try (SSLSocket soc = (SSLSocket) client.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), port)) {
+            SSLParameters params = soc.getSSLParameters();
+            params.setApplicationProtocols(new String[] {"h2", "http/1.1"});
+            soc.setSSLParameters(params);
+            soc.startHandshake();
+            alpn[0] = soc.getApplicationProtocol();
+            session[0] = soc.getSession();
+            soc.getOutputStream().write(req.getBytes(StandardCharsets.UTF_8));
+            soc.getOutputStream().flush();
+            return new String(FileIO.binRead(soc.getInputStream()), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 平文で1回送って、閉じるまで読む.
+     */
+    static String http(int port, String req) throws IOException {
+        try (Socket soc = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            soc.getOutputStream().write(req.getBytes(StandardCharsets.UTF_8));
+            soc.getOutputStream().flush();
+            return new String(FileIO.binRead(soc.getInputStream()), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 平文で1回送って、閉じるまで読む. バイナリのまま.
+     */
+    static byte[] httpBytes(int port, String req) throws IOException {
+        try (Socket soc = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            soc.getOutputStream().write(req.getBytes(StandardCharsets.UTF_8));
+            soc.getOutputStream().flush();
+            return FileIO.binRead(soc.getInputStream());
+        }
+    }
+
+    /**
+     * ヘッダの終わりまで.
+     */
+    static String head(byte[] res) {
+        String s = new String(res, StandardCharsets.ISO_8859_1);
+        return s.substring(0, s.indexOf("\r\n\r\n") + 4);
+    }
+
+    /**
+     * ヘッダのあと. chunked ならつなげる.
+     */
+    static byte[] body(byte[] res) {
+        String h = head(res);
+        byte[] b = Arrays.copyOfRange(res, h.length(), res.length);
+        if (!"chunked".equals(header(h, "Transfer-Encoding"))) {
+            return b;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int p = 0;
+        while (true) {
+            int e = p;
+            while (b[e] != '\r') {
+                e++;
+            }
+            int size = Integer.parseInt(new String(b, p, e - p, StandardCharsets.ISO_8859_1), 16);
+            if (size == 0) {
+                return out.toByteArray();
+            }
+            out.write(b, e + 2, size);
+            p = e + 2 + size + 2;
+        }
+    }
+
+    static String gunzip(byte[] data) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return new String(FileIO.binRead(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 応答ヘッダの値.
+     */
+    static String header(String res, String name) {
+        int s = res.indexOf("\r\n" + name + ": ");
+        if (s < 0) {
+            return null;
+        }
+        s += name.length() + 4;
+        return res.substring(s, res.indexOf("\r\n", s));
+    }
+
+    static String body(String res) {
+        return res.substring(res.indexOf("\r\n\r\n") + 4);
+    }
+
+    /**
+     * ファイルの Range, 条件付きリクエスト.
+     * @throws Exception
+     */
+    @Test
+    public void testFileRange() throws Exception {
+        System.out.println("file range");
+        Path file = dir.resolve("range.txt");
+        Files.write(file, "0123456789".getBytes(StandardCharsets.US_ASCII));
+        HttpServer server = new HttpServer();
+        server.setOneShot(false);
+        server.callback(params -> file);
+        int port = server.start(InetAddress.getLoopbackAddress(), 0);
+        try {
+            String res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertEquals("bytes", header(res, "Accept-Ranges"));
+            assertEquals("0123456789", body(res));
+            String etag = header(res, "ETag");
+            assertNotNull(etag);
+            assertNotNull(header(res, "Last-Modified"));
+
+            res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-5\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+            assertEquals("bytes 2-5/10", header(res, "Content-Range"));
+            assertEquals("4", header(res, "Content-Length"));
+            assertEquals("2345", body(res));
+
+            res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\nRange: bytes=-3\r\n\r\n");
+            assertEquals("bytes 7-9/10", header(res, "Content-Range"));
+            assertEquals("789", body(res));
+
+            res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\nRange: bytes=20-\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 416 Range Not Satisfiable\r\n"));
+            assertEquals("bytes */10", header(res, "Content-Range"));
+            assertEquals("", body(res));
+            res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\nRange: bytes=-0\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 416 Range Not Satisfiable\r\n"));
+
+            // 読めない Range は無視して全体
+            for (String r : new String[] {"bytes=--5", "bytes=5-3", "bytes=+1-2", "bytes=-", "bytes=1-x", "bytes=20-5"}) {
+                res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\nRange: " + r + "\r\n\r\n");
+                assertTrue(res.startsWith("HTTP/1.1 200 OK\r\n"), r);
+                assertNull(header(res, "Content-Range"), r);
+                assertEquals("0123456789", body(res), r);
+            }
+
+            res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: " + etag + "\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+            assertEquals(etag, header(res, "ETag"));
+            assertNull(header(res, "Content-Length"));
+            assertEquals("", body(res));
+
+            res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: \"other\"\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 200 OK\r\n"));
+
+            // If-Range が古いときは全体
+            res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-5\r\nIf-Range: \"stale\"\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertNull(header(res, "Content-Range"));
+            assertEquals("0123456789", body(res));
+
+            res = http(port, "GET /range.txt HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2-5\r\nIf-Range: " + etag + "\r\n\r\n");
+            assertEquals("2345", body(res));
+        } finally {
+            server.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * If-None-Match の entity-tag は ',' を含むことがある.
+     */
+    @Test
+    public void testMatchWeak() {
+        System.out.println("match weak");
+        assertTrue(HttpResponse.matchWeak("*", "\"v1\""));
+        assertTrue(HttpResponse.matchWeak("\"a,b\"", "\"a,b\""));
+        assertTrue(HttpResponse.matchWeak("\"x\",W/\"v1\"", "\"v1\""));
+        assertTrue(HttpResponse.matchWeak(" \"x, y\" , \"v1\"", "W/\"v1\""));
+        assertFalse(HttpResponse.matchWeak("\"a,b\"", "\"b\""));
+        assertFalse(HttpResponse.matchWeak("\"v1-gzip\"", "\"v1\""));
+        assertFalse(HttpResponse.matchWeak("v1", "\"v1\""));
+        assertFalse(HttpResponse.matchWeak("\"v1", "\"v1\""));
+    }
+
+    /**
+     * gzip, deflate の選択と圧縮.
+     * @throws Exception
+     */
+    @Test
+    public void testCompression() throws Exception {
+        System.out.println("compression");
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            sb.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item\"}");
+        }
+        String json = sb.append(']').toString();
+        HttpServer server = new HttpServer();
+        server.setOneShot(false);
+        server.setCompression(6, 256);
+        server.callback("/big", params -> HttpResponse.text(json, HttpResponse.JSON_TYPE).etag("\"v1\""));
+        server.callback("/small", params -> "{\"a\":1}");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; big.length() < 2000000; i++) {
+            big.append(i).append(' ').append(Integer.toHexString(i * 31)).append('\n');
+        }
+        Path text = dir.resolve("big.txt");
+        Files.write(text, big.toString().getBytes(StandardCharsets.UTF_8));
+        server.callback("/file", params -> text);
+        server.callback("/stream", params -> {
+            HttpStream stream = new HttpStream("text/plain; charset=utf-8");
+            new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    stream.write("line " + i + "\n");
+                }
+                stream.close();
+            }).start();
+            return stream;
+        });
+        int port = server.start(InetAddress.getLoopbackAddress(), 0);
+        try {
+            byte[] res = httpBytes(port, "GET /big HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: deflate;q=0.5, gzip\r\n\r\n");
+            String h = head(res);
+            assertEquals("gzip", header(h, "Content-Encoding"));
+            assertEquals("Accept-Encoding", header(h, "Vary"));
+            assertEquals("\"v1-gzip\"", header(h, "ETag"));
+            assertNull(header(h, "Accept-Ranges"));
+            byte[] gz = body(res);
+            assertEquals(String.valueOf(gz.length), header(h, "Content-Length"));
+            assertTrue(gz.length < json.length() / 4);
+            assertEquals(json, gunzip(gz));
+
+            // HEAD も同じヘッダ
+            String hh = head(httpBytes(port, "HEAD /big HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n"));
+            assertEquals("gzip", header(hh, "Content-Encoding"));
+            assertEquals(header(h, "Content-Length"), header(hh, "Content-Length"));
+            assertEquals(header(h, "ETag"), header(hh, "ETag"));
+
+            // 圧縮した ETag で 304
+            String nm = head(httpBytes(port, "GET /big HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\nIf-None-Match: \"v1-gzip\"\r\n\r\n"));
+            assertTrue(nm.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+            assertEquals("Accept-Encoding", header(nm, "Vary"));
+
+            res = httpBytes(port, "GET /big HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip;q=0.2, deflate\r\n\r\n");
+            assertEquals("deflate", header(head(res), "Content-Encoding"));
+            try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(body(res)))) {
+                assertEquals(json, new String(FileIO.binRead(in), StandardCharsets.UTF_8));
+            }
+
+            // 受け付けないもの
+            for (String accept : new String[] {"identity;q=0", "gzip;q=0, deflate;q=0", "br"}) {
+                res = httpBytes(port, "GET /big HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: " + accept + "\r\n\r\n");
+                h = head(res);
+                assertNull(header(h, "Content-Encoding"));
+                assertEquals("Accept-Encoding", header(h, "Vary"));
+                assertEquals("\"v1\"", header(h, "ETag"));
+                assertEquals(json, new String(body(res), StandardCharsets.UTF_8));
+            }
+
+            // minSize より小さい
+            h = head(httpBytes(port, "GET /small HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n"));
+            assertNull(header(h, "Content-Encoding"));
+            assertEquals("Accept-Encoding", header(h, "Vary"));
+            assertEquals("7", header(h, "Content-Length"));
+
+            // 長さのわからないものは送りながら
+            res = httpBytes(port, "GET /stream HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n");
+            h = head(res);
+            assertEquals("gzip", header(h, "Content-Encoding"));
+            assertEquals("chunked", header(h, "Transfer-Encoding"));
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                lines.append("line ").append(i).append('\n');
+            }
+            assertEquals(lines.toString(), gunzip(body(res)));
+
+            // ファイルは worker で圧縮して送る
+            res = httpBytes(port, "GET /file HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n");
+            h = head(res);
+            assertEquals("gzip", header(h, "Content-Encoding"));
+            assertEquals("chunked", header(h, "Transfer-Encoding"));
+            assertEquals(big.toString(), gunzip(body(res)));
+            h = head(httpBytes(port, "HEAD /file HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n"));
+            assertEquals("gzip", header(h, "Content-Encoding"));
+
+            // 入れ替えても使える
+            server.setCompression(1, 256);
+            res = httpBytes(port, "GET /file HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: deflate\r\n\r\n");
+            try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(body(res)))) {
+                assertEquals(big.toString(), new String(FileIO.binRead(in), StandardCharsets.UTF_8));
+            }
+        } finally {
+            server.close();
+            Files.deleteIfExists(text);
+        }
+    }
+
+    /**
+     * 使い回しのバッファを使う応答は1回だけ.
+     * @throws Exception
+     */
+    @Test
+    public void testSingleUse() throws Exception {
+        System.out.println("single use");
+        JSONObject json = new JSONObject();
+        json.put("a", "b");
+        HttpResponse cached = HttpResponse.json(json);
+        HttpServer server = new HttpServer();
+        server.setOneShot(false);
+        server.callback("/cached", params -> cached);
+        server.callback("/fresh", params -> HttpResponse.json(json));
+        int port = server.start(InetAddress.getLoopbackAddress(), 0);
+        try {
+            assertEquals("{\"a\":\"b\"}", body(http(port, "GET /cached HTTP/1.1\r\nHost: localhost\r\n\r\n")));
+            for (int i = 0; i < 3; i++) { // 同じバッファを別の応答が使っても混ざらない
+                assertEquals("{\"a\":\"b\"}", body(http(port, "GET /fresh HTTP/1.1\r\nHost: localhost\r\n\r\n")));
+            }
+            String res = http(port, "GET /cached HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 500 Internal Server Error\r\n"));
+            assertEquals("", body(res));
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * path ごとの同時実行数を超えたら 503.
+     * @throws Exception
+     */
+    @Test
+    public void testRouteLimit() throws Exception {
+        System.out.println("route limit");
+        HttpServer server = new HttpServer();
+        server.setOneShot(false);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        server.callback("/slow", params -> {
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "{\"slow\":true}";
+        });
+        server.callback("/fast", params -> "{\"fast\":true}");
+        server.setRouteLimit("/slow", 1);
+        int port = server.start(InetAddress.getLoopbackAddress(), 0);
+        try (Socket first = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            first.getOutputStream().write("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            assertEquals(1, server.getActiveCount());
+
+            String res = http(port, "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+            assertEquals("1", header(res, "Retry-After"));
+            assertEquals(1, server.getRejectedCount());
+
+            res = http(port, "GET /fast HTTP/1.1\r\nHost: localhost\r\n\r\n"); // ほかの path は動く
+            assertEquals("{\"fast\":true}", body(res));
+
+            release.countDown();
+            res = new String(FileIO.binRead(first.getInputStream()), StandardCharsets.UTF_8);
+            assertEquals("{\"slow\":true}", body(res));
+            assertEquals(1, server.getRejectedCount());
+        } finally {
+            release.countDown();
+            server.close();
+        }
+    }
+
+    /**
+     * 開始行が長いと 414, ヘッダが大きいと 431.
+     * @throws Exception
+     */
+    @Test
+    public void testHeaderLimits() throws Exception {
+        System.out.println("header limits");
+        HttpServer server = new HttpServer();
+        server.setOneShot(false);
+        server.setHeaderLimits(1024, 256);
+        server.callback(params -> "{\"ok\":true}");
+        int port = server.start(InetAddress.getLoopbackAddress(), 0);
+        try {
+            char[] a = new char[300];
+            Arrays.fill(a, 'a');
+            String longPath = "/" + new String(a);
+            String res = http(port, "GET " + longPath + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(res.startsWith("HTTP/1.1 414 URI Too Long\r\n"), res);
+
+            res = http(port, "GET / HTTP/1.1\r\nHost: localhost\r\nX-Long: " + new String(a) + "\r\n\r\n"); // 1行
+            assertTrue(res.startsWith("HTTP/1.1 431 Request Header Fields Too Large\r\n"), res);
+
+            StringBuilder req = new StringBuilder("GET / HTTP/1.1\r\nHost: localhost\r\n");
+            for (int i = 0; i < 20; i++) { // 1行は短いが全体が大きい
+                req.append("X-H").append(i).append(": ").append(a, 0, 100).append("\r\n");
+            }
+            res = http(port, req.append("\r\n").toString());
+            assertTrue(res.startsWith("HTTP/1.1 431 Request Header Fields Too Large\r\n"), res);
+
+            res = http(port, "GET /" + new String(a, 0, 200) + " HTTP/1.1\r\nHost: localhost\r\n\r\n"); // 制限内
+            assertEquals("{\"ok\":true}", body(res));
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * ヘッダを送り終わらないクライアントは期限で切る.
+     * @throws Exception
+     */
+    @Test
+    public void testHeaderTimeout() throws Exception {
+        System.out.println("header timeout");
+        HttpServer server = new HttpServer();
+        server.setOneShot(false);
+        server.setTimeouts(300, 1000);
+        CountDownLatch timeout = new CountDownLatch(1);
+        server.setMetrics(new HttpMetrics() {
+            @Override
+            public void timeout() {
+                timeout.countDown();
+            }
+        });
+        server.callback(params -> "{\"ok\":true}");
+        int port = server.start(InetAddress.getLoopbackAddress(), 0);
+        try (Socket soc = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            soc.setSoTimeout(5000);
+            long start = System.nanoTime();
+            soc.getOutputStream().write("GET / HTTP/1.1\r\nHost: loc".getBytes(StandardCharsets.UTF_8));
+            soc.getOutputStream().flush();
+            assertEquals(-1, soc.getInputStream().read()); // 何も返さず切る
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(millis >= 200, "closed after " + millis + "ms"); // 時計の目盛り 100ms
+            assertTrue(timeout.await(1, TimeUnit.SECONDS));
+
+            String res = http(port, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"); // 間に合うものは動く
+            assertEquals("{\"ok\":true}", body(res));
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * 1リクエストごとの計測とアクセスログ.
+     * @throws Exception
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        System.out.println("metrics");
+        HttpServer server = new HttpServer();
+        server.setOneShot(false);
+        List<RequestStats> completed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        server.setMetrics(new HttpMetrics() {
+            @Override
+            public void completed(RequestStats stats) {
+                completed.add(stats);
+                done.countDown();
+            }
+        });
+        StringWriter out = new StringWriter();
+        AccessLog log = new AccessLog(out);
+        server.setAccessLog(log);
+        server.callback("/a", params -> "{\"a\":1}");
+        int port = server.start(InetAddress.getLoopbackAddress(), 0);
+        try {
+            String req = "GET /a?x=1 HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            String res = http(port, req);
+            http(port, "GET /none HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            RequestStats a = completed.get(0);
+            assertEquals("GET", a.getMethod());
+            assertEquals("/a?x=1", a.getTarget());
+            assertEquals("/a", a.getRoute());
+            assertEquals(200, a.getStatus());
+            assertEquals(req.length(), a.getBytesIn());
+            assertEquals(res.getBytes(StandardCharsets.UTF_8).length, a.getBytesOut());
+            assertTrue(a.getHandlerNanos() >= 0);
+            assertTrue(a.getQueueNanos() >= 0);
+            assertTrue(a.getTotalNanos() >= a.getHandlerNanos() + a.getWriteNanos());
+            assertEquals(404, completed.get(1).getStatus());
+        } finally {
+            server.close();
+            log.close();
+        }
+        String[] lines = out.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains("\"GET /a?x=1 HTTP/1.1\" 200 "), lines[0]);
+        assertTrue(lines[1].contains("\"GET /none HTTP/1.1\" 404 "), lines[1]);
+        assertEquals(0, log.getDropped());
+    }
+
+    /**
+     * https で応答して ALPN は http/1.1 になる.
+     * @throws Exception
+     */
+    @Test
+    public void testHttps() throws Exception {
+        System.out.println("https");
+        HttpServer server = new HttpServer();
+        server.setOneShot(false);
+        server.setSSLContext(serverContext());
+        server.setSessionCache(100, 60);
+        server.callback(params -> "{\"scheme\":\"" + params.get("scheme") + "\",\"alpn\":\"" + params.get("alpn") + "\"}");
+        int port = server.start(InetAddress.getLoopbackAddress(), 0);
+        try {
+            SSLContext client = clientContext();
+            String[] alpn = new String[1];
+            SSLSession[] sessions = new SSLSession[2];
+            for (int i = 0; i < 2; i++) { // 2回目はセッション再開
+                SSLSession[] session = new SSLSession[1];
+                String res = request(client, port, "GET /callback?code=a HTTP/1.1\r\nHost: localhost\r\n\r\n", alpn, session);
+                assertTrue(res.startsWith("HTTP/1.1 200 OK\r\n"));
+                assertTrue(res.endsWith("{\"scheme\":\"https\",\"alpn\":\"http/1.1\"}"));
+                assertEquals("http/1.1", alpn[0]);
+                sessions[i] = session[0];
+                Thread.sleep(20); // 作成時刻がずれるように
+            }
+            // 再開したものは最初の session の作成時刻を引き継ぐ. TLS 1.3 では ID は毎回変わる
+            assertEquals(sessions[0].getCreationTime(), sessions[1].getCreationTime());
+            if ("TLSv1.2".equals(sessions[1].getProtocol())) {
+                assertArrayEquals(sessions[0].getId(), sessions[1].getId());
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * SSE を chunked で送り、相手が切ったらわかる.
+     * @throws Exception
+     */
+    @Test
+    public void testEventStream() throws Exception {
+        System.out.println("event-stream");
+        HttpServer server = new HttpServer();
+        server.setOneShot(false);
+        EventStream es = new EventStream(0);
+        CountDownLatch closed = new CountDownLatch(1);
+        es.onClose(closed::countDown);
+        server.callback(params -> es);
+        int port = server.start(InetAddress.getLoopbackAddress(), 0);
+        try (Socket soc = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            soc.getOutputStream().write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            es.send("1", "tick", "a\nb");
+            byte[] buf = new byte[1024];
+            StringBuilder res = new StringBuilder();
+            while (res.indexOf("data: b\n\n") < 0) {
+                int n = soc.getInputStream().read(buf);
+                assertTrue(n > 0);
+                res.append(new String(buf, 0, n, StandardCharsets.UTF_8));
+            }
+            assertTrue(res.indexOf("Transfer-Encoding: chunked\r\n") > 0);
+            assertTrue(res.indexOf("Content-Type: text/event-stream; charset=utf-8\r\n") > 0);
+            assertTrue(res.indexOf("\r\nid: 1\nevent: tick\ndata: a\ndata: b\n\n") > 0);
+        } finally {
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertFalse(es.isOpen());
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * query の解析.
+ */
+public class QueryStringTest {
+
+    public QueryStringTest() {
+    }
+
+    @Test
+    public void testParse() {
+        System.out.println("parse");
+        QueryString qs = QueryString.parse("resource=acct%3Acarol%40example.com&rel=a&&rel=b+c&empty=&flag&%E3%81%82=%F0%9F%98%80");
+        assertEquals(6, qs.size());
+        assertEquals("acct:carol@example.com", qs.get("resource"));
+        assertEquals(Arrays.asList("a", "b c"), qs.getAll("rel"));
+        assertEquals("", qs.get("empty"));
+        assertEquals("", qs.get("flag"));
+        assertEquals("😀", qs.get("あ"));
+        assertNull(qs.get("none"));
+
+        Map<String, String> map = qs.toMap();
+        assertEquals("a", map.get("rel"));
+        assertEquals(2, qs.toMultiMap().get("rel").size());
+        assertEquals(0, QueryString.parse(null).size());
+    }
+
+    @Test
+    public void testParseBytes() {
+        System.out.println("parse bytes");
+        byte[] head = "GET /a?x=1&y=%41 HTTP/1.1\r\nHost: a\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        QueryString qs = HttpServer.query(head);
+        assertEquals("1", qs.get("x"));
+        assertEquals("A", qs.get("y"));
+        assertEquals("x=1&y=A", qs.toString());
+        assertEquals(0, HttpServer.query("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII)).size());
+    }
+}
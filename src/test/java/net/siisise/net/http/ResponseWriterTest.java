@@ -0,0 +1,158 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.http;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 状態行, ヘッダ, JSON の直接書き込み.
+ */
+public class ResponseWriterTest {
+
+    public ResponseWriterTest() {
+    }
+
+    static String string(ByteBuffer b) {
+        byte[] d = new byte[b.remaining()];
+        b.duplicate().get(d);
+        return new String(d, StandardCharsets.UTF_8);
+    }
+
+    static String decimal(long v) {
+        ByteBuffer b = new ResponseWriter().decimal(v).finish();
+        String s = string(b);
+        ResponseWriter.recycle(b);
+        return s;
+    }
+
+    static String json(Object obj) {
+        ByteBuffer b = new ResponseWriter().json(obj).finish();
+        String s = string(b);
+        ResponseWriter.recycle(b);
+        return s;
+    }
+
+    @Test
+    public void testDecimal() {
+        System.out.println("decimal");
+        for (long v : new long[] {0, 7, -7, 10, -10, 1234567890L, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1, Integer.MIN_VALUE}) {
+            assertEquals(Long.toString(v), decimal(v));
+        }
+    }
+
+    @Test
+    public void testJson() {
+        System.out.println("json");
+        assertEquals("\"a\\\"b\\\\c\"", json("a\"b\\c"));
+        assertEquals("\"\\n\\r\\t\\b\\f\\u0001\\u001f \"", json("\n\r\t\b\f\u0001\u001f "));
+        assertEquals("\"/<>\u007f\"", json("/<>\u007f"));
+        assertEquals("\"café あ 😀\"", json("café あ 😀"));
+        assertEquals("\"?x\"", json("\ud83dx")); // 対になっていない surrogate
+        assertEquals("null", json(null));
+        assertEquals("[true,false,null,1,-2,1.5,null,null,12.50,\"c\"]",
+                json(Arrays.asList(true, false, null, 1, -2L, 1.5, Double.NaN, Float.POSITIVE_INFINITY, new BigDecimal("12.50"), 'c')));
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("k\"", Arrays.asList(map.size(), Collections.emptyMap()));
+        map.put("empty", Collections.emptyList());
+        assertEquals("{\"k\\\"\":[0,{}],\"empty\":[]}", json(map));
+    }
+
+    /**
+     * 使い回しのバッファより大きいもの.
+     */
+    @Test
+    public void testGrow() {
+        System.out.println("grow");
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < ResponseWriter.SIZE * 3) {
+            sb.append("aあ😀\"");
+        }
+        String text = sb.toString();
+        ResponseWriter w = new ResponseWriter();
+        w.put((byte) '[');
+        for (int i = 0; i < 3; i++) {
+            w.json(text).put((byte) ',');
+        }
+        w.decimal(Long.MIN_VALUE).put((byte) ']');
+        ByteBuffer b = w.finish();
+        assertTrue(b.capacity() > ResponseWriter.SIZE);
+        String expected = "[" + json(text) + "," + json(text) + "," + json(text) + "," + Long.MIN_VALUE + "]";
+        assertEquals(expected, string(b));
+        ResponseWriter.recycle(b); // 大きくしたものは戻さない
+
+        // 戻したものを使っても前の内容は残らない
+        ByteBuffer p = ResponseWriter.acquire();
+        assertEquals(ResponseWriter.SIZE, p.capacity());
+        assertEquals(0, p.position());
+        assertEquals(ResponseWriter.SIZE, p.limit());
+        ResponseWriter.recycle(p);
+    }
+
+    @Test
+    public void testResponse() throws Exception {
+        System.out.println("HttpResponse json, text");
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("a", 1);
+        HttpResponse res = HttpResponse.valueOf(map);
+        assertEquals(200, res.status());
+        assertEquals(HttpResponse.JSON_TYPE, res.headers.get("Content-Type"));
+        assertEquals(7, res.length);
+        assertEquals("{\"a\":1}", string(res.body[0]));
+        assertFalse(res.ranges);
+        res.release();
+
+        res = HttpResponse.text("あ", "text/plain; charset=utf-8");
+        assertEquals(3, res.length);
+        assertEquals("あ", string(res.body[0]));
+        ByteBuffer head = res.head();
+        assertEquals("HTTP/1.1 200 OK\r\nServer: " + HttpResponse.SERVER + "\r\nContent-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Length: 3\r\nConnection: close\r\n\r\n", string(head));
+        res.release();
+    }
+
+    @Test
+    public void testHeader() {
+        System.out.println("header");
+        ResponseWriter w = new ResponseWriter();
+        w.status(404, "Not Found").header("X-Name", "café");
+        ByteBuffer b = w.finish();
+        byte[] d = new byte[b.remaining()];
+        b.get(d);
+        assertEquals("HTTP/1.1 404 Not Found\r\nX-Name: café\r\n", new String(d, StandardCharsets.ISO_8859_1));
+        ResponseWriter.recycle(b);
+
+        ResponseWriter e = new ResponseWriter();
+        assertThrows(IllegalArgumentException.class, () -> e.header("X-Name", "あ"));
+        assertThrows(IllegalArgumentException.class, () -> e.header("X-Name", "a\r\nSet-Cookie: x"));
+        assertThrows(IllegalArgumentException.class, () -> e.header("X-Name", "a\nb"));
+        assertThrows(IllegalArgumentException.class, () -> e.header("X Name", "a"));
+        assertThrows(IllegalArgumentException.class, () -> e.header("X-Name:", "a"));
+        assertThrows(IllegalArgumentException.class, () -> e.header("", "a"));
+
+        HttpResponse res = new HttpResponse(200, "OK");
+        assertThrows(IllegalArgumentException.class, () -> res.header("Location", "/あ"));
+        assertThrows(IllegalArgumentException.class, () -> res.header("Location", "/a\r\n"));
+        assertFalse(res.headers.containsKey("Location"));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.net.idna;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RFC 3492 7.1 Sample strings など.
+ */
+public class IDNATest {
+
+    public IDNATest() {
+    }
+
+    @Test
+    public void testPunycode() {
+        System.out.println("punycode");
+        String[][] samples = {
+            {"ليهمابتكلموشعربي؟", "egbpdaj6bu4bxfgehfvwxn"}, // (A) Arabic
+            {"他们为什么不说中文", "ihqwcrb4cv8a8dqg056pqjye"}, // (B) Chinese
+            {"3年B組金八先生", "3B-ww4c5e180e575a65lsy2b"}, // (L)
+            {"そのスピードで", "d9juau41awczczp"}, // (R)
+            {"-> $1.00 <-", "-> $1.00 <--"}, // (S)
+        };
+        for (String[] s : samples) {
+            assertEquals(s[1], IDNA.punycodeEncode(s[0]));
+            assertEquals(s[0], IDNA.punycodeDecode(s[1]));
+        }
+        assertThrows(IllegalArgumentException.class, () -> IDNA.punycodeDecode("a-!"));
+    }
+
+    @Test
+    public void testToASCII() {
+        System.out.println("toASCII");
+        String ascii = "www.example.com";
+        assertSame(ascii, IDNA.toASCII(ascii));
+        assertEquals("xn--wgv71a119e.jp", IDNA.toASCII("日本語.jp"));
+        assertEquals("xn--wgv71a119e.jp", IDNA.toASCII("日本語。ＪＰ"));
+        assertEquals("xn--mnchen-3ya.de", IDNA.toASCII("München.de"));
+        assertEquals("xn--zca.de", IDNA.toASCII("ß.de")); // IDNA2008
+        assertEquals("日本語.jp", IDNA.toUnicode("xn--wgv71a119e.jp"));
+        assertSame(ascii, IDNA.toUnicode(ascii));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.oauth.client;
+
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.siisise.json.jose.JWKStore;
+import net.siisise.json.jose.JWTVerifier;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * jwks_uri のキャッシュ.
+ */
+public class JWKSCacheTest {
+
+    public JWKSCacheTest() {
+    }
+
+    private static JWKSCache.Fetched jwks(String kid) {
+        String json = "{\"keys\":[{\"kty\":\"RSA\",\"kid\":\"" + kid + "\",\"alg\":\"RS256\",\"n\":\"AQAB\",\"e\":\"AQAB\"}]}";
+        return new JWKSCache.Fetched(json.getBytes(StandardCharsets.UTF_8), "public, max-age=3600");
+    }
+
+    @Test
+    public void testMaxAge() {
+        System.out.println("maxAge");
+        assertEquals(3600, JWKSCache.maxAge("public, max-age=3600, must-revalidate"));
+        assertEquals(0, JWKSCache.maxAge("no-cache, max-age=60"));
+        assertEquals(60, JWKSCache.maxAge("Public, MAX-AGE=60"));
+        assertEquals(-1, JWKSCache.maxAge("public"));
+        assertEquals(-1, JWKSCache.maxAge(null));
+    }
+
+    /**
+     * 知らない kid が同時に来ても通信は1回.
+     */
+    @Test
+    public void testKidMiss() throws Exception {
+        System.out.println("kid miss");
+        AtomicInteger count = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        JWKSCache cache = new JWKSCache(() -> {
+            if (count.incrementAndGet() == 1) {
+                return jwks("k1");
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return jwks("k2");
+        });
+        cache.setMissInterval(0, TimeUnit.SECONDS);
+        assertNotNull(cache.key("k1", "RS256"));
+        assertEquals(1, count.get());
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<JWKStore.Key>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return cache.select("k2", "RS256");
+                }));
+            }
+            start.countDown();
+            for (Future<JWKStore.Key> r : results) {
+                assertEquals("k2", r.get().getKid());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(2, count.get());
+        assertEquals(1, cache.size());
+
+        cache.setMissInterval(1, TimeUnit.HOURS);
+        assertNull(cache.select("k3", "RS256")); // すぐには読み直さない
+        assertEquals(2, count.get());
+    }
+
+    /**
+     * 古い snapshot を見ていたスレッドも、間隔をあけずには読み直さない.
+     */
+    @Test
+    public void testMissAfterRefresh() throws Exception {
+        System.out.println("miss after refresh");
+        AtomicInteger count = new AtomicInteger();
+        JWKSCache cache = new JWKSCache(() -> {
+            count.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return jwks("k1");
+        });
+        cache.setMissInterval(200, TimeUnit.MILLISECONDS);
+        assertNotNull(cache.key("k1", "RS256"));
+        Thread.sleep(250);
+
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<JWKStore.Key>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return cache.select("k3", "RS256"); // どこにもない
+                }));
+            }
+            start.countDown();
+            for (Future<JWKStore.Key> r : results) {
+                assertNull(r.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(2, count.get());
+    }
+
+    /**
+     * JWTVerifier の鍵に使える.
+     */
+    @Test
+    public void testSource() throws Exception {
+        System.out.println("JWKSource");
+        JWKSCache cache = new JWKSCache(() -> jwks("k1"));
+        JWTVerifier verifier = JWTVerifier.of(cache, Arrays.asList("RS256"));
+        assertEquals(Collections.singleton("RS256"), verifier.getAlgs());
+        assertEquals("k1", cache.select(null, "RS256").getKid());
+        assertEquals("k1", cache.get("k1").getKid());
+        assertNull(cache.select("k1", "ES256"));
+        assertEquals(1, cache.jwks().size());
+    }
+}
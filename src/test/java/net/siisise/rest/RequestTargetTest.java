@@ -0,0 +1,49 @@
+/*
+ * Copyright 2023 okome.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.siisise.rest;
+
+import java.net.URL;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 分解済みのリクエスト先.
+ */
+public class RequestTargetTest {
+
+    public RequestTargetTest() {
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        System.out.println("resolve");
+        RequestTarget base = RequestTarget.parse("https://api.example.com:8443/v1#frag");
+        assertEquals("api.example.com", base.getHost());
+        assertEquals(8443, base.getPort());
+        assertEquals("/v1", base.getPath());
+
+        RequestTarget t = base.resolve("/users/me?x=1").param("q", "a b", "r", "&");
+        assertEquals("https://api.example.com:8443/v1/users/me?x=1&q=a+b&r=%26", t.toString());
+        URL url = t.toURL();
+        assertEquals("/v1/users/me?x=1&q=a+b&r=%26", url.getFile());
+        assertEquals(t.toURI().toString(), t.toString());
+
+        assertEquals("http://[::1]/", RequestTarget.parse("http://[::1]/").toString());
+        assertEquals("https://xn--wgv71a119e.jp/%E3%81%82", RequestTarget.parse("https://日本語.jp/あ").toString());
+        assertEquals("https://other.example/x", base.resolve("https://other.example/x").toString());
+        assertThrows(IllegalArgumentException.class, () -> RequestTarget.parse("/relative"));
+    }
+}